@@ -112,7 +112,19 @@ class AESEncryption {
      *  String          encrypted cypher text
      */
     String encrypt(String payload){
-        InputStream in = new ByteArrayInputStream(payload.getBytes(charset));
+        return encrypt(payload.getBytes(charset));
+    }
+    
+    /*
+     * Method           encrypt
+     * Description      encrypts a binary payload
+     * Params           
+     *  byte[] payload  payload to encrypt
+     * Returns
+     *  String          encrypted cypher text
+     */
+    String encrypt(byte[] payload){
+        InputStream in = new ByteArrayInputStream(payload);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         
         //prepare encryptCipher
@@ -162,6 +174,18 @@ class AESEncryption {
             return "";
         }
         
+        return new String(decryptBytes(cipherText), charset);
+    }
+    
+    /*
+     * Method               decryptBytes
+     * Description          decrypts a binary message
+     * Params       
+     *  String cipherText   cipher text in base64
+     * Returns
+     *  byte[]              decrypted payload
+     */
+    byte[] decryptBytes(String cipherText) throws InvalidCipherTextException{
         InputStream in = new ByteArrayInputStream(Base64.getDecoder().decode(cipherText));
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         
@@ -198,7 +222,7 @@ class AESEncryption {
         
         decryptCipher.get().reset();
         
-        return new String(out.toByteArray(), charset);
+        return out.toByteArray();
     }
 
 }
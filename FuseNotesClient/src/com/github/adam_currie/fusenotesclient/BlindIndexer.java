@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Creates blind index tokens(keyed hmacs of normalized words) 
+ * so the server can find notes containing a word without seeing the word.
+ * The key is derived from the private key, so only the owner can create tokens.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class BlindIndexer{
+    private static final byte[] KEY_LABEL = "FuseNotes blind index key".getBytes(StandardCharsets.UTF_8);
+    
+    private final byte[] key;
+    
+    private final ThreadLocal<HMac> hmac = new ThreadLocal<HMac>(){
+        @Override
+        protected HMac initialValue(){
+            HMac mac = new HMac(new SHA256Digest());
+            mac.init(new KeyParameter(key));
+            return mac;
+        }
+    };
+    
+    /**
+     * 
+     * @param privateKey    the users private key, the index key is derived from it
+     */
+    BlindIndexer(byte[] privateKey){
+        //derive a separate key so tokens reveal nothing about the signing or encryption keys
+        HMac kdf = new HMac(new SHA256Digest());
+        kdf.init(new KeyParameter(privateKey));
+        kdf.update(KEY_LABEL, 0, KEY_LABEL.length);
+        key = new byte[kdf.getMacSize()];
+        kdf.doFinal(key, 0);
+    }
+    
+    /**
+     * Gets the tokens for every distinct word in the text.
+     * Tokens are sorted so their order doesn't reveal the order of the words.
+     * @param text  the plain text
+     * @return the concatenated tokens
+     */
+    byte[] getTokens(String text){
+        //tokens are the size of a long, sort them as unsigned longs
+        TreeSet<Long> sorted = new TreeSet<>(Long::compareUnsigned);
+        for(String word : SearchIndex.tokenize(text)){
+            sorted.add(ByteBuffer.wrap(getToken(word)).getLong());
+        }
+        
+        ByteBuffer tokens = ByteBuffer.allocate(sorted.size() * Protocol.SEARCH_TOKEN_LENGTH);
+        for(long token : sorted){
+            tokens.putLong(token);
+        }
+        return tokens.array();
+    }
+    
+    /**
+     * Gets the tokens to search for, one for each word in the query.
+     * @param query the words to search for
+     * @return the tokens
+     */
+    List<byte[]> getQueryTokens(String query){
+        ArrayList<byte[]> tokens = new ArrayList<>();
+        for(String word : SearchIndex.tokenize(query)){
+            tokens.add(getToken(word));
+        }
+        return tokens;
+    }
+    
+    private byte[] getToken(String word){
+        byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+        
+        HMac mac = hmac.get();
+        byte[] out = new byte[mac.getMacSize()];
+        mac.update(wordBytes, 0, wordBytes.length);
+        mac.doFinal(out, 0);
+        
+        return Arrays.copyOf(out, Protocol.SEARCH_TOKEN_LENGTH);
+    }
+}
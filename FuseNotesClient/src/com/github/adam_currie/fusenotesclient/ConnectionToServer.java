@@ -23,56 +23,149 @@
  */
 package com.github.adam_currie.fusenotesclient;
 
-import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
-import java.io.File;
-import java.io.FileInputStream;
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.sql.Timestamp;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  *
  * @author Adam Currie
  */
 class ConnectionToServer{
-    private final File saveFile;
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int MAX_NOTE_ID_LENGTH = 64;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    
+    //soft cap on the size of each upload request, notes are estimated before encoding
+    private static final int MAX_BATCH_BYTES = 512 * 1024;
+    private static final int NOTE_OVERHEAD_BYTES = 100;
+    private static final int FRAGMENT_OVERHEAD_BYTES = 100;
+    
+    //short delay so a burst of edits goes up in one sync
+    private static final long EDIT_COALESCE_MILLIS = 2 * 1000;
+    
+    //idle polls back off from the sync interval up to this, each poll delay is randomized by +-POLL_JITTER
+    private static final long MAX_POLL_INTERVAL_SECONDS = 5 * 60;
+    private static final double POLL_JITTER = 0.2;
+    
+    private static final int MAX_BOOTSTRAP_FRAME_BYTES = 64 * 1024 * 1024;
+    
+    //changes to ask for per sync request, the rest are paged through with more requests
+    private static final int SYNC_PAGE_LIMIT = 500;
+    
+    //used when the server is overloaded but doesn't say when to come back
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 30;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    
     private final URL url;
-    private Timestamp lastSync;
+    private final String serverName;//identifies the server in the sync journal
+    private final NoteFactory noteFactory;
+    private final ServerUpdateListener updateListener;
+    private volatile long syncCursor;//server change feed cursor, -1 if never synced
+    private volatile String syncETag = null;//from the last poll that brought the cursor up to date
     private final ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicBoolean syncRequested = new AtomicBoolean(false);
+    private volatile boolean pushConnected = false;
+    private volatile long retryNotBefore = 0;//set from Retry-After when the server turns requests away
+    private final ExecutorService uploadPool;
     
     private final Lock autoUpdateLock = new ReentrantLock();
-    private ScheduledFuture<?> autoUpdateFuture = null;
     
-    ConnectionToServer(String urlStr, NoteFactory noteFactory) throws MalformedURLException{
+    /*
+     * autoUpdateLock is used for these
+     */
+        private ScheduledFuture<?> autoUpdateFuture = null;
+        private long syncIntervalSeconds;
+        private long pollIntervalSeconds;
+        private NotificationChannel notifications = null;
+    
+    ConnectionToServer(String urlStr, NoteFactory noteFactory, ServerUpdateListener updateListener) throws MalformedURLException{
+        this(urlStr, noteFactory, updateListener, DEFAULT_MAX_IN_FLIGHT);
+    }
+    
+    /**
+     * 
+     * @param urlStr            url of the note servlet
+     * @param noteFactory       the user's note factory
+     * @param updateListener    receives notes from the server
+     * @param maxInFlight       most upload requests to have open at once when there is a backlog
+     * @throws MalformedURLException if urlStr isn't a valid url
+     */
+    ConnectionToServer(String urlStr, NoteFactory noteFactory, ServerUpdateListener updateListener, int maxInFlight) throws MalformedURLException{
         url = new URL(urlStr);
-        saveFile = new File(url.getHost() + ".sav");
-        loadLastSync();
+        uploadPool = Executors.newFixedThreadPool(maxInFlight, r -> {
+            Thread t = new Thread(r, "note-upload");
+            t.setDaemon(true);
+            return t;
+        });
+        serverName = url.toString();
+        this.noteFactory = noteFactory;
+        this.updateListener = updateListener;
+        loadSyncCursor();
     }
     
     /**
      * starts automatically syncing with server.
+     * syncs when the server pushes a change notification or shortly after a local edit, 
+     * and polls while the notification channel is down.
+     * polls start every syncIntertval seconds and back off while nothing is changing.
      * if already syncing, this will reinitialize the interval.
      * thread-safe along with {@link #stopAutoUpdate() stopAutoUpdate}
-     * @param syncIntertval number of seconds between updates
+     * @param syncIntertval number of seconds between polls
      * @param initialDelay  number of seconds before first update
      */
     public void startAutoUpdate(long syncIntertval, long initialDelay){
         autoUpdateLock.lock();
         try{
-            if(autoUpdateFuture != null){
-                autoUpdateFuture.cancel(false);
+            syncIntervalSeconds = syncIntertval;
+            if(!pushConnected){
+                startPolling(initialDelay);
+            }
+            if(notifications == null){
+                notifications = new NotificationChannel(url, noteFactory.getSigner(), new NotificationListener());
+                notifications.start();
             }
-            autoUpdateFuture = ses.scheduleWithFixedDelay(new ServerSyncTask(), initialDelay, syncIntertval, TimeUnit.SECONDS);
         }finally{
             autoUpdateLock.unlock();
         }
@@ -86,38 +179,687 @@ class ConnectionToServer{
     public void stopAutoUpdate(){
         autoUpdateLock.lock();
         try{
-            if(autoUpdateFuture != null){
-                autoUpdateFuture.cancel(false);
-                autoUpdateFuture = null;
+            stopPolling();
+            if(notifications != null){
+                notifications.stop();
+                notifications = null;
+            }
+            pushConnected = false;
+        }finally{
+            autoUpdateLock.unlock();
+        }
+    }
+    
+    //autoUpdateLock must be held
+    private void startPolling(long initialDelay){
+        pollIntervalSeconds = syncIntervalSeconds;
+        schedulePoll(TimeUnit.SECONDS.toMillis(initialDelay));
+    }
+    
+    //autoUpdateLock must be held
+    private void schedulePoll(long delayMillis){
+        stopPolling();
+        try{
+            autoUpdateFuture = ses.schedule(new ServerSyncTask(), delayMillis, TimeUnit.MILLISECONDS);
+        }catch(RejectedExecutionException ex){
+            //shut down
+        }
+    }
+    
+    /**
+     * Schedules the next poll after a sync, if polling.
+     * Activity resets the interval, otherwise it doubles up to MAX_POLL_INTERVAL_SECONDS.
+     * @param active    whether the sync sent or received any notes
+     */
+    private void syncFinished(boolean active){
+        long retryDelay = retryNotBefore - System.currentTimeMillis();
+        
+        autoUpdateLock.lock();
+        try{
+            if(notifications == null){
+                return;
+            }
+            if(pushConnected){
+                //nothing polls, so try again once the server will take the request
+                if(retryDelay > 0){
+                    requestSync(retryDelay);
+                }
+                return;
+            }
+            
+            if(active){
+                pollIntervalSeconds = syncIntervalSeconds;
+            }else{
+                long ceiling = Math.max(syncIntervalSeconds, MAX_POLL_INTERVAL_SECONDS);
+                pollIntervalSeconds = Math.min(pollIntervalSeconds * 2, ceiling);
+            }
+            
+            //jitter keeps a fleet of clients from polling in lockstep
+            double jitter = 1 + POLL_JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+            schedulePoll(Math.max(retryDelay, (long)(TimeUnit.SECONDS.toMillis(pollIntervalSeconds) * jitter)));
+        }finally{
+            autoUpdateLock.unlock();
+        }
+    }
+    
+    //autoUpdateLock must be held
+    private void stopPolling(){
+        if(autoUpdateFuture != null){
+            autoUpdateFuture.cancel(false);
+            autoUpdateFuture = null;
+        }
+    }
+    
+    /**
+     * Syncs once after a delay, unless a requested sync is already waiting.
+     * The delay is extended if the server has asked the client to back off.
+     */
+    private void requestSync(long delayMillis){
+        if(!syncRequested.compareAndSet(false, true)){
+            return;
+        }
+        delayMillis = Math.max(delayMillis, retryNotBefore - System.currentTimeMillis());
+        
+        try{
+            ses.schedule(() -> {
+                syncRequested.set(false);
+                new ServerSyncTask().run();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }catch(RejectedExecutionException ex){
+            //shut down
+            syncRequested.set(false);
+        }
+    }
+    
+    /**
+     * Stops syncing, a sync that is in progress is allowed to finish.
+     */
+    void shutdown(){
+        stopAutoUpdate();
+        ses.shutdown();
+        uploadPool.shutdown();
+    }
+    
+    /**
+     * Schedules a sync to send changes that were just added to the outbox.
+     */
+    void uploadQueued(){
+        //edits within the window coalesce into the one sync
+        autoUpdateLock.lock();
+        try{
+            if(notifications != null){
+                requestSync(EDIT_COALESCE_MILLIS);
             }
         }finally{
             autoUpdateLock.unlock();
         }
     }
     
-    //debug
-//    private void saveLastSync(String password){
-//        try (PrintWriter out = new PrintWriter(KEY_PATH)) {
-//            out.println(password);
-//        }catch(FileNotFoundException ex){
-//            Logger.getLogger(MainJFrame.class.getName()).log(Level.SEVERE, null, ex);
-//            System.exit(1);
-//        }
-//    }
+    /**
+     * Finds notes on the server whose latest text contains every token.
+     * @param searchTokens  blind index tokens, see {@link BlindIndexer}
+     * @return the matching notes
+     * @throws IOException if the request fails
+     */
+    List<EncryptedNote> search(List<byte[]> searchTokens) throws IOException{
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        NoteCodec.writeBytes(out, noteFactory.getUserID());
+        out.writeInt(searchTokens.size());
+        for(byte[] token : searchTokens){
+            out.write(token);
+        }
+        out.flush();
+        
+        return readNotes(ByteBuffer.wrap(post(Protocol.SEARCH_PATH, request.toByteArray())));
+    }
+    
+    /**
+     * Sends the changes in the outbox and receives the notes changed since the sync cursor,
+     * a page at a time until the server has nothing more.
+     * Pages without uploads are conditional GETs, so an idle poll is usually just a 304.
+     * Changes stay in the outbox until the server acknowledges them.
+     * @return true if any notes were sent or received
+     * @throws IOException if the request fails
+     */
+    private boolean sync() throws IOException{
+        boolean active = false;
+        if(syncCursor < 0){
+            byte[] resume = loadBootstrapResume();
+            if(resume != null || updateListener.getMerkleTree().size() == 0){
+                //a new device, stream the current notes rather than paging through all their changes
+                active = bootstrap(resume);
+            }else{
+                //local notes the server may not have, find the differences rather than sending and receiving everything
+                reconcile();
+            }
+        }
+        
+        //the last batch goes with the first sync request, any others are uploaded in parallel first
+        ArrayList<List<EncryptedNote>> batches = takeUploadBatches();
+        active |= !batches.isEmpty();
+        List<EncryptedNote> uploads = batches.isEmpty() ? new ArrayList<>() : batches.remove(batches.size() - 1);
+        uploadAll(batches);
+        
+        boolean more = true;
+        while(more){
+            ArrayList<EncryptedNote> updates;
+            try{
+                byte[] response;
+                if(uploads.isEmpty()){
+                    response = getChanges();
+                    if(response == null){
+                        break;//not modified
+                    }
+                }else{
+                    ByteArrayOutputStream request = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(request);
+                    NoteCodec.writeBytes(out, noteFactory.getUserID());
+                    out.writeLong(syncCursor);
+                    out.writeInt(SYNC_PAGE_LIMIT);
+                    NoteCodec.writeNotes(out, uploads);
+                    out.flush();
+                    response = post(Protocol.SYNC_PATH, request.toByteArray());
+                }
+                
+                ByteBuffer in = ByteBuffer.wrap(response);
+                long cursor = in.getLong();
+                more = in.get() != 0;
+                updates = readNotes(in);
+                
+                if(!updates.isEmpty()){
+                    updateListener.updatesReceived(updates);
+                }
+                
+                ArrayList<EncryptedNote> acked = new ArrayList<>(uploads);
+                acked.addAll(updates);
+                acknowledge(acked, cursor, true);
+            }catch(IOException | RuntimeException ex){
+                uploadFailed(uploads);
+                throw ex;
+            }
+            
+            active |= !updates.isEmpty();
+            uploads = new ArrayList<>();
+        }
+        return active;
+    }
+    
+    /**
+     * Reads the outbox, split into batches of about MAX_BATCH_BYTES.
+     */
+    private ArrayList<List<EncryptedNote>> takeUploadBatches() throws IOException{
+        LinkedHashMap<NoteID, Set<FragmentID>> outbox;
+        try{
+            outbox = LocalDB.getOutbox(noteFactory.getUserID());
+        }catch(SQLException ex){
+            throw new IOException("Couldn't read the outbox.", ex);
+        }
+        
+        ArrayList<List<EncryptedNote>> batches = new ArrayList<>();
+        ArrayList<EncryptedNote> batch = new ArrayList<>();
+        long batchBytes = 0;
+        
+        for(Map.Entry<NoteID, Set<FragmentID>> entry : outbox.entrySet()){
+            EncryptedNote note = updateListener.getSnapshot(entry.getKey(), entry.getValue());
+            if(note == null){
+                continue;
+            }
+            
+            long size = estimateSize(note);
+            if(!batch.isEmpty() && batchBytes + size > MAX_BATCH_BYTES){
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(note);
+            batchBytes += size;
+        }
+        if(!batch.isEmpty()){
+            batches.add(batch);
+        }
+        
+        return batches;
+    }
+    
+    private static long estimateSize(EncryptedNote note){
+        long size = NOTE_OVERHEAD_BYTES;
+        for(EncryptedNote.Fragment frag : note){
+            String body = frag.getNoteBody();
+            size += FRAGMENT_OVERHEAD_BYTES + (body == null ? 0 : body.length()) + frag.getSearchTokens().length;
+        }
+        return size;
+    }
+    
+    /**
+     * Uploads the batches with up to maxInFlight requests at once.
+     * Batches that fail stay in the outbox and are tried after the others next time.
+     * @throws IOException if any batch failed
+     */
+    private void uploadAll(List<List<EncryptedNote>> batches) throws IOException{
+        ArrayList<Future<Long>> requests = new ArrayList<>(batches.size());
+        try{
+            for(List<EncryptedNote> batch : batches){
+                requests.add(uploadPool.submit(() -> upload(batch)));
+            }
+        }catch(RejectedExecutionException ex){
+            //shutting down, whatever wasn't submitted is still in the outbox
+        }
+        
+        IOException failure = null;
+        ArrayList<EncryptedNote> acked = new ArrayList<>();
+        long ackSeq = 0;
+        for(int i = 0; i < requests.size(); i++){
+            try{
+                ackSeq = Math.max(ackSeq, requests.get(i).get());
+                acked.addAll(batches.get(i));
+            }catch(ExecutionException | InterruptedException ex){
+                if(ex instanceof InterruptedException){
+                    Thread.currentThread().interrupt();
+                }
+                uploadFailed(batches.get(i));
+                if(failure == null){
+                    failure = new IOException("Upload failed.", ex.getCause() != null ? ex.getCause() : ex);
+                }
+            }
+        }
+        
+        //the cursor only moves with a completed sync
+        if(!acked.isEmpty()){
+            acknowledge(acked, ackSeq, false);
+        }
+        
+        if(failure != null){
+            throw failure;
+        }
+    }
+    
+    /**
+     * @return the user's last change number once the batch was stored
+     */
+    private long upload(List<EncryptedNote> batch) throws IOException{
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        NoteCodec.writeBytes(out, noteFactory.getUserID());
+        NoteCodec.writeNotes(out, batch);
+        out.flush();
+        
+        return ByteBuffer.wrap(post(Protocol.UPLOAD_PATH, request.toByteArray())).getLong();
+    }
+    
+    /**
+     * Streams the user's notes, each with only its latest fragment, for a device that has none.
+     * Pages are stored as they arrive and the resume token of each stored page is saved, 
+     * so a stream that is cut off continues from the last page next time.
+     * Sets the sync cursor once the stream has ended.
+     * @param resume    where to continue from, null to start from the beginning
+     * @return true if any notes were received
+     * @throws IOException if the request fails or the stream is cut off
+     */
+    private boolean bootstrap(byte[] resume) throws IOException{
+        Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+        String path = Protocol.BOOTSTRAP_PATH 
+                + "?user=" + base64.encodeToString(noteFactory.getUserID()) 
+                + (resume == null ? "" : "&resume=" + base64.encodeToString(resume));
+        HttpURLConnection connection = open(path);
+        sign(connection, "GET", path, new byte[0]);
+        if(connection.getResponseCode() != HttpURLConnection.HTTP_OK){
+            readResponse(connection);//notes Retry-After and throws
+        }
+        
+        boolean received = false;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()))){
+            long cursor = in.readLong();
+            for(int length; (length = in.readInt()) != 0;){
+                if(length < 0 || length > MAX_BOOTSTRAP_FRAME_BYTES){
+                    throw new IOException("Invalid bootstrap frame length: " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                
+                ByteBuffer buffer = ByteBuffer.wrap(frame);
+                ArrayList<EncryptedNote> notes = readNotes(buffer);
+                byte[] token = NoteCodec.readBytes(buffer, Protocol.MAX_RESUME_TOKEN_LENGTH);
+                
+                updateListener.updatesReceived(notes);
+                received |= !notes.isEmpty();
+                try{
+                    LocalDB.setBootstrapResume(noteFactory.getUserID(), serverName, token);
+                }catch(SQLException ex){
+                    //only means a cut off stream goes back further
+                    Logger.getLogger(ConnectionToServer.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            
+            acknowledge(new ArrayList<>(), cursor, true);
+        }
+        return received;
+    }
+    
+    private byte[] loadBootstrapResume(){
+        try{
+            return LocalDB.getBootstrapResume(noteFactory.getUserID(), serverName);
+        }catch(SQLException ex){
+            Logger.getLogger(ConnectionToServer.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Walks the local and server merkle trees down to the buckets that differ, 
+     * downloads the server's copies of the notes that differ and adds the local copies to the outbox.
+     * Sets the sync cursor so syncing can continue from there.
+     * @throws IOException if a request fails
+     */
+    private void reconcile() throws IOException{
+        MerkleTree local = updateListener.getMerkleTree();
+        long cursor = -1;
+        ArrayList<NoteID> toFetch = new ArrayList<>();
+        ArrayList<NoteID> toUpload = new ArrayList<>();
+        
+        ArrayList<Integer> nodes = new ArrayList<>();
+        nodes.add(0);
+        for(int level = 0; !nodes.isEmpty(); level++){
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(request);
+            NoteCodec.writeBytes(out, noteFactory.getUserID());
+            out.writeByte(level);
+            out.writeInt(nodes.size());
+            for(int index : nodes){
+                out.writeInt(index);
+            }
+            out.flush();
+            
+            ByteBuffer in = ByteBuffer.wrap(post(Protocol.MERKLE_PATH, request.toByteArray()));
+            long seq = in.getLong();
+            if(cursor < 0){
+                cursor = seq;
+            }
+            
+            ArrayList<Integer> differing = new ArrayList<>();
+            for(int index : nodes){
+                if(level < MerkleTree.DEPTH){
+                    byte[] theirs = new byte[MerkleTree.FANOUT * MerkleTree.HASH_LENGTH];
+                    in.get(theirs);
+                    byte[] ours = local.getChildHashes(level, index);
+                    
+                    for(int child = 0; child < MerkleTree.FANOUT; child++){
+                        int from = child * MerkleTree.HASH_LENGTH;
+                        int to = from + MerkleTree.HASH_LENGTH;
+                        if(!Arrays.equals(Arrays.copyOfRange(theirs, from, to), Arrays.copyOfRange(ours, from, to))){
+                            differing.add(index * MerkleTree.FANOUT + child);
+                        }
+                    }
+                }else{
+                    Map<NoteID, byte[]> ours = new HashMap<>(local.getBucket(index));
+                    int count = in.getInt();
+                    if(count < 0){
+                        throw new IOException("Invalid bucket size: " + count);
+                    }
+                    for(int i = 0; i < count; i++){
+                        NoteID id = NoteID.fromBytes(NoteCodec.readBytes(in, MAX_NOTE_ID_LENGTH));
+                        byte[] theirHash = new byte[MerkleTree.HASH_LENGTH];
+                        in.get(theirHash);
+                        
+                        byte[] ourHash = ours.remove(id);
+                        if(ourHash == null){
+                            toFetch.add(id);
+                        }else if(!Arrays.equals(ourHash, theirHash)){
+                            //either could be newer, merging both ways settles it
+                            toFetch.add(id);
+                            toUpload.add(id);
+                        }
+                    }
+                    toUpload.addAll(ours.keySet());
+                }
+            }
+            nodes = differing;
+        }
+        
+        ArrayList<EncryptedNote> fetchedAll = new ArrayList<>(toFetch.size());
+        for(int i = 0; i < toFetch.size(); i += Protocol.MAX_FETCH_NOTES){
+            List<EncryptedNote> fetched = fetch(toFetch.subList(i, Math.min(i + Protocol.MAX_FETCH_NOTES, toFetch.size())));
+            if(!fetched.isEmpty()){
+                updateListener.updatesReceived(fetched);
+                fetchedAll.addAll(fetched);
+            }
+        }
+        try{
+            LocalDB.queueUpload(toUpload);
+        }catch(SQLException ex){
+            throw new IOException("Couldn't add to the outbox.", ex);
+        }
+        
+        acknowledge(fetchedAll, cursor, true);
+    }
+    
+    private List<EncryptedNote> fetch(List<NoteID> noteIDs) throws IOException{
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        NoteCodec.writeBytes(out, noteFactory.getUserID());
+        out.writeInt(noteIDs.size());
+        for(NoteID id : noteIDs){
+            NoteCodec.writeBytes(out, id.toBytes());
+        }
+        out.flush();
+        
+        return readNotes(ByteBuffer.wrap(post(Protocol.FETCH_PATH, request.toByteArray())));
+    }
+    
+    /**
+     * Reads notes sent by the server, dropping any that aren't signed by the user.
+     * The server can't sign notes so this keeps it, or anyone who can change its responses, 
+     * from changing or deleting the user's notes.
+     */
+    private ArrayList<EncryptedNote> readNotes(ByteBuffer in) throws IOException{
+        ArrayList<EncryptedNote> notes = NoteCodec.readNotes(in, noteFactory.getSigner());
+        notes.removeIf(note -> {
+            if(note.checkSignatures()){
+                return false;
+            }
+            Logger.getLogger(ConnectionToServer.class.getName()).log(Level.WARNING, "dropped note {0} from the server, invalid signature", note.getNoteId());
+            return true;
+        });
+        return notes;
+    }
+    
+    /**
+     * Posts a request and reads the whole response.
+     * Bodies are gzipped when they are big enough to benefit, 
+     * and responses are always read to the end so the connection goes back to the keep-alive cache.
+     */
+    private byte[] post(String path, byte[] body) throws IOException{
+        HttpURLConnection connection = open(path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", Protocol.CONTENT_TYPE);
+        sign(connection, "POST", path, body);
+        
+        if(body.length >= Protocol.GZIP_MIN_BYTES){
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+            try(GZIPOutputStream gzip = new GZIPOutputStream(compressed)){
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+        connection.setFixedLengthStreamingMode(body.length);
+        
+        try(OutputStream out = connection.getOutputStream()){
+            out.write(body);
+        }
+        
+        return readResponse(connection);
+    }
+    
+    /**
+     * Polls for the changes after the sync cursor with a conditional GET, sending the ETag of the last up to date poll.
+     * @return the response body, null if the server says nothing changed
+     */
+    private byte[] getChanges() throws IOException{
+        String path = Protocol.SYNC_PATH 
+                + "?user=" + Base64.getUrlEncoder().withoutPadding().encodeToString(noteFactory.getUserID()) 
+                + "&cursor=" + syncCursor 
+                + "&limit=" + SYNC_PAGE_LIMIT;
+        HttpURLConnection connection = open(path);
+        sign(connection, "GET", path, new byte[0]);
+        String etag = syncETag;
+        if(etag != null){
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        
+        if(connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED){
+            return null;
+        }
+        byte[] body = readResponse(connection);
+        syncETag = connection.getHeaderField("ETag");
+        return body;
+    }
+    
+    //proves to the server that this holds the user's key, see Protocol.AUTH_HEADER
+    private void sign(HttpURLConnection connection, String method, String path, byte[] body){
+        long time = System.currentTimeMillis();
+        ECDSASignature signature = noteFactory.getSigner().signRequest(method, path, time, body);
+        connection.setRequestProperty(Protocol.AUTH_HEADER, time + " " + Base64.getEncoder().encodeToString(signature.toBytes()));
+    }
+    
+    private HttpURLConnection open(String path) throws IOException{
+        HttpURLConnection connection = (HttpURLConnection)new URL(url.toString() + path).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+    
+    /**
+     * Reads the whole response, noting Retry-After if the server turned the request away.
+     * @throws IOException if the status isn't 200
+     */
+    private byte[] readResponse(HttpURLConnection connection) throws IOException{
+        int status = connection.getResponseCode();
+        if(status == SC_TOO_MANY_REQUESTS || status == HttpURLConnection.HTTP_UNAVAILABLE){
+            retryNotBefore = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getRetryAfterSeconds(connection));
+        }
+        if(status != HttpURLConnection.HTTP_OK){
+            InputStream error = connection.getErrorStream();
+            if(error != null){
+                try(InputStream in = error){
+                    readAll(in);
+                }
+            }
+            throw new IOException("Server responded with " + status);
+        }
+        
+        try(InputStream in = connection.getInputStream()){
+            if("gzip".equalsIgnoreCase(connection.getContentEncoding())){
+                return readAll(new GZIPInputStream(in));
+            }
+            return readAll(in);
+        }
+    }
+    
+    private static long getRetryAfterSeconds(HttpURLConnection connection){
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if(retryAfter != null){
+            try{
+                return Math.max(0, Long.parseLong(retryAfter.trim()));
+            }catch(NumberFormatException ex){
+                //http date form, not sent by the note servlet
+            }
+        }
+        return DEFAULT_RETRY_AFTER_SECONDS;
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        for(int read; (read = in.read(buffer)) != -1;){
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private void uploadFailed(List<EncryptedNote> notes){
+        try{
+            LocalDB.uploadFailed(notes);
+        }catch(SQLException ex){
+            Logger.getLogger(ConnectionToServer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Journals the acknowledged notes, advancing the sync cursor to seq with them if advanceCursor.
+     * If the journal can't be written the notes are just sent again next time.
+     */
+    private void acknowledge(List<EncryptedNote> notes, long seq, boolean advanceCursor){
+        if(advanceCursor){
+            syncCursor = seq;
+        }
+        
+        try{
+            LocalDB.acknowledge(noteFactory.getUserID(), serverName, notes, seq, advanceCursor);
+        }catch(SQLException ex){
+            Logger.getLogger(ConnectionToServer.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
 
-    private void loadLastSync(){
-        try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(saveFile))){
-            lastSync = (Timestamp)ois.readObject();
-        }catch(IOException | ClassNotFoundException ex){
+    private void loadSyncCursor(){
+        try{
+            syncCursor = LocalDB.getSyncCursor(noteFactory.getUserID(), serverName);
+        }catch(SQLException ex){
             Logger.getLogger(ConnectionToServer.class.getName()).log(Level.SEVERE, null, ex);
-            lastSync = null;
+            syncCursor = -1;
+        }
+    }
+
+    private class NotificationListener implements NotificationChannel.Listener{
+        @Override
+        public void connected(){
+            autoUpdateLock.lock();
+            try{
+                if(notifications == null){
+                    return;//stopped
+                }
+                pushConnected = true;
+                stopPolling();
+            }finally{
+                autoUpdateLock.unlock();
+            }
+            
+            //catch up on anything missed while disconnected
+            requestSync(0);
+        }
+
+        @Override
+        public void changed(){
+            requestSync(0);
+        }
+
+        @Override
+        public void disconnected(){
+            autoUpdateLock.lock();
+            try{
+                pushConnected = false;
+                if(notifications != null){
+                    startPolling(0);
+                }
+            }finally{
+                autoUpdateLock.unlock();
+            }
         }
     }
 
     private class ServerSyncTask implements Runnable{
         @Override
         public void run(){
-            throw new UnsupportedOperationException("Not supported yet.");
+            //failures back off the same as idle polls
+            boolean active = false;
+            try{
+                active = sync();
+            }catch(IOException | RuntimeException ex){
+                Logger.getLogger(ConnectionToServer.class.getName()).log(Level.WARNING, "sync failed", ex);
+            }
+            syncFinished(active);
         }
     }
     
@@ -32,8 +32,16 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,21 +55,25 @@ import java.util.logging.Logger;
 public class LocalDB{
     private static final String URL_STR = "jdbc:sqlite:local.db";
     
+    //outbox fragment id for changes to the note's meta data
+    private static final byte[] META_FRAGMENT_ID = new byte[0];
+    
+    //signatures cover the SHA-256 hash of the message since version 2, version 1 only covered its first 32 bytes
+    private static final int SIGNATURE_VERSION = 2;
+    
+    private static final String NOTE_COLUMNS = "note_id, user_id, creation, meta_edit, deleted, signature";
+    
     static {        
         try(Connection connection = DriverManager.getConnection(URL_STR)){
-            PreparedStatement noteStatement = connection.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS note (" +
-                        "note_id BINARY(12)," +
-                        "user_id BINARY(33)," +
-                        "creation DATETIME," +
-                        "meta_edit DATETIME," +
-                        "deleted BOOL," +
-                        "signature BINARY(66)," +
-                        "PRIMARY KEY (note_id)" +
-                    ")"
-            );
+            PreparedStatement noteStatement = connection.prepareStatement(createNoteTable("note"));
             noteStatement.execute(); 
             
+            //the outbox replaced note.local_version and the sync_state table as the record of what still has to be uploaded
+            connection.prepareStatement("DROP TABLE IF EXISTS sync_state").execute();
+            if(hasColumn(connection, "note", "local_version")){
+                dropLocalVersion(connection);
+            }
+            
             PreparedStatement noteFragmentStatement = connection.prepareStatement(
                     "CREATE TABLE IF NOT EXISTS note_fragment (" +
                         "note_id BINARY(12)," +
@@ -70,19 +82,128 @@ public class LocalDB{
                         "edit DATETIME," +
                         "deleted BOOL," +
                         "note_body TEXT," +
+                        "search_tokens BLOB," +
                         "signature BINARY(66)," +
                         "PRIMARY KEY (note_id, fragment_id)" +
                     ")"
             );
             noteFragmentStatement.execute(); 
+            addColumnIfMissing(connection, "note_fragment", "search_tokens", "BLOB");
+            
+            //each note's part of the index is saved on its own, older databases saved it all as one row and rebuild it
+            connection.prepareStatement("DROP TABLE IF EXISTS search_index").execute();
+            PreparedStatement searchIndexStatement = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS search_index_note (" +
+                        "user_id BINARY(33)," +
+                        "note_id BINARY(12)," +
+                        "data TEXT," +
+                        "PRIMARY KEY (user_id, note_id)" +
+                    ")"
+            );
+            searchIndexStatement.execute(); 
+            
+            //last_seq is the server's change feed cursor, older databases only have a last_sync time and start over
+            //bootstrap_resume is where to continue an unfinished bootstrap stream
+            PreparedStatement syncCursorStatement = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS sync_cursor (" +
+                        "server TEXT," +
+                        "user_id BINARY(33)," +
+                        "last_seq INTEGER," +
+                        "bootstrap_resume BLOB," +
+                        "PRIMARY KEY (server, user_id)" +
+                    ")"
+            );
+            syncCursorStatement.execute(); 
+            addColumnIfMissing(connection, "sync_cursor", "last_seq", "INTEGER");
+            addColumnIfMissing(connection, "sync_cursor", "bootstrap_resume", "BLOB");
+            
+            //changes waiting to be uploaded, version is the edit date that needs to be acknowledged to clear them
+            PreparedStatement outboxStatement = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS outbox (" +
+                        "note_id BINARY(12)," +
+                        "fragment_id BINARY(6)," +
+                        "user_id BINARY(33)," +
+                        "version DATETIME," +
+                        "attempts INTEGER," +
+                        "PRIMARY KEY (note_id, fragment_id)" +
+                    ")"
+            );
+            outboxStatement.execute(); 
+            
+            //version of the signatures of each user's notes, see resignNotes
+            PreparedStatement signatureVersionStatement = connection.prepareStatement(
+                    "CREATE TABLE IF NOT EXISTS signature_version (" +
+                        "user_id BINARY(33)," +
+                        "version INTEGER," +
+                        "PRIMARY KEY (user_id)" +
+                    ")"
+            );
+            signatureVersionStatement.execute(); 
         }catch(SQLException ex){
             Logger.getLogger(LocalDB.class.getName()).log(Level.SEVERE, null, ex);
             System.exit(-1);
         }
     }    
     
+    private static String createNoteTable(String name){
+        return "CREATE TABLE IF NOT EXISTS " + name + " (" +
+                    "note_id BINARY(12)," +
+                    "user_id BINARY(33)," +
+                    "creation DATETIME," +
+                    "meta_edit DATETIME," +
+                    "deleted BOOL," +
+                    "signature BINARY(66)," +
+                    "PRIMARY KEY (note_id)" +
+                ")";
+    }
+    
+    //this version of sqlite can't drop a column, so the table is copied without it in one transaction
+    private static void dropLocalVersion(Connection connection) throws SQLException{
+        connection.setAutoCommit(false);
+        try{
+            connection.prepareStatement("DROP TABLE IF EXISTS note_rebuilt").execute();
+            connection.prepareStatement(createNoteTable("note_rebuilt")).execute();
+            connection.prepareStatement(
+                    "INSERT INTO note_rebuilt (" + NOTE_COLUMNS + ") SELECT " + NOTE_COLUMNS + " FROM note").execute();
+            connection.prepareStatement("DROP TABLE note").execute();
+            connection.prepareStatement("ALTER TABLE note_rebuilt RENAME TO note").execute();
+            connection.commit();
+        }catch(SQLException ex){
+            connection.rollback();
+            throw ex;
+        }finally{
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException{
+        try(ResultSet columns = connection.getMetaData().getColumns(null, null, table, column)){
+            return columns.next();
+        }
+    }
+    
+    //for databases created before the column was added
+    private static void addColumnIfMissing(Connection connection, String table, String column, String type) throws SQLException{
+        if(!hasColumn(connection, table, column)){
+            connection.prepareStatement("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type).execute();
+        }
+    }
+    
     public static ArrayList<Note> getAllNotes(NoteFactory factory) throws SQLException{
+        return getAllNotes(factory, Integer.MAX_VALUE, null);
+    }
+    
+    /**
+     * Reads all of the user's notes, handing them over in batches as they are read.
+     * @param factory   creates the notes
+     * @param batchSize most notes in each batch
+     * @param onBatch   called on this thread with a copy of each batch, the last may be smaller, null for none
+     * @return all of the notes
+     * @throws SQLException 
+     */
+    public static ArrayList<Note> getAllNotes(NoteFactory factory, int batchSize, Consumer<List<Note>> onBatch) throws SQLException{
         ArrayList<Note> notes = new ArrayList<>();
+        int batchStart = 0;
         
         try(Connection connection = DriverManager.getConnection(URL_STR)) {      
             PreparedStatement statement = connection.prepareStatement(
@@ -114,64 +235,400 @@ public class LocalDB{
                         fragResults.getTimestamp("creation"),
                         fragResults.getTimestamp("edit"),
                         fragResults.getString("note_body"),
+                        fragResults.getBytes("search_tokens"),
                         fragResults.getBoolean("deleted"),
                         ECDSASignature.fromBytes(fragResults.getBytes("signature"))
                     );
                 }
                 
                 notes.add(note);
+                if(onBatch != null && notes.size() - batchStart == batchSize){
+                    onBatch.accept(new ArrayList<>(notes.subList(batchStart, notes.size())));
+                    batchStart = notes.size();
+                }
             }
         }
         
+        if(onBatch != null && notes.size() > batchStart){
+            onBatch.accept(new ArrayList<>(notes.subList(batchStart, notes.size())));
+        }
         return notes;
     }
 
+    /**
+     * Signs the user's notes again if they were signed by an older version and queues them for upload.
+     * The edit dates move on by a millisecond, see {@link EncryptedNote#resign()}, so the server and other clients take the new signatures.
+     * If this is cut off it starts over the next time, signing the same note again gives the same signature.
+     * @param factory   creates the notes, must be able to sign
+     * @throws SQLException 
+     */
+    public static void resignNotes(NoteFactory factory) throws SQLException{
+        byte[] userID = factory.getUserID();
+        
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT version FROM signature_version WHERE user_id=?");
+            statement.setBytes(1, userID);
+            ResultSet results = statement.executeQuery();
+            if(results.next() && results.getInt("version") >= SIGNATURE_VERSION){
+                return;
+            }
+        }
+        
+        ArrayList<Note> notes = getAllNotes(factory);
+        for(Note note : notes){
+            note.getEncryptedNote().resign();
+        }
+        addOrUpdateAll(notes, true);
+        
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            PreparedStatement statement = connection.prepareStatement(
+                    "REPLACE INTO signature_version (user_id,version) VALUES (?, ?)");
+            statement.setBytes(1, userID);
+            statement.setInt(2, SIGNATURE_VERSION);
+            statement.execute();
+        }
+    }
+
     /**
      * Does not take a snapshot of the note before saving, 
      * a snapshot of a note must be taken first and used here if the en is being used by multiple threads.
-     * @param note  the note to add to the db
+     * @param note          the note to add to the db
+     * @param queueUpload   whether to add the note and its fragments to the outbox, 
+     *                      true for local changes and false for notes from the server
+     * @throws SQLException 
+     */
+    public static void addOrUpdate(Note note, boolean queueUpload) throws SQLException{
+        addOrUpdateAll(Collections.singletonList(note), queueUpload);
+    }
+    
+    /**
+     * Saves several notes in one transaction with batched statements, see {@link #addOrUpdate(Note, boolean) addOrUpdate}.
+     * @param notes         the notes to add to the db
+     * @param queueUpload   whether to add the notes and their fragments to the outbox
      * @throws SQLException 
      */
-    public static void addOrUpdate(Note note) throws SQLException{
+    public static void addOrUpdateAll(Collection<Note> notes, boolean queueUpload) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            connection.setAutoCommit(false);
+            
+            PreparedStatement noteStatement = connection.prepareStatement(
+                    "REPLACE INTO note (note_id,user_id,creation,meta_edit,deleted,signature) VALUES (?, ?, ?, ?, ?, ?) ");
+            PreparedStatement fragmentStatement = connection.prepareStatement(
+                    "REPLACE INTO note_fragment (note_id,fragment_id,creation,edit,deleted,note_body,search_tokens,signature) VALUES (?, ?, ?, ?, ?, ?, ?, ?) ");
+            PreparedStatement insert = connection.prepareStatement(
+                    "INSERT OR IGNORE INTO outbox (note_id,fragment_id,user_id,version,attempts) VALUES (?, ?, ?, ?, 0)");
+            PreparedStatement update = connection.prepareStatement(
+                    "UPDATE outbox SET version=MAX(version, ?) WHERE note_id=? AND fragment_id=?");
+            
+            for(Note note : notes){
+                addBatches(note, queueUpload, noteStatement, fragmentStatement, insert, update);
+            }
+            
+            noteStatement.executeBatch();
+            fragmentStatement.executeBatch();
+            if(queueUpload){
+                insert.executeBatch();
+                update.executeBatch();
+            }
+            
+            connection.commit();
+        }
+    }
+    
+    private static void addBatches(Note note, boolean queueUpload, PreparedStatement statement, PreparedStatement fragmentStatement, 
+            PreparedStatement insert, PreparedStatement update) throws SQLException{
         EncryptedNote en = note.getEncryptedNote();//todo: fix this, saving a note note just an encrypted note
         
         byte[] noteIDBytes = en.getNoteId().toBytes();
         
+        //META DATA
+        statement.setBytes(1, noteIDBytes);
+        statement.setBytes(2, en.getUserID());
+        statement.setTimestamp(3, en.getCreateDate());
+        statement.setTimestamp(4, en.getMetaEditDate());
+        statement.setBoolean(5, en.getDeleted());
+        statement.setBytes(6, en.getSignature().toBytes());
+        statement.addBatch();
+        
+        //FRAGMENTS
+        for(EncryptedNote.Fragment frag : en){
+            fragmentStatement.setBytes(1, noteIDBytes);
+            fragmentStatement.setBytes(2, frag.getFragmentId().toBytes());
+            fragmentStatement.setTimestamp(3, frag.getCreateDate());
+            fragmentStatement.setTimestamp(4, frag.getEditDate());
+            fragmentStatement.setBoolean(5, frag.getDeleted());
+            fragmentStatement.setString(6, frag.getNoteBody());
+            fragmentStatement.setBytes(7, frag.getSearchTokens());
+            fragmentStatement.setBytes(8, frag.getSignature().toBytes());
+            
+            fragmentStatement.addBatch();
+        }
+        
+        //OUTBOX
+        if(queueUpload){
+            addToOutbox(insert, update, noteIDBytes, META_FRAGMENT_ID, en.getUserID(), en.getMetaEditDate());
+            for(EncryptedNote.Fragment frag : en){
+                addToOutbox(insert, update, noteIDBytes, frag.getFragmentId().toBytes(), en.getUserID(), frag.getEditDate());
+            }
+        }
+    }
+    
+    private static void addToOutbox(PreparedStatement insert, PreparedStatement update, 
+            byte[] noteID, byte[] fragmentID, byte[] userID, Timestamp version) throws SQLException{
+        insert.setBytes(1, noteID);
+        insert.setBytes(2, fragmentID);
+        insert.setBytes(3, userID);
+        insert.setTimestamp(4, version);
+        insert.addBatch();
+        
+        update.setTimestamp(1, version);
+        update.setBytes(2, noteID);
+        update.setBytes(3, fragmentID);
+        update.addBatch();
+    }
+    
+    /**
+     * Adds saved notes and all their fragments to the outbox.
+     * @param noteIDs   the notes
+     * @throws SQLException 
+     */
+    public static void queueUpload(Collection<NoteID> noteIDs) throws SQLException{
         try(Connection connection = DriverManager.getConnection(URL_STR)){
             connection.setAutoCommit(false);
             
-            //META DATA
+            PreparedStatement meta = connection.prepareStatement(
+                    "INSERT OR IGNORE INTO outbox (note_id,fragment_id,user_id,version,attempts) " +
+                        "SELECT note_id, ?, user_id, meta_edit, 0 FROM note WHERE note_id=?");
+            PreparedStatement fragments = connection.prepareStatement(
+                    "INSERT OR IGNORE INTO outbox (note_id,fragment_id,user_id,version,attempts) " +
+                        "SELECT note.note_id, fragment_id, user_id, edit, 0 FROM note_fragment JOIN note ON note.note_id=note_fragment.note_id WHERE note.note_id=?");
+            
+            for(NoteID id : noteIDs){
+                meta.setBytes(1, META_FRAGMENT_ID);
+                meta.setBytes(2, id.toBytes());
+                meta.addBatch();
+                
+                fragments.setBytes(1, id.toBytes());
+                fragments.addBatch();
+            }
+            meta.executeBatch();
+            fragments.executeBatch();
+            
+            connection.commit();
+        }
+    }
+    
+    /**
+     * Gets the changes waiting in the outbox, notes that have failed to upload the fewest times first.
+     * Every note in the outbox has its meta data uploaded, along with the fragments listed.
+     * @param userID    the user
+     * @return the fragments waiting to upload by note
+     * @throws SQLException 
+     */
+    public static LinkedHashMap<NoteID, Set<FragmentID>> getOutbox(byte[] userID) throws SQLException{
+        LinkedHashMap<NoteID, Set<FragmentID>> outbox = new LinkedHashMap<>();
+        
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
             PreparedStatement statement = connection.prepareStatement(
-                    "REPLACE INTO note (note_id,user_id,creation,meta_edit,deleted,signature) VALUES (?, ?, ?, ?, ?, ?) ");
-
-            statement.setBytes(1, noteIDBytes);
-            statement.setBytes(2, en.getUserID());
-            statement.setTimestamp(3, en.getCreateDate());
-            statement.setTimestamp(4, en.getMetaEditDate());
-            statement.setBoolean(5, en.getDeleted());
-            statement.setBytes(6, en.getSignature().toBytes());
+                    "SELECT note_id, fragment_id FROM outbox WHERE user_id=? ORDER BY attempts, note_id");
+            statement.setBytes(1, userID);
+            ResultSet results = statement.executeQuery();
             
-            System.out.println(Arrays.toString(en.getSignature().toBytes()));//debug
+            while(results.next()){
+                Set<FragmentID> fragments = outbox.computeIfAbsent(NoteID.fromBytes(results.getBytes(1)), k -> new HashSet<>());
+                byte[] fragmentID = results.getBytes(2);
+                if(fragmentID != null && fragmentID.length > 0){
+                    fragments.add(FragmentID.fromBytes(fragmentID));
+                }
+            }
+        }
+        
+        return outbox;
+    }
+    
+    /**
+     * Counts a failed upload against notes in the outbox so they are tried after the others.
+     * @param notes the notes that failed
+     * @throws SQLException 
+     */
+    public static void uploadFailed(Collection<EncryptedNote> notes) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            connection.setAutoCommit(false);
             
-            statement.execute();  
+            PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE outbox SET attempts=attempts+1 WHERE note_id=?");
+            for(EncryptedNote en : notes){
+                statement.setBytes(1, en.getNoteId().toBytes());
+                statement.addBatch();
+            }
+            statement.executeBatch();
             
-            //FRAGMENTS    
-            statement = connection.prepareStatement(
-                    "REPLACE INTO note_fragment (note_id,fragment_id,creation,edit,deleted,note_body,signature) VALUES (?, ?, ?, ?, ?, ?, ?) ");
+            connection.commit();
+        }
+    }
+    
+    /**
+     * Records that a server has the notes, up to the versions given, in one transaction.
+     * Outbox entries the snapshots cover are removed, newer edits stay in the outbox.
+     * @param userID        the user
+     * @param server        the server that acknowledged them
+     * @param notes         the snapshots the server has
+     * @param seq           the server's change number for the user when it acknowledged them
+     * @param advanceCursor whether to also make seq the user's sync cursor with the server, which ends any bootstrap
+     * @throws SQLException 
+     */
+    public static void acknowledge(byte[] userID, String server, Collection<EncryptedNote> notes, long seq, boolean advanceCursor) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            connection.setAutoCommit(false);
             
-            for(EncryptedNote.Fragment frag : en){
-                statement.setBytes(1, noteIDBytes);
-                statement.setBytes(2, frag.getFragmentId().toBytes());
-                statement.setTimestamp(3, frag.getCreateDate());
-                statement.setTimestamp(4, frag.getEditDate());
-                statement.setBoolean(5, frag.getDeleted());
-                statement.setString(6, frag.getNoteBody());
-                statement.setBytes(7, frag.getSignature().toBytes());
+            PreparedStatement sent = connection.prepareStatement(
+                    "DELETE FROM outbox WHERE note_id=? AND fragment_id=? AND version<=?");
+            for(EncryptedNote en : notes){
+                byte[] noteIDBytes = en.getNoteId().toBytes();
                 
-                statement.addBatch();
+                sent.setBytes(1, noteIDBytes);
+                sent.setBytes(2, META_FRAGMENT_ID);
+                sent.setTimestamp(3, en.getMetaEditDate());
+                sent.addBatch();
+                
+                for(EncryptedNote.Fragment frag : en){
+                    sent.setBytes(1, noteIDBytes);
+                    sent.setBytes(2, frag.getFragmentId().toBytes());
+                    sent.setTimestamp(3, frag.getEditDate());
+                    sent.addBatch();
+                }
             }
+            sent.executeBatch();
             
-            statement.executeBatch();
+            if(advanceCursor){
+                PreparedStatement cursor = connection.prepareStatement(
+                        "REPLACE INTO sync_cursor (server,user_id,last_seq,bootstrap_resume) VALUES (?, ?, ?, NULL)");
+                cursor.setString(1, server);
+                cursor.setBytes(2, userID);
+                cursor.setLong(3, seq);
+                cursor.execute();
+            }
+            
+            connection.commit();
+        }
+    }
+    
+    /**
+     * Gets the server's change feed cursor from the last completed sync.
+     * @param userID    the user
+     * @param server    the server
+     * @return the cursor, -1 if the user has never synced with the server
+     * @throws SQLException 
+     */
+    public static long getSyncCursor(byte[] userID, String server) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT IFNULL(last_seq, -1) FROM sync_cursor WHERE server=? AND user_id=?");
+            statement.setString(1, server);
+            statement.setBytes(2, userID);
+            ResultSet results = statement.executeQuery();
+            
+            return results.next() ? results.getLong(1) : -1;
+        }
+    }
+    
+    /**
+     * Saves where to resume the bootstrap stream from if it is cut off.
+     * @param userID    the user
+     * @param server    the server
+     * @param token     the resume token of the last page stored
+     * @throws SQLException 
+     */
+    public static void setBootstrapResume(byte[] userID, String server, byte[] token) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            connection.setAutoCommit(false);
+            
+            PreparedStatement insert = connection.prepareStatement(
+                    "INSERT OR IGNORE INTO sync_cursor (server,user_id) VALUES (?, ?)");
+            insert.setString(1, server);
+            insert.setBytes(2, userID);
+            insert.execute();
+            
+            PreparedStatement update = connection.prepareStatement(
+                    "UPDATE sync_cursor SET bootstrap_resume=? WHERE server=? AND user_id=?");
+            update.setBytes(1, token);
+            update.setString(2, server);
+            update.setBytes(3, userID);
+            update.execute();
+            
+            connection.commit();
+        }
+    }
+    
+    /**
+     * Gets where to resume an unfinished bootstrap stream from.
+     * @param userID    the user
+     * @param server    the server
+     * @return the resume token, null if no bootstrap was cut off
+     * @throws SQLException 
+     */
+    public static byte[] getBootstrapResume(byte[] userID, String server) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT bootstrap_resume FROM sync_cursor WHERE server=? AND user_id=?");
+            statement.setString(1, server);
+            statement.setBytes(2, userID);
+            ResultSet results = statement.executeQuery();
+            
+            return results.next() ? results.getBytes(1) : null;
+        }
+    }
+    
+    /**
+     * Gets the saved search index of a user.
+     * @param userID    the user
+     * @return the encrypted part of the index for each note
+     * @throws SQLException 
+     */
+    public static ArrayList<String> loadSearchIndex(byte[] userID) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            PreparedStatement statement = connection.prepareStatement(
+                    "SELECT data FROM search_index_note WHERE user_id=?");
+            statement.setBytes(1, userID);
+            ResultSet results = statement.executeQuery();
+            
+            ArrayList<String> notes = new ArrayList<>();
+            while(results.next()){
+                notes.add(results.getString("data"));
+            }
+            return notes;
+        }
+    }
+    
+    /**
+     * Saves part of the search index of a user in one transaction.
+     * @param userID    the user
+     * @param notes     the encrypted part of the index for each note, null to delete a note's part
+     * @throws SQLException 
+     */
+    public static void saveSearchIndex(byte[] userID, Map<NoteID, String> notes) throws SQLException{
+        try(Connection connection = DriverManager.getConnection(URL_STR)){
+            connection.setAutoCommit(false);
+            
+            PreparedStatement replace = connection.prepareStatement(
+                    "REPLACE INTO search_index_note (user_id,note_id,data) VALUES (?, ?, ?)");
+            PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM search_index_note WHERE user_id=? AND note_id=?");
+            for(Map.Entry<NoteID, String> entry : notes.entrySet()){
+                if(entry.getValue() == null){
+                    delete.setBytes(1, userID);
+                    delete.setBytes(2, entry.getKey().toBytes());
+                    delete.addBatch();
+                }else{
+                    replace.setBytes(1, userID);
+                    replace.setBytes(2, entry.getKey().toBytes());
+                    replace.setString(3, entry.getValue());
+                    replace.addBatch();
+                }
+            }
+            replace.executeBatch();
+            delete.executeBatch();
             
             connection.commit();
         }
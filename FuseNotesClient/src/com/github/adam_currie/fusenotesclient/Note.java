@@ -36,6 +36,7 @@ import org.bouncycastle.crypto.InvalidCipherTextException;
 public class Note{
     private final EncryptedNote encryptedNote;
     private final AESEncryption aes;
+    private final BlindIndexer blindIndexer;
     
     private NoteListener noteListener = null;
     
@@ -44,22 +45,24 @@ public class Note{
     
     //hidden from public
     //listener is for internal use
-    Note(EncryptedNote encryptedNote, AESEncryption aes){
+    Note(EncryptedNote encryptedNote, AESEncryption aes, BlindIndexer blindIndexer){
         if(!encryptedNote.getSigner().canSign()){
             throw new IllegalArgumentException("encryptedNote is not setup for signing");
         }
         this.encryptedNote = encryptedNote;
         this.aes = aes;
+        this.blindIndexer = blindIndexer;
     }
     
     //hidden from public
     //listener is for internal use(within the package)
-    Note(ECDSASignerVerifier signer, AESEncryption aes){
+    Note(ECDSASignerVerifier signer, AESEncryption aes, BlindIndexer blindIndexer){
         if(!signer.canSign()){
             throw new IllegalArgumentException("signer is not setup for signing");
         }
         encryptedNote = new EncryptedNote(signer);
         this.aes = aes;
+        this.blindIndexer = blindIndexer;
     }
     
     void setNoteListener(NoteListener nl){
@@ -102,7 +105,7 @@ public class Note{
     }
 
     public void setNoteBody(String text){
-        EncryptedNote subNote = encryptedNote.setNoteBody(aes.encrypt(text));
+        EncryptedNote subNote = encryptedNote.setNoteBody(aes.encrypt(text), blindIndexer.getTokens(text));
         
         //cache to avoid race condition
         NoteListener nl = noteListener;
@@ -36,23 +36,25 @@ import java.sql.Timestamp;
 class NoteFactory{
     private final ECDSASignerVerifier signer;
     private final AESEncryption aes;
+    private final BlindIndexer blindIndexer;
     
     NoteFactory(ECDSASignerVerifier signer, AESEncryption aes){
         this.signer = signer;
         this.aes = aes;
+        this.blindIndexer = new BlindIndexer(signer.getPrivateKey().getD().toByteArray());
     }
     
     Note createNote(NoteID noteID, Timestamp createDate, Timestamp editDate, boolean isDeleted, ECDSASignature signature){
         EncryptedNote en = new EncryptedNote(noteID, signer, createDate, editDate, isDeleted, signature);
-        return new Note(en, aes);
+        return new Note(en, aes, blindIndexer);
     }
 
     Note createNote(){
-        return new Note(signer, aes);
+        return new Note(signer, aes, blindIndexer);
     }
     
     Note createNote(EncryptedNote en){
-        return new Note(en, aes);
+        return new Note(en, aes, blindIndexer);
     }
 
     byte[] getUserID(){
@@ -62,4 +64,12 @@ class NoteFactory{
     ECDSASignerVerifier getSigner(){
         return signer;
     }
+    
+    AESEncryption getAES(){
+        return aes;
+    }
+    
+    BlindIndexer getBlindIndexer(){
+        return blindIndexer;
+    }
 }
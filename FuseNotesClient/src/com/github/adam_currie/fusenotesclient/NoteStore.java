@@ -27,29 +27,44 @@ import com.github.adam_currie.fusenotesshared.ECDSASignature;
 import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
 import com.github.adam_currie.fusenotesshared.ECDSAUtil;
 import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
 import com.github.adam_currie.fusenotesshared.NoteID;
 import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.bouncycastle.crypto.InvalidCipherTextException;
 
 /**
  *
  * @author Adam Currie
  */
-public class NoteStore extends NoteContainer implements Closeable, NoteListener{
+public class NoteStore extends NoteContainer implements Closeable, NoteListener, ServerUpdateListener{
 
     static{
         try{
@@ -61,11 +76,17 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
     }
     
     private static final String LAST_SERVER_SYNC_PATH = "last_server_sync.sav";
+    private static final int SEARCH_INDEX_SAVE_DELAY_SECONDS = 5;
+    private static final int LOAD_BATCH_NOTES = 200;
     private NoteStoreListener storeListener;
-    private final String URL_STR = "http://localhost:8080/FuseNotesServer/NotesServlet";//todo
+    private final String URL_STR = "http://localhost:8080/FuseNotesServer/NoteServlet";//todo
     private URL url;
     private ScheduledExecutorService ses = Executors.newScheduledThreadPool(4);//todo: test performance of different poolsizes
     private ConnectionToServer server;
+    private final ConcurrentHashMap<NoteID, Note> notesByID = new ConcurrentHashMap<>();
+    private final SearchIndex searchIndex;
+    private final AtomicBoolean searchIndexSaveScheduled = new AtomicBoolean();
+    private final MerkleTree merkleTree = new MerkleTree();
     
     /**
      * 
@@ -97,25 +118,31 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
             System.exit(-1);
         }
 
-        //LOAD NOTES
-        
-        ArrayList<Note> notesFromDB = LocalDB.getAllNotes(noteFactory);
-        
-        notes.addAll(notesFromDB);
-        storeListener.notesLoaded(new SkipDeletedNotesIterator(notesFromDB.iterator()));
-        
         try{
-            server = new ConnectionToServer(URL_STR, noteFactory);
+            server = new ConnectionToServer(URL_STR, noteFactory, this);
         }catch(MalformedURLException ex){
             Logger.getLogger(NoteStore.class.getName()).log(Level.SEVERE, null, ex);
             System.exit(-1);
         }
+
+        //LOAD NOTES
         
-        //todo
-        notes.stream().map(n -> n.getEncryptedNote());//debug
-        for(Note note : notes){
-            //todo
-        }
+        LocalDB.resignNotes(noteFactory);
+        
+        //the listener gets each batch as it's read so the first notes can be shown before the rest are loaded
+        ArrayList<Note> notesFromDB = LocalDB.getAllNotes(noteFactory, LOAD_BATCH_NOTES, batch -> {
+            for(Note note : batch){
+                note.setNoteListener(this);
+                notesByID.put(note.getEncryptedNote().getNoteId(), note);
+                merkleTree.update(note.getEncryptedNote());
+            }
+            notes.addAll(batch);
+            storeListener.notesLoaded(new SkipDeletedNotesIterator(batch.iterator()));
+        });
+        searchIndex = loadSearchIndex();
+        
+        //bring the saved index up to date with the notes in the background
+        ses.execute(() -> refreshSearchIndex(notesFromDB));
         
         server.startAutoUpdate(syncIntertvalSeconds, 0);
     }
@@ -125,6 +152,7 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
         //todo: update db and stuff
         Note n = super.addNote();
         n.setNoteListener(this);
+        notesByID.put(n.getEncryptedNote().getNoteId(), n);
         return n;
     }
 
@@ -158,19 +186,22 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
      */
     public Note createNote(boolean waitForEdit){
         Note note = noteFactory.createNote();
+        note.setNoteListener(this);
         
         ses.execute(() -> {
             notes.add(note);
+            notesByID.put(note.getEncryptedNote().getNoteId(), note);
             
             if(!waitForEdit){
                 try{
-                    LocalDB.addOrUpdate(note);
+                    LocalDB.addOrUpdate(note, true);
                 }catch(SQLException ex){
                     Logger.getLogger(NoteStore.class.getName()).log(Level.SEVERE, null, ex);
                     //todo retry
                 }
                 
-                //todo: send to server and stuff
+                merkleTree.update(note.getEncryptedNote().getSnapshot());
+                server.uploadQueued();
             }
         });
 
@@ -180,6 +211,85 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
     public String getPrivateKey(){
         return noteFactory.getSigner().getPrivateKeyString();
     }
+    
+    /**
+     * Searches the text of all notes without decrypting them.
+     * Words ending in * match as prefixes and quoted words must appear consecutively.
+     * Notes are indexed in the background so very recent edits may not be found yet.
+     * @param query the query
+     * @return the notes matching every term of the query
+     */
+    public List<Note> search(String query){
+        ArrayList<Note> results = new ArrayList<>();
+        for(NoteID id : searchIndex.search(query)){
+            Note note = notesByID.get(id);
+            if(note != null && !note.getDeleted()){
+                results.add(note);
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Searches the server for notes containing every word of the query, without revealing the words to it.
+     * Only the matching notes are downloaded, they are added to the store if they are new.
+     * @param query the words to search for
+     * @return the matching notes
+     * @throws IOException if the server can't be reached
+     */
+    public List<Note> searchServer(String query) throws IOException{
+        List<EncryptedNote> found = server.search(noteFactory.getBlindIndexer().getQueryTokens(query));
+        updatesReceived(found);
+        
+        ArrayList<Note> results = new ArrayList<>(found.size());
+        for(EncryptedNote en : found){
+            Note note = notesByID.get(en.getNoteId());
+            if(note != null && !note.getDeleted()){
+                results.add(note);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Writes all the notes, including deleted ones, in the {@link NoteCodec NoteCodec} format.
+     * The notes stay encrypted so the export can only be read with the same key.
+     * @param out   the output, not closed
+     * @throws IOException if writing fails
+     */
+    public void exportNotes(OutputStream out) throws IOException{
+        ArrayList<EncryptedNote> snapshots = new ArrayList<>(notesByID.size());
+        for(Note note : notesByID.values()){
+            snapshots.add(note.getEncryptedNote().getSnapshot());
+        }
+        
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+        NoteCodec.writeNotes(dataOut, snapshots);
+        dataOut.flush();
+    }
+    
+    /**
+     * Merges notes written by {@link #exportNotes(OutputStream) exportNotes} into the store and queues them for the server.
+     * @param in    the input, not closed
+     * @throws IOException if reading fails, the data is invalid or the notes weren't exported with this key
+     */
+    public void importNotes(InputStream in) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
+        for(int read; (read = in.read(buffer)) != -1;){
+            bytes.write(buffer, 0, read);
+        }
+        
+        ArrayList<EncryptedNote> imported = NoteCodec.readNotes(ByteBuffer.wrap(bytes.toByteArray()), noteFactory.getSigner());
+        for(EncryptedNote note : imported){
+            if(!note.checkSignatures()){
+                throw new IOException("Notes weren't exported with this key.");
+            }
+        }
+        
+        merge(imported, true);
+        server.uploadQueued();
+    }
 
     /**
      * Shuts down the instance and waits for all threads to stop.
@@ -200,17 +310,161 @@ public class NoteStore extends NoteContainer implements Closeable, NoteListener{
      * Shuts down the instance without blocking.
      */
     public void shutdown(){
+        server.shutdown();
+        ses.execute(this::saveSearchIndex);
         ses.shutdown();
     }
 
     @Override
     public void noteChanged(Note note, EncryptedNote subNote){
         try{
-            LocalDB.addOrUpdate(noteFactory.createNote(subNote));//todo: maybe change this, like the createNote(EncryptedNote) method will probably need the other fields of note like the upcoming syncedwithserver flag
+            LocalDB.addOrUpdate(noteFactory.createNote(subNote), true);//todo: maybe change this, like the createNote(EncryptedNote) method will probably need the other fields of note like the upcoming syncedwithserver flag
         }catch(SQLException ex){
             Logger.getLogger(NoteStore.class.getName()).log(Level.SEVERE, null, ex);
             //todo retry
         }
+        
+        merkleTree.update(subNote);
+        server.uploadQueued();
+        ses.execute(() -> indexNote(note));
+    }
+
+    @Override
+    public void updatesReceived(List<EncryptedNote> updates){
+        merge(updates, false);
+    }
+    
+    /**
+     * Merges notes into the store and saves them in one transaction.
+     * @param updates       full or partial snapshots of the notes
+     * @param queueUpload   whether to put the merged notes in the outbox
+     */
+    private void merge(List<EncryptedNote> updates, boolean queueUpload){
+        ArrayList<Note> merged = new ArrayList<>(updates.size());
+        ArrayList<Note> snapshots = new ArrayList<>(updates.size());
+        for(EncryptedNote update : updates){
+            NoteID id = update.getNoteId();
+            
+            Note note = notesByID.get(id);
+            if(note == null){
+                Note created = noteFactory.createNote(update);
+                created.setNoteListener(this);
+                note = notesByID.putIfAbsent(id, created);
+                if(note == null){
+                    note = created;
+                    notes.add(created);
+                }else{
+                    note.getEncryptedNote().merge(update);
+                }
+            }else{
+                note.getEncryptedNote().merge(update);
+            }
+            merkleTree.update(update);
+            
+            merged.add(note);
+            snapshots.add(noteFactory.createNote(note.getEncryptedNote().getSnapshot()));
+        }
+        
+        try{
+            LocalDB.addOrUpdateAll(snapshots, queueUpload);
+        }catch(SQLException ex){
+            Logger.getLogger(NoteStore.class.getName()).log(Level.SEVERE, null, ex);
+            //todo retry
+        }
+        
+        for(Note note : merged){
+            indexNote(note);
+            storeListener.noteUpdateLoaded(note);
+        }
+    }
+    
+    @Override
+    public MerkleTree getMerkleTree(){
+        return merkleTree;
+    }
+
+    @Override
+    public EncryptedNote getSnapshot(NoteID noteID, Set<FragmentID> fragmentIDs){
+        Note note = notesByID.get(noteID);
+        return note == null ? null : note.getEncryptedNote().getSnapshot(fragmentIDs);
+    }
+    
+    private void indexNote(Note note){
+        NoteID id = note.getEncryptedNote().getNoteId();
+        if(note.getDeleted()){
+            searchIndex.remove(id);
+        }else{
+            searchIndex.update(id, note.getEditDate().getTime(), note.getNoteBody());
+        }
+        
+        //save once edits settle down
+        if(searchIndexSaveScheduled.compareAndSet(false, true)){
+            ses.schedule(() -> {
+                searchIndexSaveScheduled.set(false);
+                saveSearchIndex();
+            }, SEARCH_INDEX_SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Re-indexes notes that changed since the index was saved and drops ones that no longer exist.
+     * @param loaded    the notes loaded from the db
+     */
+    private void refreshSearchIndex(Iterable<Note> loaded){
+        for(Note note : loaded){
+            NoteID id = note.getEncryptedNote().getNoteId();
+            if(note.getDeleted()){
+                searchIndex.remove(id);
+            }else if(!searchIndex.isCurrent(id, note.getEditDate().getTime())){
+                searchIndex.update(id, note.getEditDate().getTime(), note.getNoteBody());
+            }
+        }
+        
+        for(NoteID id : searchIndex.getNoteIDs()){
+            Note note = notesByID.get(id);
+            if(note == null || note.getDeleted()){
+                searchIndex.remove(id);
+            }
+        }
+        
+        saveSearchIndex();
+    }
+    
+    private SearchIndex loadSearchIndex(){
+        SearchIndex index = new SearchIndex();
+        try{
+            for(String encrypted : LocalDB.loadSearchIndex(noteFactory.getUserID())){
+                index.addFromBytes(noteFactory.getAES().decryptBytes(encrypted));
+            }
+            return index;
+        }catch(SQLException | IOException | InvalidCipherTextException ex){
+            Logger.getLogger(NoteStore.class.getName()).log(Level.WARNING, "search index could not be loaded, rebuilding it", ex);
+        }
+        
+        return new SearchIndex();
+    }
+    
+    /**
+     * Saves the notes whose part of the search index changed since the last save, does nothing if none did.
+     */
+    private void saveSearchIndex(){
+        Set<NoteID> changed = searchIndex.takeChanged();
+        if(changed.isEmpty()){
+            return;
+        }
+        
+        HashMap<NoteID, String> encrypted = new HashMap<>();
+        for(NoteID id : changed){
+            byte[] bytes = searchIndex.noteToBytes(id);
+            encrypted.put(id, bytes == null ? null : noteFactory.getAES().encrypt(bytes));
+        }
+        
+        try{
+            LocalDB.saveSearchIndex(noteFactory.getUserID(), encrypted);
+        }catch(SQLException ex){
+            searchIndex.markChanged(changed);
+            Logger.getLogger(NoteStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
     }
 
     private static class SkipDeletedNotesIterator implements Iterator<Note>{
@@ -32,6 +32,7 @@ import java.util.Iterator;
 public interface NoteStoreListener{
     /**
      * Called when notes are loaded(not when one is created using {@link #NoteStore.createNote(boolean) createNote}).
+     * Notes read at startup are passed in batches as they are read, so this can be called several times.
      * Called from secondary threads.
      * @param iterator to iterate over the notes
      */
@@ -0,0 +1,382 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * WebSocket connection that receives change notifications from the server, see {@link Protocol#NOTIFY_PATH NOTIFY_PATH}.
+ * Just enough of RFC 6455 for this: text messages from the server, pings both ways, and closing.
+ * Runs on its own thread and reconnects with backoff when the connection drops.
+ * @author Adam Currie
+ */
+class NotificationChannel{
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int PING_INTERVAL_MILLIS = 30 * 1000;
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 5 * 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5 * 60 * 1000;
+    private static final int MAX_FRAME_LENGTH = 64 * 1024;
+    
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+    
+    private static final SecureRandom random = new SecureRandom();
+    
+    private final URL serverUrl;
+    private final ECDSASignerVerifier signer;
+    private final Listener listener;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+    private volatile Socket socket;
+    private DataInputStream input;//only used by the channel's thread
+    
+    /**
+     * Receives the state of the channel, called from the channel's thread.
+     */
+    interface Listener{
+        
+        //connected and subscribed, notifications sent while disconnected were missed
+        void connected();
+        
+        //the user's notes changed on the server
+        void changed();
+        
+        //the connection dropped, reconnecting will be retried
+        void disconnected();
+    }
+    
+    /**
+     * 
+     * @param serverUrl the http(s) url of the note servlet
+     * @param signer    the user to get notifications for, signs the server's challenge
+     * @param listener  receives notifications
+     */
+    NotificationChannel(URL serverUrl, ECDSASignerVerifier signer, Listener listener){
+        this.serverUrl = serverUrl;
+        this.signer = signer;
+        this.listener = listener;
+        thread = new Thread(this::run, "notification-channel");
+        thread.setDaemon(true);
+    }
+    
+    void start(){
+        thread.start();
+    }
+    
+    /**
+     * Closes the connection and stops reconnecting, the listener won't be called after this returns.
+     */
+    void stop(){
+        stopped = true;
+        thread.interrupt();
+        closeSocket();
+    }
+    
+    private void run(){
+        long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+        
+        while(!stopped){
+            boolean wasConnected = false;
+            try{
+                connect();
+                if(stopped){
+                    break;
+                }
+                wasConnected = true;
+                reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+                listener.connected();
+                
+                receive();
+            }catch(IOException ex){
+                if(!stopped){
+                    Logger.getLogger(NotificationChannel.class.getName()).log(Level.FINE, "notification channel dropped", ex);
+                }
+            }finally{
+                closeSocket();
+            }
+            
+            if(stopped){
+                break;
+            }
+            if(wasConnected){
+                listener.disconnected();
+            }
+            
+            try{
+                Thread.sleep(reconnectDelay + random.nextInt((int)(reconnectDelay / 2) + 1));
+            }catch(InterruptedException ex){
+                break;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MILLIS);
+        }
+    }
+    
+    /**
+     * Opens the socket, does the upgrade handshake and subscribes by signing the server's challenge.
+     */
+    private void connect() throws IOException{
+        boolean secure = "https".equalsIgnoreCase(serverUrl.getProtocol());
+        int port = serverUrl.getPort() != -1 ? serverUrl.getPort() : (secure ? 443 : 80);
+        
+        Socket s = secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+        socket = s;
+        if(stopped){
+            throw new IOException("stopped");
+        }
+        s.connect(new InetSocketAddress(serverUrl.getHost(), port), CONNECT_TIMEOUT_MILLIS);
+        s.setSoTimeout(PING_INTERVAL_MILLIS);
+        
+        byte[] keyBytes = new byte[16];
+        random.nextBytes(keyBytes);
+        String key = Base64.getEncoder().encodeToString(keyBytes);
+        
+        String request = 
+                "GET " + serverUrl.getPath() + Protocol.NOTIFY_PATH + " HTTP/1.1\r\n" +
+                "Host: " + serverUrl.getHost() + (serverUrl.getPort() != -1 ? ":" + port : "") + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + key + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "\r\n";
+        OutputStream out = s.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        
+        InputStream in = new BufferedInputStream(s.getInputStream());
+        String status = readLine(in);
+        if(!status.startsWith("HTTP/1.1 101")){
+            throw new IOException("Upgrade refused: " + status);
+        }
+        
+        String accept = null;
+        for(String line; !(line = readLine(in)).isEmpty();){
+            int colon = line.indexOf(':');
+            if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")){
+                accept = line.substring(colon + 1).trim();
+            }
+        }
+        if(!expectedAccept(key).equals(accept)){
+            throw new IOException("Invalid Sec-WebSocket-Accept");
+        }
+        
+        input = new DataInputStream(in);
+        byte[] challenge = readChallenge();
+        String subscribe = Base64.getEncoder().encodeToString(signer.getPublicKeyBytes()) + " " 
+                + Base64.getEncoder().encodeToString(signer.signChallenge(challenge).toBytes());
+        writeFrame(OP_TEXT, subscribe.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Reads the server's first message, pings can come before it.
+     */
+    private byte[] readChallenge() throws IOException{
+        while(true){
+            int b0 = input.readUnsignedByte();
+            byte[] payload = readPayload(b0);
+            
+            switch(b0 & 0x0F){
+                case OP_TEXT:
+                    try{
+                        return Base64.getDecoder().decode(new String(payload, StandardCharsets.UTF_8));
+                    }catch(IllegalArgumentException ex){
+                        throw new IOException("Invalid challenge", ex);
+                    }
+                case OP_PING:
+                    writeFrame(OP_PONG, payload);
+                    break;
+                default:
+                    throw new IOException("Expected a challenge, got opcode: " + (b0 & 0x0F));
+            }
+        }
+    }
+    
+    /**
+     * Reads frames until the connection closes.
+     */
+    private void receive() throws IOException{
+        boolean awaitingPong = false;
+        
+        while(!stopped){
+            int b0;
+            try{
+                b0 = input.read();
+            }catch(SocketTimeoutException ex){
+                //quiet for a whole interval, make sure the connection is still there
+                if(awaitingPong){
+                    throw new IOException("Ping timed out");
+                }
+                writeFrame(OP_PING, new byte[0]);
+                awaitingPong = true;
+                continue;
+            }
+            if(b0 < 0){
+                throw new EOFException();
+            }
+            byte[] payload = readPayload(b0);
+            awaitingPong = false;
+            
+            int opcode = b0 & 0x0F;
+            switch(opcode){
+                case OP_TEXT:
+                case OP_BINARY:
+                case OP_CONTINUATION:
+                    //the only thing the server sends is the change notification, no need to reassemble messages
+                    if((b0 & 0x80) != 0){
+                        listener.changed();
+                    }
+                    break;
+                case OP_PING:
+                    writeFrame(OP_PONG, payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    writeFrame(OP_CLOSE, payload.length >= 2 ? new byte[]{payload[0], payload[1]} : new byte[0]);
+                    return;
+                default:
+                    throw new IOException("Unknown opcode: " + opcode);
+            }
+        }
+    }
+    
+    /**
+     * Reads the rest of a frame after its first byte.
+     */
+    private byte[] readPayload(int b0) throws IOException{
+        int b1 = input.readUnsignedByte();
+        boolean masked = (b1 & 0x80) != 0;
+        long length = b1 & 0x7F;
+        if(length == 126){
+            length = input.readUnsignedShort();
+        }else if(length == 127){
+            length = input.readLong();
+        }
+        if(length < 0 || length > MAX_FRAME_LENGTH){
+            throw new IOException("Frame too large: " + length);
+        }
+        
+        byte[] mask = new byte[4];
+        if(masked){
+            input.readFully(mask);
+        }
+        byte[] payload = new byte[(int)length];
+        input.readFully(payload);
+        if(masked){
+            for(int i = 0; i < payload.length; i++){
+                payload[i] ^= mask[i % 4];
+            }
+        }
+        return payload;
+    }
+    
+    //client frames are always masked
+    private void writeFrame(int opcode, byte[] payload) throws IOException{
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+        frame.write(0x80 | opcode);
+        if(payload.length < 126){
+            frame.write(0x80 | payload.length);
+        }else if(payload.length <= 0xFFFF){
+            frame.write(0x80 | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        }else{
+            frame.write(0x80 | 127);
+            for(int shift = 56; shift >= 0; shift -= 8){
+                frame.write((int)((long)payload.length >>> shift));
+            }
+        }
+        
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.write(mask);
+        for(int i = 0; i < payload.length; i++){
+            frame.write(payload[i] ^ mask[i % 4]);
+        }
+        
+        OutputStream out = socket.getOutputStream();
+        frame.writeTo(out);
+        out.flush();
+    }
+    
+    private void closeSocket(){
+        Socket s = socket;
+        if(s != null){
+            try{
+                s.close();
+            }catch(IOException ex){
+                Logger.getLogger(NotificationChannel.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+    
+    private static String readLine(InputStream in) throws IOException{
+        StringBuilder line = new StringBuilder();
+        for(int c; (c = in.read()) != '\n';){
+            if(c < 0){
+                throw new EOFException();
+            }
+            if(c != '\r'){
+                line.append((char)c);
+            }
+            if(line.length() > 8 * 1024){
+                throw new IOException("Header line too long");
+            }
+        }
+        return line.toString();
+    }
+    
+    private static String expectedAccept(String key){
+        try{
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        }catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+}
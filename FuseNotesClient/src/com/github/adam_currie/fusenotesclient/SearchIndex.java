@@ -0,0 +1,465 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over decrypted note text.
+ * Supports word, prefix(<code>foo*</code>) and phrase(<code>"foo bar"</code>) queries, 
+ * all terms in a query must match.
+ * Holds plain text, so the output of {@link #noteToBytes(NoteID) noteToBytes} must be encrypted before it is persisted.
+ * Notes are saved one at a time, {@link #takeChanged() takeChanged} says which need saving.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class SearchIndex{
+    private static final int FORMAT_VERSION = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /*
+     * lock is used for these
+     */
+        //indexed tokens of each note in order, used for removal and persistence
+        private final HashMap<NoteID, IndexedNote> indexedNotes = new HashMap<>();
+        //term -> note -> sorted positions of the term in the note
+        private final TreeMap<String, HashMap<NoteID, int[]>> postings = new TreeMap<>();
+        //notes updated or removed since they were last saved
+        private final HashSet<NoteID> changed = new HashSet<>();
+    
+    /**
+     * Splits text into normalized(NFKC, lower case) words.
+     * @param text  the text to split
+     * @return the words in order
+     */
+    static List<String> tokenize(String text){
+        ArrayList<String> tokens = new ArrayList<>();
+        if(text == null || text.isEmpty()){
+            return tokens;
+        }
+        
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        for(String token : WORD_SEPARATOR.split(normalized)){
+            if(token.isEmpty()){
+                continue;
+            }
+            if(token.length() > MAX_TOKEN_LENGTH){
+                token = token.substring(0, MAX_TOKEN_LENGTH);
+            }
+            tokens.add(token);
+        }
+        
+        return tokens;
+    }
+    
+    /**
+     * Indexes a note, replacing anything previously indexed for it.
+     * @param noteID    the note
+     * @param version   version of the text, see {@link #isCurrent(NoteID, long) isCurrent}
+     * @param text      the decrypted note text
+     */
+    void update(NoteID noteID, long version, String text){
+        IndexedNote indexed = new IndexedNote(version, tokenize(text).toArray(new String[0]));
+        
+        lock.writeLock().lock();
+        try{
+            removeLocked(noteID);
+            addLocked(noteID, indexed);
+            changed.add(noteID);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes a note from the index.
+     * @param noteID    the note
+     * @return true if the note was indexed
+     */
+    boolean remove(NoteID noteID){
+        lock.writeLock().lock();
+        try{
+            boolean removed = removeLocked(noteID);
+            if(removed){
+                changed.add(noteID);
+            }
+            return removed;
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Checks whether the indexed text of a note is up to date.
+     * @param noteID    the note
+     * @param version   the current version of the note text
+     * @return true if the note is indexed at that version
+     */
+    boolean isCurrent(NoteID noteID, long version){
+        lock.readLock().lock();
+        try{
+            IndexedNote indexed = indexedNotes.get(noteID);
+            return indexed != null && indexed.version == version;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    Set<NoteID> getNoteIDs(){
+        lock.readLock().lock();
+        try{
+            return new HashSet<>(indexedNotes.keySet());
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the notes matching every term of the query.
+     * Words ending in * match as prefixes and quoted words must appear consecutively.
+     * @param query the query
+     * @return ids of the matching notes, empty if the query has no terms
+     */
+    Set<NoteID> search(String query){
+        List<List<Term>> clauses = parseQuery(query);
+        if(clauses.isEmpty()){
+            return Collections.emptySet();
+        }
+        
+        lock.readLock().lock();
+        try{
+            Set<NoteID> results = null;
+            for(List<Term> clause : clauses){
+                Set<NoteID> matches = matchPhrase(clause, results);
+                if(matches.isEmpty()){
+                    return Collections.emptySet();
+                }
+                results = matches;
+            }
+            return results;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Takes the notes updated or removed since the last call, so only those have to be saved.
+     * @return the changed notes, empty if nothing changed
+     */
+    Set<NoteID> takeChanged(){
+        lock.writeLock().lock();
+        try{
+            if(changed.isEmpty()){
+                return Collections.emptySet();
+            }
+            HashSet<NoteID> taken = new HashSet<>(changed);
+            changed.clear();
+            return taken;
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Marks notes as changed again, for when saving them failed.
+     * @param noteIDs   the notes
+     */
+    void markChanged(Collection<NoteID> noteIDs){
+        lock.writeLock().lock();
+        try{
+            changed.addAll(noteIDs);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Serializes the indexed text of one note, the result contains plain text.
+     * @param noteID    the note
+     * @return the serialized note, null if it isn't indexed
+     */
+    byte[] noteToBytes(NoteID noteID){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        lock.readLock().lock();
+        try(DataOutputStream out = new DataOutputStream(bytes)){
+            IndexedNote indexed = indexedNotes.get(noteID);
+            if(indexed == null){
+                return null;
+            }
+            
+            byte[] id = noteID.toBytes();
+            out.writeInt(FORMAT_VERSION);
+            out.writeByte(id.length);
+            out.write(id);
+            out.writeLong(indexed.version);
+            out.writeInt(indexed.tokens.length);
+            for(String token : indexed.tokens){
+                out.writeUTF(token);
+            }
+        }catch(IOException ex){
+            //ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(ex);
+        }finally{
+            lock.readLock().unlock();
+        }
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Adds a note serialized with {@link #noteToBytes(NoteID) noteToBytes}, it isn't marked as changed.
+     * @param bytes the serialized note
+     * @throws IOException if the data is not a valid note
+     */
+    void addFromBytes(byte[] bytes) throws IOException{
+        NoteID noteID;
+        IndexedNote indexed;
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))){
+            int version = in.readInt();
+            if(version != FORMAT_VERSION){
+                throw new IOException("Unsupported search index version: " + version);
+            }
+            
+            byte[] id = new byte[in.readUnsignedByte()];
+            in.readFully(id);
+            long noteVersion = in.readLong();
+            String[] tokens = new String[in.readInt()];
+            for(int t = 0; t < tokens.length; t++){
+                tokens[t] = in.readUTF();
+            }
+            noteID = NoteID.fromBytes(id);
+            indexed = new IndexedNote(noteVersion, tokens);
+        }catch(NegativeArraySizeException ex){
+            throw new IOException("Corrupt search index.", ex);
+        }
+        
+        lock.writeLock().lock();
+        try{
+            removeLocked(noteID);
+            addLocked(noteID, indexed);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private void addLocked(NoteID noteID, IndexedNote indexed){
+        indexedNotes.put(noteID, indexed);
+        
+        //group positions by term
+        HashMap<String, ArrayList<Integer>> termPositions = new HashMap<>();
+        for(int i = 0; i < indexed.tokens.length; i++){
+            termPositions.computeIfAbsent(indexed.tokens[i], k -> new ArrayList<>()).add(i);
+        }
+        
+        for(Map.Entry<String, ArrayList<Integer>> entry : termPositions.entrySet()){
+            int[] positions = new int[entry.getValue().size()];
+            for(int i = 0; i < positions.length; i++){
+                positions[i] = entry.getValue().get(i);
+            }
+            postings.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).put(noteID, positions);
+        }
+    }
+    
+    private boolean removeLocked(NoteID noteID){
+        IndexedNote indexed = indexedNotes.remove(noteID);
+        if(indexed == null){
+            return false;
+        }
+        
+        for(String token : indexed.tokens){
+            HashMap<NoteID, int[]> notes = postings.get(token);
+            if(notes != null){
+                notes.remove(noteID);
+                if(notes.isEmpty()){
+                    postings.remove(token);
+                }
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Finds notes containing the terms of a clause consecutively.
+     * @param phrase        the terms
+     * @param candidates    notes to restrict the search to, or null for all notes
+     */
+    private Set<NoteID> matchPhrase(List<Term> phrase, Set<NoteID> candidates){
+        ArrayList<Map<NoteID, int[]>> termPostings = new ArrayList<>(phrase.size());
+        Map<NoteID, int[]> smallest = null;
+        for(Term term : phrase){
+            Map<NoteID, int[]> notes = getPostings(term);
+            if(notes.isEmpty()){
+                return Collections.emptySet();
+            }
+            if(smallest == null || notes.size() < smallest.size()){
+                smallest = notes;
+            }
+            termPostings.add(notes);
+        }
+        
+        Iterable<NoteID> toCheck = smallest.keySet();
+        if(candidates != null && candidates.size() < smallest.size()){
+            toCheck = candidates;
+        }
+        
+        LinkedHashSet<NoteID> matches = new LinkedHashSet<>();
+        for(NoteID noteID : toCheck){
+            if(candidates != null && !candidates.contains(noteID)){
+                continue;
+            }
+            if(containsPhrase(noteID, termPostings)){
+                matches.add(noteID);
+            }
+        }
+        
+        return matches;
+    }
+    
+    private static boolean containsPhrase(NoteID noteID, List<Map<NoteID, int[]>> termPostings){
+        int[][] positions = new int[termPostings.size()][];
+        for(int i = 0; i < positions.length; i++){
+            positions[i] = termPostings.get(i).get(noteID);
+            if(positions[i] == null){
+                return false;
+            }
+        }
+        
+        for(int start : positions[0]){
+            boolean matched = true;
+            for(int i = 1; i < positions.length && matched; i++){
+                matched = Arrays.binarySearch(positions[i], start + i) >= 0;
+            }
+            if(matched){
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private Map<NoteID, int[]> getPostings(Term term){
+        if(!term.prefix){
+            HashMap<NoteID, int[]> notes = postings.get(term.text);
+            return notes == null ? Collections.emptyMap() : notes;
+        }
+        
+        //merge the positions of every term with the prefix
+        HashMap<NoteID, int[]> merged = new HashMap<>();
+        for(HashMap<NoteID, int[]> notes : postings.subMap(term.text, true, term.text + Character.MAX_VALUE, false).values()){
+            for(Map.Entry<NoteID, int[]> entry : notes.entrySet()){
+                merged.merge(entry.getKey(), entry.getValue(), (a, b) -> {
+                    int[] both = Arrays.copyOf(a, a.length + b.length);
+                    System.arraycopy(b, 0, both, a.length, b.length);
+                    Arrays.sort(both);
+                    return both;
+                });
+            }
+        }
+        
+        return merged;
+    }
+    
+    /**
+     * Splits a query into clauses, each clause is a phrase of one or more terms.
+     */
+    private static List<List<Term>> parseQuery(String query){
+        ArrayList<List<Term>> clauses = new ArrayList<>();
+        if(query == null){
+            return clauses;
+        }
+        
+        String[] parts = query.split("\"", -1);
+        for(int i = 0; i < parts.length; i++){
+            boolean quoted = i % 2 == 1;
+            if(quoted){
+                addClause(clauses, parts[i]);
+            }else{
+                for(String word : parts[i].trim().split("\\s+")){
+                    addClause(clauses, word);
+                }
+            }
+        }
+        
+        return clauses;
+    }
+    
+    private static void addClause(List<List<Term>> clauses, String text){
+        boolean prefix = text.trim().endsWith("*");
+        List<String> tokens = tokenize(text);
+        if(tokens.isEmpty()){
+            return;
+        }
+        
+        ArrayList<Term> clause = new ArrayList<>(tokens.size());
+        for(int i = 0; i < tokens.size(); i++){
+            clause.add(new Term(tokens.get(i), prefix && i == tokens.size() - 1));
+        }
+        clauses.add(clause);
+    }
+    
+    private static class Term{
+        private final String text;
+        private final boolean prefix;
+
+        Term(String text, boolean prefix){
+            this.text = text;
+            this.prefix = prefix;
+        }
+    }
+    
+    private static class IndexedNote{
+        private final long version;
+        private final String[] tokens;
+
+        IndexedNote(long version, String[] tokens){
+            this.version = version;
+            this.tokens = tokens;
+        }
+    }
+}
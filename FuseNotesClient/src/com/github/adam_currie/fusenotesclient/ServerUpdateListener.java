@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ * @author Adam Currie
+ */
+interface ServerUpdateListener{
+    /**
+     * Called from the sync thread when notes have been received from the server.
+     * @param notes partial snapshots of the notes with only the changed fragments, 
+     *              attached to the local signer
+     */
+    void updatesReceived(List<EncryptedNote> notes);
+    
+    /**
+     * Gets the tree of the local notes, for reconciling with the server when there is no sync cursor.
+     * @return the tree, kept up to date with the local notes
+     */
+    MerkleTree getMerkleTree();
+    
+    /**
+     * Gets a local note to send to the server.
+     * @param noteID        the note
+     * @param fragmentIDs   the fragments to include
+     * @return a snapshot of the note's meta data and the fragments, null if there is no such note
+     */
+    EncryptedNote getSnapshot(NoteID noteID, Set<FragmentID> fragmentIDs);
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class BlindIndexerTest{
+    private static final byte[] KEY = "a private key for the blind index".getBytes();
+    
+    private final BlindIndexer indexer = new BlindIndexer(KEY);
+    
+    @Test
+    public void sameInputAndKeyGiveSameTokens(){
+        assertArrayEquals(indexer.getTokens("Some words here"), new BlindIndexer(KEY.clone()).getTokens("Some words here"));
+        assertArrayEquals(indexer.getTokens("Some words here"), indexer.getTokens("here SOME words, some"));
+    }
+    
+    @Test
+    public void otherKeyGivesOtherTokens(){
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        
+        assertFalse(Arrays.equals(indexer.getTokens("word"), new BlindIndexer(otherKey).getTokens("word")));
+    }
+    
+    @Test
+    public void oneSortedTokenPerDistinctWord(){
+        byte[] tokens = indexer.getTokens("b a c a");
+        assertEquals(3 * Protocol.SEARCH_TOKEN_LENGTH, tokens.length);
+        
+        for(int i = Protocol.SEARCH_TOKEN_LENGTH; i < tokens.length; i += Protocol.SEARCH_TOKEN_LENGTH){
+            byte[] previous = Arrays.copyOfRange(tokens, i - Protocol.SEARCH_TOKEN_LENGTH, i);
+            byte[] token = Arrays.copyOfRange(tokens, i, i + Protocol.SEARCH_TOKEN_LENGTH);
+            assertTrue(compareUnsigned(previous, token) < 0);
+        }
+        
+        assertEquals(0, indexer.getTokens("").length);
+    }
+    
+    @Test
+    public void queryTokensMatchNoteTokens(){
+        byte[] tokens = indexer.getTokens("the Quick brown fox");
+        List<byte[]> query = indexer.getQueryTokens("quick FOX");
+        
+        assertEquals(2, query.size());
+        for(byte[] token : query){
+            assertEquals(Protocol.SEARCH_TOKEN_LENGTH, token.length);
+            assertTrue(contains(tokens, token));
+        }
+        assertFalse(contains(tokens, indexer.getQueryTokens("slow").get(0)));
+    }
+    
+    private static boolean contains(byte[] tokens, byte[] token){
+        for(int i = 0; i < tokens.length; i += Protocol.SEARCH_TOKEN_LENGTH){
+            if(Arrays.equals(token, Arrays.copyOfRange(tokens, i, i + Protocol.SEARCH_TOKEN_LENGTH))){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static int compareUnsigned(byte[] a, byte[] b){
+        for(int i = 0; i < a.length; i++){
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(diff != 0){
+                return diff;
+            }
+        }
+        return 0;
+    }
+}
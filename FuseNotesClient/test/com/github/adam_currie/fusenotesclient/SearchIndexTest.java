@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesclient;
+
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class SearchIndexTest{
+    private final SearchIndex index = new SearchIndex();
+    
+    @Test
+    public void tokenizeNormalizesAndSplitsOnNonWords(){
+        assertEquals(Arrays.asList("hello", "world", "42"), SearchIndex.tokenize("Hello, WORLD!  42"));
+        assertEquals(Arrays.asList("fi", "café"), SearchIndex.tokenize("ﬁ CAFÉ"));
+        assertTrue(SearchIndex.tokenize(null).isEmpty());
+        assertTrue(SearchIndex.tokenize(" ,.; ").isEmpty());
+        
+        char[] longWord = new char[100];
+        Arrays.fill(longWord, 'a');
+        assertEquals(64, SearchIndex.tokenize(new String(longWord)).get(0).length());
+    }
+    
+    @Test
+    public void everyTermMustMatch(){
+        NoteID groceries = new NoteID();
+        NoteID work = new NoteID();
+        index.update(groceries, 1, "buy milk and bread");
+        index.update(work, 1, "send the bread report");
+        
+        assertEquals(set(groceries, work), index.search("bread"));
+        assertEquals(set(groceries), index.search("Bread MILK"));
+        assertTrue(index.search("milk report").isEmpty());
+        assertTrue(index.search("   ").isEmpty());
+    }
+    
+    @Test
+    public void prefixAndPhraseQueries(){
+        NoteID a = new NoteID();
+        NoteID b = new NoteID();
+        index.update(a, 1, "the quick brown fox");
+        index.update(b, 1, "brown quick sugar");
+        
+        assertEquals(set(a, b), index.search("qui*"));
+        assertEquals(set(b), index.search("sug*"));
+        assertEquals(set(a), index.search("\"quick brown\""));
+        assertEquals(set(b), index.search("\"brown quick\""));
+        assertEquals(set(a), index.search("\"quick bro*\""));
+        assertTrue(index.search("\"fox quick\"").isEmpty());
+    }
+    
+    @Test
+    public void updateReplacesAndRemoveDrops(){
+        NoteID id = new NoteID();
+        index.update(id, 1, "old words");
+        index.update(id, 2, "new words");
+        
+        assertTrue(index.search("old").isEmpty());
+        assertEquals(set(id), index.search("new"));
+        assertTrue(index.isCurrent(id, 2));
+        assertFalse(index.isCurrent(id, 1));
+        
+        assertTrue(index.remove(id));
+        assertFalse(index.remove(id));
+        assertTrue(index.search("words").isEmpty());
+        assertTrue(index.getNoteIDs().isEmpty());
+    }
+    
+    @Test
+    public void onlyChangedNotesNeedSaving() throws Exception{
+        NoteID kept = new NoteID();
+        NoteID removed = new NoteID();
+        index.update(kept, 7, "kept \"note\" text");
+        index.update(removed, 1, "removed");
+        index.takeChanged();
+        assertTrue(index.takeChanged().isEmpty());
+        
+        index.remove(removed);
+        assertEquals(set(removed), index.takeChanged());
+        assertNull(index.noteToBytes(removed));
+        
+        SearchIndex loaded = new SearchIndex();
+        loaded.addFromBytes(index.noteToBytes(kept));
+        assertTrue(loaded.isCurrent(kept, 7));
+        assertEquals(set(kept), loaded.search("\"kept note\""));
+        assertTrue(loaded.takeChanged().isEmpty());
+    }
+    
+    @Test
+    public void searchesTensOfThousandsOfNotesInMilliseconds(){
+        String[] words = new String[5000];
+        Random random = new Random(1);
+        for(int i = 0; i < words.length; i++){
+            words[i] = Integer.toString(random.nextInt(Integer.MAX_VALUE), 36);
+        }
+        for(int n = 0; n < 30000; n++){
+            StringBuilder text = new StringBuilder();
+            for(int w = 0; w < 50; w++){
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            index.update(new NoteID(), 1, text.toString());
+        }
+        
+        String[] queries = new String[200];
+        for(int i = 0; i < queries.length; i++){
+            String word = words[random.nextInt(words.length)];
+            queries[i] = i % 2 == 0 ? word + " " + words[random.nextInt(words.length)] : word.substring(0, 2) + "*";
+        }
+        for(String query : queries){
+            index.search(query);//warm up
+        }
+        
+        long start = System.nanoTime();
+        for(String query : queries){
+            index.search(query);
+        }
+        long averageMillis = (System.nanoTime() - start) / queries.length / 1000000;
+        
+        assertTrue("average query took " + averageMillis + "ms", averageMillis < 20);
+    }
+    
+    private static Set<NoteID> set(NoteID... ids){
+        HashSet<NoteID> set = new HashSet<>();
+        Collections.addAll(set, ids);
+        return set;
+    }
+}
@@ -34,6 +34,8 @@ import javax.swing.SwingUtilities;
  */
 public class ChangeKeyJPanel extends javax.swing.JPanel{
     
+    private static final long serialVersionUID = 1L;
+    
     private MainJFrame mainFrame;//todo: replace MainJFrame reference with a listener
     
     /*
@@ -25,6 +25,7 @@ package com.github.adam_currie.fusenotesdesktop;
 
 import com.github.adam_currie.fusenotesclient.*;
 import java.awt.Dialog;
+import java.awt.Graphics;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -32,14 +33,16 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.security.InvalidKeyException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.BoxLayout;
 import javax.swing.JDialog;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 /*
  * Name     MainNotesJFrame
@@ -47,11 +50,18 @@ import javax.swing.SwingUtilities;
  */
 public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
     
+    private static final long serialVersionUID = 1L;
+    
     //todo: encrypt with hardware info as the key
     private static final String KEY_PATH = "key.sav";
     private static final int SYN_INTERVAL_SECONDS = 10;//todo: change to like 5 minutes
     
     private NoteStore notes = null;
+    private final NoteTableModel notesModel = new NoteTableModel();
+    private final NoteCellRenderer noteRenderer;
+    private final NoteCellEditor noteEditor;
+    private final StartupMetrics startupMetrics = new StartupMetrics();
+    private boolean loading = false;//true while the NoteStore is opened in the background
 
     public NoteStore getNoteStore(){
         return notes;
@@ -64,8 +74,13 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
     public MainJFrame(){
         initComponents();
         
-        BoxLayout listLayout = new BoxLayout(notesListPanel, BoxLayout.Y_AXIS);
-        notesListPanel.setLayout(listLayout);
+        //rows are a fixed height so only the rows in view are ever rendered
+        noteRenderer = new NoteCellRenderer(this);
+        noteEditor = new NoteCellEditor(this, noteRenderer);
+        notesTable.setModel(notesModel);
+        notesTable.setDefaultRenderer(Note.class, noteRenderer);
+        notesTable.setDefaultEditor(Note.class, noteEditor);
+        notesTable.setRowHeight(noteEditor.getPanel().getPreferredSize().height);
     }
 
     /**
@@ -79,8 +94,9 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
 
         jPanel1 = new javax.swing.JPanel();
         addButton = new javax.swing.JButton();
+        statusLabel = new javax.swing.JLabel();
         notesScrollPane = new javax.swing.JScrollPane();
-        notesListPanel = new javax.swing.JPanel();
+        notesTable = new javax.swing.JTable();
         jMenuBar1 = new javax.swing.JMenuBar();
         jMenu1 = new javax.swing.JMenu();
         jMenu2 = new javax.swing.JMenu();
@@ -100,22 +116,30 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
             }
         });
 
+        statusLabel.setFont(new java.awt.Font("Tahoma", 0, 12)); // NOI18N
+
         javax.swing.GroupLayout jPanel1Layout = new javax.swing.GroupLayout(jPanel1);
         jPanel1.setLayout(jPanel1Layout);
         jPanel1Layout.setHorizontalGroup(
             jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, jPanel1Layout.createSequentialGroup()
-                .addContainerGap(598, Short.MAX_VALUE)
+                .addContainerGap()
+                .addComponent(statusLabel)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, 520, Short.MAX_VALUE)
                 .addComponent(addButton, javax.swing.GroupLayout.PREFERRED_SIZE, 32, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addContainerGap())
         );
         jPanel1Layout.setVerticalGroup(
             jPanel1Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addComponent(addButton, javax.swing.GroupLayout.Alignment.TRAILING, javax.swing.GroupLayout.PREFERRED_SIZE, 32, javax.swing.GroupLayout.PREFERRED_SIZE)
+            .addComponent(statusLabel, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
         );
 
-        notesListPanel.setLayout(new javax.swing.BoxLayout(notesListPanel, javax.swing.BoxLayout.LINE_AXIS));
-        notesScrollPane.setViewportView(notesListPanel);
+        notesTable.setShowHorizontalLines(false);
+        notesTable.setShowVerticalLines(false);
+        notesTable.setSurrendersFocusOnKeystroke(true);
+        notesTable.setTableHeader(null);
+        notesScrollPane.setViewportView(notesTable);
 
         jMenu1.setText("File");
         jMenuBar1.add(jMenu1);
@@ -157,10 +181,11 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
     }//GEN-LAST:event_changePassButtonActionPerformed
 
     private void addButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_addButtonActionPerformed
-        NoteJPanel notePanel = new NoteJPanel(notes.createNote(true), this);
-        notesListPanel.add(notePanel);
-        notePanel.requestFocus();
-        notesListPanel.revalidate();
+        int row = notesModel.add(notes.createNote(true));
+        if(notesTable.editCellAt(row, 0)){
+            notesTable.scrollRectToVisible(notesTable.getCellRect(row, 0, true));
+            noteEditor.getPanel().requestFocus();
+        }
     }//GEN-LAST:event_addButtonActionPerformed
 
     /*
@@ -178,9 +203,11 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
             }
             notes = new NoteStore(password, SYN_INTERVAL_SECONDS, this);
             savePassword(password);
-            notesListPanel.removeAll();
-            notesListPanel.revalidate();
-            notesListPanel.repaint();
+            if(notesTable.isEditing()){
+                noteEditor.cancelCellEditing();
+            }
+            notesModel.clear();
+            noteRenderer.clear();
             return true;
         }catch(SQLException | InvalidKeyException ex){
             Logger.getLogger(MainJFrame.class.getName()).log(Level.SEVERE, null, ex);
@@ -224,7 +251,7 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
             MainJFrame frame = new MainJFrame();
             frame.setLocationRelativeTo(null);//center
             frame.setVisible(true);
-            frame.initNoteStore();
+            frame.loadNoteStore();
         });
     }
     
@@ -235,8 +262,9 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
     private javax.swing.JMenu jMenu2;
     private javax.swing.JMenuBar jMenuBar1;
     private javax.swing.JPanel jPanel1;
-    private javax.swing.JPanel notesListPanel;
     private javax.swing.JScrollPane notesScrollPane;
+    private javax.swing.JTable notesTable;
+    private javax.swing.JLabel statusLabel;
     // End of variables declaration//GEN-END:variables
     
     /*
@@ -290,50 +318,140 @@ public class MainJFrame extends javax.swing.JFrame implements NoteStoreListener{
         }
     }
     
+    @Override
+    public void paint(Graphics g){
+        super.paint(g);
+        startupMetrics.firstPaint();
+    }
+    
     /*
-     * Method                       initNoteStore
-     * Description                  initialize the NoteStore, load the key or get one from the user
+     * Method                       loadNoteStore
+     * Description                  opens the NoteStore with the saved key on a background thread,
+     *                              the frame shows the notes as they are read and can be used once it's open,
+     *                              the user is asked for a key if there isn't a valid one saved
      */
-    private void initNoteStore(){
+    private void loadNoteStore(){
         String key = loadPassword();
+        setLoading(true);
         
-        if(notes != null){
-            notes.shutdown();
-        }
-        
-        try{
-            notes = new NoteStore(key, SYN_INTERVAL_SECONDS, this);
-        }catch(InvalidKeyException | NullPointerException ex){
-            while(true){
-                showKeyChangeDlg();
-                if(notes == null){
-                    int result = JOptionPane.showConfirmDialog(this, "A key is required to use this application.", "Key Required", JOptionPane.OK_CANCEL_OPTION);
-                    if(result == JOptionPane.CANCEL_OPTION){
-                        System.exit(0);
+        new SwingWorker<NoteStore, Void>(){
+            @Override
+            protected NoteStore doInBackground() throws Exception{
+                return new NoteStore(key, SYN_INTERVAL_SECONDS, MainJFrame.this);
+            }
+
+            @Override
+            protected void done(){
+                setLoading(false);
+                try{
+                    notes = get();
+                    startupMetrics.interactive();
+                }catch(InterruptedException | ExecutionException ex){
+                    Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                    if(cause instanceof InvalidKeyException || cause instanceof NullPointerException){
+                        askForKey();
+                    }else{
+                        JOptionPane.showMessageDialog(MainJFrame.this, cause, "Exception", JOptionPane.ERROR_MESSAGE);
+                        System.exit(-1);
                     }
-                }else{
-                    break;
                 }
             }
-        }catch(SQLException ex){
-            JOptionPane.showMessageDialog(this, ex, "Exception", JOptionPane.ERROR_MESSAGE);
-            System.exit(-1);
+        }.execute();
+    }
+    
+    /*
+     * Method                       setLoading
+     * Description                  shows or hides the loading state, notes can't be added or the key changed while loading
+     * Params           
+     *  boolean loading             true while the NoteStore is being opened
+     */
+    private void setLoading(boolean loading){
+        this.loading = loading;
+        addButton.setEnabled(!loading);
+        changePassButton.setEnabled(!loading);
+        statusLabel.setText(loading ? "loading notes..." : "");
+    }
+    
+    /*
+     * Method                       askForKey
+     * Description                  get a key from the user, exits if they refuse
+     */
+    private void askForKey(){
+        while(true){
+            showKeyChangeDlg();
+            if(notes == null){
+                int result = JOptionPane.showConfirmDialog(this, "A key is required to use this application.", "Key Required", JOptionPane.OK_CANCEL_OPTION);
+                if(result == JOptionPane.CANCEL_OPTION){
+                    System.exit(0);
+                }
+            }else{
+                break;
+            }
+        }
+    }
+    
+    /*
+     * Method                       noteRemoved
+     * Description                  removes a note's row after it was deleted or its creation was cancelled
+     * Params           
+     *  Note note                   the note
+     */
+    void noteRemoved(Note note){
+        if(notesTable.isEditing() && noteEditor.getPanel().getNote() == note){
+            noteEditor.cancelCellEditing();
         }
+        notesModel.remove(note);
+        noteRenderer.forget(note);
+    }
+    
+    /*
+     * Method                       noteSaved
+     * Description                  repaints a note's row after its text was saved
+     * Params           
+     *  Note note                   the note
+     */
+    void noteSaved(Note note){
+        noteRenderer.forget(note);
+        notesModel.noteChanged(note);
     }
     
     @Override
     public void notesLoaded(Iterator<Note> iterator){
-        SwingUtilities.invokeLater(() -> {            
-            while(iterator.hasNext()){
-                NoteJPanel notePanel = new NoteJPanel(iterator.next(), this);
-                notesListPanel.add(notePanel);
-                notesListPanel.revalidate();
+        //notes are only added to the model, their bodies are decrypted when their rows are first painted
+        ArrayList<Note> loaded = new ArrayList<>();
+        while(iterator.hasNext()){
+            loaded.add(iterator.next());
+        }
+        SwingUtilities.invokeLater(() -> {
+            notesModel.addAll(loaded);
+            if(notesModel.getRowCount() > 0){
+                startupMetrics.firstNotes();
+            }
+            if(loading){
+                statusLabel.setText("loading notes... " + notesModel.getRowCount());
             }
         });
     }
     
     @Override
     public void noteUpdateLoaded(Note note){
-        throw new UnsupportedOperationException("Not supported yet.");
+        SwingUtilities.invokeLater(() -> {
+            noteRenderer.forget(note);
+            if(notesModel.indexOf(note) < 0){
+                if(!note.getDeleted()){
+                    notesModel.add(note);
+                }
+                return;
+            }
+            
+            if(note.getDeleted()){
+                noteRemoved(note);
+                return;
+            }
+            if(notesTable.isEditing() && noteEditor.getPanel().getNote() == note){
+                noteEditor.getPanel().noteUpdated();
+            }
+            notesModel.noteChanged(note);
+        });
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesdesktop;
+
+import com.github.adam_currie.fusenotesclient.Note;
+import java.awt.Component;
+import javax.swing.AbstractCellEditor;
+import javax.swing.JTable;
+import javax.swing.table.TableCellEditor;
+
+/*
+ * Name     NoteCellEditor
+ * Purpose  Edits notes in the notes table with one NoteJPanel shared by every row.
+ *          Editing can't be stopped while the panel has unsaved changes, they have to be saved or cancelled first.
+ */
+class NoteCellEditor extends AbstractCellEditor implements TableCellEditor{
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final NoteJPanel panel;
+    private final NoteCellRenderer renderer;
+
+    /*
+     * Method                       NoteCellEditor
+     * Description                  constructor
+     * Params           
+     *  MainJFrame mainFrame        the main frame
+     *  NoteCellRenderer renderer   the table's renderer, for its cached bodies
+     */
+    NoteCellEditor(MainJFrame mainFrame, NoteCellRenderer renderer){
+        panel = new NoteJPanel(mainFrame);
+        this.renderer = renderer;
+    }
+    
+    /*
+     * Method                       getPanel
+     * Description                  gets the panel, which is showing the note being edited while editing
+     * Returns          
+     *  NoteJPanel                  the panel
+     */
+    NoteJPanel getPanel(){
+        return panel;
+    }
+
+    @Override
+    public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int column){
+        Note note = (Note)value;
+        panel.setNote(note, renderer.getBody(note));
+        return panel;
+    }
+
+    @Override
+    public Note getCellEditorValue(){
+        return panel.getNote();
+    }
+
+    @Override
+    public boolean stopCellEditing(){
+        if(panel.hasUnsavedChanges()){
+            return false;
+        }
+        return super.stopCellEditing();
+    }
+}
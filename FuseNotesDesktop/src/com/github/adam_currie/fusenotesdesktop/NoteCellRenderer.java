@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesdesktop;
+
+import com.github.adam_currie.fusenotesclient.Note;
+import java.awt.Component;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.swing.JTable;
+import javax.swing.table.TableCellRenderer;
+
+/*
+ * Name     NoteCellRenderer
+ * Purpose  Paints notes in the notes table with one NoteJPanel that is moved from row to row, 
+ *          so only the rows in view are laid out and painted.
+ *          Bodies are decrypted the first time their row is painted and cached for the most recently painted notes.
+ */
+class NoteCellRenderer implements TableCellRenderer{
+    private static final int MAX_CACHED_BODIES = 256;
+    
+    private final NoteJPanel panel;
+    private final LinkedHashMap<Note, CachedBody> bodies = new LinkedHashMap<Note, CachedBody>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Note, CachedBody> eldest){
+            return size() > MAX_CACHED_BODIES;
+        }
+    };
+
+    /*
+     * Method                       NoteCellRenderer
+     * Description                  constructor
+     * Params           
+     *  MainJFrame mainFrame        the main frame
+     */
+    NoteCellRenderer(MainJFrame mainFrame){
+        panel = new NoteJPanel(mainFrame);
+    }
+    
+    /*
+     * Method                       getBody
+     * Description                  gets the note's body from the cache, decrypting it if it changed or isn't cached
+     * Params           
+     *  Note note                   the note
+     * Returns          
+     *  String                      the body
+     */
+    String getBody(Note note){
+        Timestamp edited = note.getEditDate();
+        CachedBody cached = bodies.get(note);
+        if(cached == null || !Objects.equals(cached.edited, edited)){
+            cached = new CachedBody(note.getNoteBody(), edited);
+            bodies.put(note, cached);
+        }
+        return cached.body;
+    }
+    
+    void forget(Note note){
+        bodies.remove(note);
+    }
+    
+    void clear(){
+        bodies.clear();
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column){
+        Note note = (Note)value;
+        panel.setNote(note, getBody(note));
+        return panel;
+    }
+    
+    private static class CachedBody{
+        final String body;
+        final Timestamp edited;
+
+        CachedBody(String body, Timestamp edited){
+            this.body = body;
+            this.edited = edited;
+        }
+    }
+}
@@ -24,42 +24,91 @@
 package com.github.adam_currie.fusenotesdesktop;
 
 import com.github.adam_currie.fusenotesclient.*;
-import java.awt.Container;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
 /*
  * Name     NoteJPanel
- * Purpose  JPanel for displaying and editing a note.
+ * Purpose  JPanel for displaying and editing a note, 
+ *          the notes table paints every row with one and edits the selected row with another.
  */
 public class NoteJPanel extends javax.swing.JPanel{
     
+    private static final long serialVersionUID = 1L;
+    
+    private static final int DIRTY_CHECK_DELAY_MILLIS = 300;
+    
     private static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     private MainJFrame mainFrame;
     private Note note;
+    private String savedBody = "";//text last shown or saved, what edits are compared against
+    private boolean showingText = false;//true while the text is set by the panel rather than typed
+    private final Timer dirtyCheckTimer = new Timer(DIRTY_CHECK_DELAY_MILLIS, e -> checkDirty());
 
     /*
      * Method                       NoteJPanel
-     * Description                  constructor, creates a note panel initialized with the specified note
+     * Description                  constructor, creates a note panel with no note, see setNote
      * Params           
-     *  Note note                   the note to initialize from
      *  MainJFrame mainFrame        the main frame
      * Returns          
      *  NoteJPanel                  the new panel
      */
-    NoteJPanel(Note note, MainJFrame mainFrame){
+    NoteJPanel(MainJFrame mainFrame){
         initComponents();
         this.mainFrame = mainFrame;
+        confirmPanel.setVisible(false);
+        dirtyCheckTimer.setRepeats(false);
+        
+        setupDocumentListener();
+    }
+    
+    /*
+     * Method                       setNote
+     * Description                  shows a note in the panel, discarding unsaved changes to the last one
+     * Params           
+     *  Note note                   the note
+     *  String body                 the note's body, already decrypted
+     */
+    void setNote(Note note, String body){
         this.note = note;
         
         createdLabel.setText("created: " + dateFormat.format(note.getCreateDate()));
         editedLabel.setText("edited: " + dateFormat.format(note.getEditDate()));
-        confirmPanel.setVisible(false);
-        noteTextArea.setText(note.getNoteBody());
-        
-        setupDocumentListener();
+        showText(body);
+        noteTextArea.setCaretPosition(0);
+    }
+    
+    Note getNote(){
+        return note;
+    }
+    
+    /*
+     * Method                       hasUnsavedChanges
+     * Description                  checks if the text was changed and not yet saved or cancelled
+     * Returns          
+     *  boolean                     true if there are unsaved changes
+     */
+    boolean hasUnsavedChanges(){
+        if(dirtyCheckTimer.isRunning()){
+            dirtyCheckTimer.stop();
+            checkDirty();
+        }
+        return confirmPanel.isVisible();
+    }
+    
+    /*
+     * Method                       noteUpdated
+     * Description                  refreshes the panel after the note was changed elsewhere, 
+     *                              the text is left alone while the user is editing it
+     */
+    void noteUpdated(){
+        editedLabel.setText("edited: " + dateFormat.format(note.getEditDate()));
+        if(!hasUnsavedChanges()){
+            showText(note.getNoteBody());
+        }
     }
     
     /*
@@ -213,23 +262,22 @@ public class NoteJPanel extends javax.swing.JPanel{
 
     private void deleteButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deleteButtonActionPerformed
         note.delete();
-        Container parent = getParent();
-        parent.remove(this);
-        parent.revalidate();
-        parent.repaint();
+        dirtyCheckTimer.stop();
+        confirmPanel.setVisible(false);
+        mainFrame.noteRemoved(note);
     }//GEN-LAST:event_deleteButtonActionPerformed
 
     private void cancelButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelButtonActionPerformed
-        if (note.getNoteBody().isEmpty()) {
-            //remove component because note was never created
-            Container parent = getParent();
-            parent.remove(this);
-            parent.revalidate();
-            parent.repaint();
+        dirtyCheckTimer.stop();
+        confirmPanel.setVisible(false);
+        
+        if (savedBody.isEmpty()) {
+            //remove row because note was never created
+            mainFrame.noteRemoved(note);
+            return;
         }
         
-        confirmPanel.setVisible(false);
-        noteTextArea.setText(note.getNoteBody());
+        showText(savedBody);
     }//GEN-LAST:event_cancelButtonActionPerformed
 
     @Override
@@ -238,9 +286,13 @@ public class NoteJPanel extends javax.swing.JPanel{
     }
     
     private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveButtonActionPerformed
-        note.setNoteBody(noteTextArea.getText());
+        String text = noteTextArea.getText();
+        note.setNoteBody(text);
         editedLabel.setText("edited: " + dateFormat.format(new Timestamp(System.currentTimeMillis())));
-        confirmPanel.setVisible(false);
+        dirtyCheckTimer.stop();
+        savedBody = text;
+        showDirty(false);
+        mainFrame.noteSaved(note);
     }//GEN-LAST:event_saveButtonActionPerformed
 
 
@@ -258,24 +310,67 @@ public class NoteJPanel extends javax.swing.JPanel{
     
     /*
      * Method                       noteTextChanged
-     * Description                  called when note text has changed, 
+     * Description                  called when note text has changed, marks it changed right away 
+     *                              and leaves comparing it to the saved text until typing pauses, 
+     *                              so a keystroke costs the same however long the note is
      */
     private void noteTextChanged(){
+        if(showingText){
+            return;
+        }
+        showDirty(true);
+        dirtyCheckTimer.restart();
+    }
+    
+    /*
+     * Method                       checkDirty
+     * Description                  compares the text to the saved text, in case edits put it back the way it was
+     */
+    private void checkDirty(){
+        //a different length is always a change, and String caches the saved text's hash
+        if(noteTextArea.getDocument().getLength() != savedBody.length()){
+            return;
+        }
         String text = noteTextArea.getText();
-        
-        if(text.equals(note.getNoteBody())){
-            if(text.equals("")){
-                //keep cancel but hide save
-                confirmPanel.setVisible(true);
-                saveButton.setVisible(false);
-            }else{
-                //hide confirm panel
-                confirmPanel.setVisible(false);
-            }
-        }else{
+        showDirty(text.hashCode() != savedBody.hashCode() || !text.equals(savedBody));
+    }
+    
+    /*
+     * Method                       showText
+     * Description                  shows text that has no unsaved changes
+     * Params           
+     *  String body                 the text
+     */
+    private void showText(String body){
+        dirtyCheckTimer.stop();
+        savedBody = body;
+        showingText = true;
+        try{
+            noteTextArea.setText(body);
+        }finally{
+            showingText = false;
+        }
+        showDirty(false);
+    }
+    
+    /*
+     * Method                       showDirty
+     * Description                  shows or hides the confirm panel
+     * Params           
+     *  boolean dirty               true if the text has unsaved changes
+     */
+    private void showDirty(boolean dirty){
+        if(dirty){
             //show confirm panel
             confirmPanel.setVisible(true);
             saveButton.setVisible(true);
+        }else if(savedBody.isEmpty()){
+            //keep cancel but hide save
+            confirmPanel.setVisible(true);
+            saveButton.setVisible(false);
+        }else{
+            //hide confirm panel
+            confirmPanel.setVisible(false);
         }
     }
     
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesdesktop;
+
+import com.github.adam_currie.fusenotesclient.Note;
+import java.util.ArrayList;
+import java.util.Collection;
+import javax.swing.table.AbstractTableModel;
+
+/*
+ * Name     NoteTableModel
+ * Purpose  Single column table model holding the notes shown in the main frame, 
+ *          the notes themselves are the cell values so nothing is copied out of them.
+ *          Must only be used from the Event Dispatch Thread.
+ */
+class NoteTableModel extends AbstractTableModel{
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final ArrayList<Note> notes = new ArrayList<>();
+    
+    /*
+     * Method                       addAll
+     * Description                  adds notes to the end of the table as one change
+     * Params           
+     *  Collection<Note> added      the notes to add
+     */
+    void addAll(Collection<Note> added){
+        if(added.isEmpty()){
+            return;
+        }
+        int first = notes.size();
+        notes.addAll(added);
+        fireTableRowsInserted(first, notes.size() - 1);
+    }
+    
+    /*
+     * Method                       add
+     * Description                  adds a note to the end of the table
+     * Params           
+     *  Note note                   the note to add
+     * Returns          
+     *  int                         the row of the note
+     */
+    int add(Note note){
+        notes.add(note);
+        fireTableRowsInserted(notes.size() - 1, notes.size() - 1);
+        return notes.size() - 1;
+    }
+    
+    /*
+     * Method                       remove
+     * Description                  removes a note from the table if it's in it
+     * Params           
+     *  Note note                   the note to remove
+     */
+    void remove(Note note){
+        int row = indexOf(note);
+        if(row >= 0){
+            notes.remove(row);
+            fireTableRowsDeleted(row, row);
+        }
+    }
+    
+    /*
+     * Method                       noteChanged
+     * Description                  repaints the note's row
+     * Params           
+     *  Note note                   the changed note
+     */
+    void noteChanged(Note note){
+        int row = indexOf(note);
+        if(row >= 0){
+            fireTableRowsUpdated(row, row);
+        }
+    }
+    
+    /*
+     * Method                       indexOf
+     * Description                  finds the row of a note
+     * Params           
+     *  Note note                   the note
+     * Returns          
+     *  int                         the row, -1 if the note isn't in the table
+     */
+    int indexOf(Note note){
+        for(int i = 0; i < notes.size(); i++){
+            if(notes.get(i) == note){
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    void clear(){
+        notes.clear();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount(){
+        return notes.size();
+    }
+
+    @Override
+    public int getColumnCount(){
+        return 1;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int columnIndex){
+        return Note.class;
+    }
+
+    @Override
+    public Note getValueAt(int rowIndex, int columnIndex){
+        return notes.get(rowIndex);
+    }
+
+    @Override
+    public boolean isCellEditable(int rowIndex, int columnIndex){
+        return true;
+    }
+
+    @Override
+    public void setValueAt(Object value, int rowIndex, int columnIndex){
+        //the editor changes the note itself
+        fireTableRowsUpdated(rowIndex, rowIndex);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesdesktop;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Name     StartupMetrics
+ * Purpose  Records how long after the JVM started the main frame was first painted, the first notes were shown
+ *          and the frame became usable, each is logged once.
+ *          Thread-safe.
+ */
+class StartupMetrics{
+    
+    private static final long START_MILLIS = ManagementFactory.getRuntimeMXBean().getStartTime();
+    
+    /*
+     * lock on this is used for these
+     */
+        private long firstPaintMillis = -1;
+        private long firstNotesMillis = -1;
+        private long interactiveMillis = -1;
+    
+    synchronized void firstPaint(){
+        if(firstPaintMillis < 0){
+            firstPaintMillis = record("time to first paint");
+        }
+    }
+    
+    synchronized void firstNotes(){
+        if(firstNotesMillis < 0){
+            firstNotesMillis = record("time to first notes");
+        }
+    }
+    
+    synchronized void interactive(){
+        if(interactiveMillis < 0){
+            interactiveMillis = record("time to interactive");
+        }
+    }
+    
+    private static long record(String name){
+        long millis = System.currentTimeMillis() - START_MILLIS;
+        Logger.getLogger(StartupMetrics.class.getName()).log(Level.INFO, "{0}: {1} ms", new Object[]{name, millis});
+        return millis;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decides which requests the server takes on.
+ * Each client address has a token bucket so one client can't use up the server by making requests faster than it should, 
+ * and the number of requests being handled at once is capped for everyone.
+ * Buckets are keyed on the address rather than the user id in the request, 
+ * which isn't authenticated yet when the request is admitted, so nobody can use up another user's bucket.
+ * @author Adam Currie
+ */
+class AdmissionControl{
+    private final double tokensPerMilli;
+    private final double burst;
+    private final int maxClients;
+    private final Semaphore inFlight;
+    
+    /*
+     * lock on buckets is used for this
+     */
+        private final LinkedHashMap<String, Bucket> buckets;
+    
+    /**
+     * 
+     * @param requestsPerSecond sustained request rate allowed for each client
+     * @param burst             requests a client can make at once after being idle
+     * @param maxClients        most clients to track, the least recently seen are forgotten(and start again with a full bucket)
+     * @param maxInFlight       most requests being read or handled at once
+     */
+    AdmissionControl(double requestsPerSecond, int burst, int maxClients, int maxInFlight){
+        this.tokensPerMilli = requestsPerSecond / 1000;
+        this.burst = burst;
+        this.maxClients = maxClients;
+        inFlight = new Semaphore(maxInFlight);
+        buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest){
+                return size() > AdmissionControl.this.maxClients;
+            }
+        };
+    }
+    
+    /**
+     * Takes a slot for a new request, call {@link #exit() exit} when it is done.
+     * @return false if the server is already handling as many requests as it can
+     */
+    boolean tryEnter(){
+        return inFlight.tryAcquire();
+    }
+    
+    void exit(){
+        inFlight.release();
+    }
+    
+    /**
+     * Takes a token from the client's bucket.
+     * @param clientAddress the address the request came from
+     * @return 0 if the request is allowed, 
+     *         otherwise the number of milliseconds until the client can make another request
+     */
+    long tryAcquire(String clientAddress){
+        long now = System.currentTimeMillis();
+        synchronized(buckets){
+            Bucket bucket = buckets.computeIfAbsent(clientAddress, k -> new Bucket(burst, now));
+            
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilled) * tokensPerMilli);
+            bucket.refilled = now;
+            
+            if(bucket.tokens >= 1){
+                bucket.tokens--;
+                return 0;
+            }
+            return (long)Math.ceil((1 - bucket.tokens) / tokensPerMilli);
+        }
+    }
+    
+    private static class Bucket{
+        double tokens;
+        long refilled;
+
+        Bucket(double tokens, long refilled){
+            this.tokens = tokens;
+            this.refilled = refilled;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Note bodies stored as files named by the SHA-256 of their content, in a directory for each user.
+ * A body that is stored again is found by its hash and not written twice.
+ * The store doesn't know what refers to a body, deleting bodies that are no longer used is up to the caller.
+ * Files are written to a temp file and moved into place, so a body file is always complete once it can be found.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class BlobStore{
+    static final int HASH_LENGTH = 32;//bytes
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    private final Path dir;
+    private final AtomicLong tempCount = new AtomicLong();
+
+    /**
+     * 
+     * @param dir   directory to keep the bodies in, created if it doesn't exist
+     * @throws IOException if the directory couldn't be created
+     */
+    BlobStore(Path dir) throws IOException{
+        this.dir = Files.createDirectories(dir);
+    }
+    
+    /**
+     * Stores the body if it isn't already stored.
+     * @param userID    owner of the body
+     * @param body      the body
+     * @return the hash to read it back with
+     * @throws IOException if writing fails
+     */
+    byte[] put(byte[] userID, String body) throws IOException{
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = hash(content);
+        
+        Path file = file(userID, hash);
+        if(Files.exists(file)){
+            return hash;
+        }
+        
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + "." + tempCount.incrementAndGet() + TEMP_SUFFIX);
+        try{
+            Files.write(temp, content);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        }catch(FileAlreadyExistsException ex){
+            //stored at the same time by another upload
+        }finally{
+            Files.deleteIfExists(temp);
+        }
+        return hash;
+    }
+    
+    /**
+     * Reads a stored body.
+     * @param userID    owner of the body
+     * @param hash      the hash returned when it was stored
+     * @return the body
+     * @throws IOException if the body isn't stored or reading fails
+     */
+    String get(byte[] userID, byte[] hash) throws IOException{
+        try(FileChannel channel = FileChannel.open(file(userID, hash), StandardOpenOption.READ)){
+            ByteBuffer content = ByteBuffer.allocate((int)channel.size());
+            while(content.hasRemaining() && channel.read(content) != -1){}
+            content.flip();
+            return StandardCharsets.UTF_8.decode(content).toString();
+        }
+    }
+    
+    /**
+     * Deletes a stored body, the caller must make sure nothing refers to it and nothing is storing it.
+     * @param userID    owner of the body
+     * @param hash      the hash returned when it was stored
+     * @throws IOException if deleting fails
+     */
+    void delete(byte[] userID, byte[] hash) throws IOException{
+        Files.deleteIfExists(file(userID, hash));
+    }
+    
+    /**
+     * Deletes all of the user's bodies.
+     * @param userID    the user
+     * @throws IOException if deleting fails
+     */
+    void removeUser(byte[] userID) throws IOException{
+        Path userDir = userDir(userID);
+        if(!Files.isDirectory(userDir)){
+            return;
+        }
+        try(DirectoryStream<Path> prefixes = Files.newDirectoryStream(userDir)){
+            for(Path prefix : prefixes){
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(prefix)){
+                    for(Path file : files){
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(prefix);
+            }
+        }
+        Files.delete(userDir);
+    }
+    
+    private Path userDir(byte[] userID){
+        return dir.resolve(Base64.getUrlEncoder().withoutPadding().encodeToString(userID));
+    }
+    
+    //first byte of the hash as a sub directory to keep directories small
+    private Path file(byte[] userID, byte[] hash){
+        if(hash.length != HASH_LENGTH){
+            throw new IllegalArgumentException("invalid hash length");
+        }
+        StringBuilder name = new StringBuilder(HASH_LENGTH * 2);
+        for(byte b : hash){
+            name.append(String.format("%02x", b));
+        }
+        return userDir(userID).resolve(name.substring(0, 2)).resolve(name.toString());
+    }
+    
+    private static byte[] hash(byte[] content){
+        try{
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        }catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException("SHA-256 is always available", ex);
+        }
+    }
+}
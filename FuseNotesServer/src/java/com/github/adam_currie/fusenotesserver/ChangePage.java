@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import java.util.ArrayList;
+
+/**
+ * One page of a user's change feed, read with ServerDatabase.getChangesSince.
+ * @author Adam Currie
+ */
+public class ChangePage{
+    private final ArrayList<EncryptedNote> notes;
+    private final long lastSeq;
+    private final boolean more;
+
+    /**
+     * 
+     * @param notes     changed notes, each with only its changed fragments
+     * @param lastSeq   the cursor for the next page, the sequence number of the last change on the page
+     *                  or the user's last sequence number if there are no more
+     * @param more      whether there are changes after this page
+     */
+    public ChangePage(ArrayList<EncryptedNote> notes, long lastSeq, boolean more){
+        this.notes = notes;
+        this.lastSeq = lastSeq;
+        this.more = more;
+    }
+
+    public ArrayList<EncryptedNote> getNotes(){
+        return notes;
+    }
+
+    public long getLastSeq(){
+        return lastSeq;
+    }
+
+    public boolean hasMore(){
+        return more;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of jdbc connections.
+ * Connections are kept open so that per-connection caches(like prepared statements) stay warm.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class ConnectionPool implements AutoCloseable{
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 30 * 1000;
+    private static final String CONNECTION_EXCEPTION_CLASS = "08";
+    
+    private final String url;
+    private final String user;
+    private final String password;
+    private final long borrowTimeoutMillis;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+    private volatile boolean closed = false;
+    
+    /**
+     * 
+     * @param url                   jdbc url
+     * @param user                  database user
+     * @param password              database password
+     * @param maxSize               most connections open at once
+     * @param borrowTimeoutMillis   how long to wait for a connection when all are in use
+     */
+    ConnectionPool(String url, String user, String password, int maxSize, long borrowTimeoutMillis){
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+    
+    /**
+     * Gets a connection, waiting if they are all in use.
+     * Closing the returned connection returns it to the pool.
+     * @return the connection
+     * @throws SQLException if no connection became available in time or one couldn't be opened
+     */
+    PooledConnection borrow() throws SQLException{
+        if(closed){
+            throw new SQLException("Connection pool is closed.");
+        }
+        
+        try{
+            if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)){
+                throw new SQLException("Timed out waiting for a database connection.");
+            }
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection.", ex);
+        }
+        
+        try{
+            //most recently used first, it is the least likely to have timed out
+            for(IdleConnection candidate; (candidate = idle.pollFirst()) != null;){
+                if(System.currentTimeMillis() - candidate.idleSince < VALIDATE_AFTER_IDLE_MILLIS 
+                        || candidate.connection.isValid(VALIDATION_TIMEOUT_SECONDS)){
+                    return new PooledConnection(candidate.connection);
+                }
+                closeQuietly(candidate.connection);
+            }
+            
+            return new PooledConnection(DriverManager.getConnection(url, user, password));
+        }catch(SQLException | RuntimeException ex){
+            permits.release();
+            throw ex;
+        }
+    }
+    
+    private void giveBack(Connection connection, boolean broken){
+        try{
+            if(closed || broken || connection.isClosed()){
+                closeQuietly(connection);
+            }else{
+                //leave it in a clean state for the next borrower
+                if(!connection.getAutoCommit()){
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                idle.offerFirst(new IdleConnection(connection));
+            }
+        }catch(SQLException ex){
+            closeQuietly(connection);
+        }finally{
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+        ArrayList<IdleConnection> toClose = new ArrayList<>();
+        idle.drainTo(toClose);
+        for(IdleConnection c : toClose){
+            closeQuietly(c.connection);
+        }
+    }
+    
+    private static void closeQuietly(Connection connection){
+        try{
+            connection.close();
+        }catch(SQLException ex){
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+    
+    private static class IdleConnection{
+        private final Connection connection;
+        private final long idleSince = System.currentTimeMillis();
+
+        IdleConnection(Connection connection){
+            this.connection = connection;
+        }
+    }
+    
+    /**
+     * A borrowed connection, close to return it to the pool.
+     */
+    class PooledConnection implements AutoCloseable{
+        private final Connection connection;
+        private boolean broken = false;
+        private boolean returned = false;
+
+        private PooledConnection(Connection connection){
+            this.connection = connection;
+        }
+        
+        Connection get(){
+            return connection;
+        }
+        
+        /**
+         * Marks the connection to be closed instead of reused when an error says the connection itself failed, 
+         * those have an SQLState of class 08(connection exception).
+         * Call for every SQLException thrown while using the connection.
+         * @param ex    the error
+         * @return the error, to be rethrown
+         */
+        SQLException failed(SQLException ex){
+            for(Throwable cause = ex; cause != null; cause = cause.getCause()){
+                if(cause instanceof SQLException){
+                    String state = ((SQLException)cause).getSQLState();
+                    if(state != null && state.startsWith(CONNECTION_EXCEPTION_CLASS)){
+                        broken = true;
+                        break;
+                    }
+                }
+            }
+            return ex;
+        }
+
+        @Override
+        public void close(){
+            if(!returned){
+                returned = true;
+                giveBack(connection, broken);
+            }
+        }
+    }
+}
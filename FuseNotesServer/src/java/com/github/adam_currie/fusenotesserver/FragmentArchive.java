@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cold storage for old fragments, a directory of segment files for each user.
+ * Segments are only ever added, each archiving pass writes one, and when a user has more than MAX_SEGMENTS
+ * they are merged into a new one before the old ones are deleted.
+ * Segments are written to a temp file and moved into place so a crash never leaves a partial one.
+ * Each segment holds partial notes, the note meta data at the time plus the archived fragments, 
+ * which merge into the stored notes like any other snapshot.
+ * A segment is [SEGMENT_VERSION: byte][index length: int][index][notes], 
+ * the index is [count: int] then for each note [note id][offset: long][length: int] into the notes, 
+ * and each note is gzipped on its own, so reading a few notes only inflates those.
+ * Segments from before the index are one gzip stream of every note, they are still read and go away with the next merge.
+ * Users are locked separately, striped by user id, reads of the same user share their stripe.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class FragmentArchive{
+    private static final int MAX_SEGMENTS = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int LOCK_STRIPES = 64;
+    private static final int MAX_ID_LENGTH = 64;
+    
+    //gzip streams start with 0x1f, so unindexed segments can't be mistaken for this
+    private static final byte SEGMENT_VERSION = 1;
+    
+    private final Path dir;
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+    private final AtomicLong lastSegment = new AtomicLong();
+
+    /**
+     * 
+     * @param dir   directory to keep the archive in, created if it doesn't exist
+     * @throws IOException if the directory couldn't be created
+     */
+    FragmentArchive(Path dir) throws IOException{
+        this.dir = Files.createDirectories(dir);
+        for(int i = 0; i < LOCK_STRIPES; i++){
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+    
+    /**
+     * Writes a segment with the notes, merging the user's segments if there are too many.
+     * Returns once the segment is on disk, so the fragments can be deleted from the hot tables.
+     * @param verifier  the user
+     * @param notes     partial notes with the fragments to archive
+     * @throws IOException if writing fails
+     */
+    void append(ECDSASignerVerifier verifier, Collection<EncryptedNote> notes) throws IOException{
+        ReadWriteLock lock = lockFor(verifier.getPublicKeyBytes());
+        lock.writeLock().lock();
+        try{
+            Path userDir = Files.createDirectories(userDir(verifier.getPublicKeyBytes()));
+            writeSegment(userDir, notes);
+            
+            List<Path> segments = listSegments(userDir);
+            if(segments.size() > MAX_SEGMENTS){
+                HashMap<NoteID, EncryptedNote> merged = new HashMap<>();
+                for(Path segment : segments){
+                    mergeSegment(segment, verifier, null, merged);
+                }
+                writeSegment(userDir, merged.values());
+                for(Path segment : segments){
+                    Files.delete(segment);
+                }
+            }
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads the archived fragments of some of the user's notes.
+     * @param verifier  the user
+     * @param noteIDs   the notes to read, null for all of them
+     * @return partial notes by id, notes with nothing archived are left out
+     * @throws IOException if reading fails
+     */
+    Map<NoteID, EncryptedNote> read(ECDSASignerVerifier verifier, Set<NoteID> noteIDs) throws IOException{
+        ReadWriteLock lock = lockFor(verifier.getPublicKeyBytes());
+        lock.readLock().lock();
+        try{
+            HashMap<NoteID, EncryptedNote> found = new HashMap<>();
+            Path userDir = userDir(verifier.getPublicKeyBytes());
+            if(Files.isDirectory(userDir)){
+                for(Path segment : listSegments(userDir)){
+                    mergeSegment(segment, verifier, noteIDs, found);
+                }
+            }
+            return found;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Deletes the user's archive.
+     * @param userID    the user
+     * @throws IOException if deleting fails
+     */
+    void removeUser(byte[] userID) throws IOException{
+        ReadWriteLock lock = lockFor(userID);
+        lock.writeLock().lock();
+        try{
+            Path userDir = userDir(userID);
+            if(!Files.isDirectory(userDir)){
+                return;
+            }
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(userDir)){
+                for(Path file : files){
+                    Files.delete(file);
+                }
+            }
+            Files.delete(userDir);
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private ReadWriteLock lockFor(byte[] userID){
+        return locks[Math.floorMod(Arrays.hashCode(userID), LOCK_STRIPES)];
+    }
+    
+    private Path userDir(byte[] userID){
+        return dir.resolve(Base64.getUrlEncoder().withoutPadding().encodeToString(userID));
+    }
+    
+    //oldest first, names are increasing numbers
+    private static List<Path> listSegments(Path userDir) throws IOException{
+        ArrayList<Path> segments = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(userDir, "*" + SEGMENT_SUFFIX)){
+            for(Path file : files){
+                segments.add(file);
+            }
+        }
+        segments.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+    
+    private static long segmentNumber(Path segment){
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+    
+    private void writeSegment(Path userDir, Collection<EncryptedNote> notes) throws IOException{
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        indexOut.writeInt(notes.size());
+        for(EncryptedNote note : notes){
+            int offset = records.size();
+            try(DataOutputStream out = new DataOutputStream(new GZIPOutputStream(records, IO_BUFFER_SIZE))){
+                NoteCodec.writeNotes(out, Collections.singletonList(note));
+            }
+            NoteCodec.writeBytes(indexOut, note.getNoteId().toBytes());
+            indexOut.writeLong(offset);
+            indexOut.writeInt(records.size() - offset);
+        }
+        indexOut.flush();
+        
+        long number = lastSegment.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        Path temp = userDir.resolve(number + TEMP_SUFFIX);
+        try(OutputStream file = Files.newOutputStream(temp); 
+                DataOutputStream out = new DataOutputStream(file)){
+            out.writeByte(SEGMENT_VERSION);
+            out.writeInt(index.size());
+            index.writeTo(out);
+            records.writeTo(out);
+        }
+        Files.move(temp, userDir.resolve(number + SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    //only inflates the notes that are wanted
+    private static void mergeSegment(Path segment, ECDSASignerVerifier verifier, Set<NoteID> noteIDs, Map<NoteID, EncryptedNote> into) throws IOException{
+        try(FileChannel file = FileChannel.open(segment)){
+            ByteBuffer header = readFully(file, 0, 1 + Integer.BYTES);
+            if(header.get(0) != SEGMENT_VERSION){
+                mergeUnindexed(segment, verifier, noteIDs, into);
+                return;
+            }
+            
+            int indexLength = header.getInt(1);
+            if(indexLength < 0 || indexLength > file.size()){
+                throw new IOException("Invalid segment index length: " + indexLength);
+            }
+            long recordsStart = header.capacity() + (long)indexLength;
+            ByteBuffer index = readFully(file, header.capacity(), indexLength);
+            try{
+                int count = index.getInt();
+                for(int i = 0; i < count; i++){
+                    NoteID id = NoteID.fromBytes(NoteCodec.readBytes(index, MAX_ID_LENGTH));
+                    long offset = index.getLong();
+                    int length = index.getInt();
+                    if(noteIDs != null && !noteIDs.contains(id)){
+                        continue;
+                    }
+                    
+                    ByteBuffer record = readFully(file, recordsStart + offset, length);
+                    try(InputStream in = new GZIPInputStream(new ByteArrayInputStream(record.array()), IO_BUFFER_SIZE)){
+                        merge(ByteBuffer.wrap(inflate(in)), verifier, null, into);
+                    }
+                }
+            }catch(BufferUnderflowException ex){
+                throw new IOException("Segment index is truncated.", ex);
+            }
+        }
+    }
+    
+    //a segment written before the index, one gzip stream of every note
+    private static void mergeUnindexed(Path segment, ECDSASignerVerifier verifier, Set<NoteID> noteIDs, Map<NoteID, EncryptedNote> into) throws IOException{
+        try(InputStream in = new GZIPInputStream(Files.newInputStream(segment), IO_BUFFER_SIZE)){
+            merge(ByteBuffer.wrap(inflate(in)), verifier, noteIDs, into);
+        }
+    }
+    
+    private static void merge(ByteBuffer notes, ECDSASignerVerifier verifier, Set<NoteID> noteIDs, Map<NoteID, EncryptedNote> into) throws IOException{
+        for(EncryptedNote note : NoteCodec.readNotes(notes, verifier)){
+            if(noteIDs != null && !noteIDs.contains(note.getNoteId())){
+                continue;
+            }
+            EncryptedNote existing = into.putIfAbsent(note.getNoteId(), note);
+            if(existing != null){
+                existing.merge(note);
+            }
+        }
+    }
+    
+    private static byte[] inflate(InputStream in) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[IO_BUFFER_SIZE];
+        for(int read; (read = in.read(buffer)) != -1;){
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+    
+    private static ByteBuffer readFully(FileChannel file, long position, int length) throws IOException{
+        if(length < 0 || position + length > file.size()){
+            throw new EOFException("Segment is truncated.");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(file.read(buffer, position + buffer.position()) < 0){
+                throw new EOFException("Segment is truncated.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores uploads from concurrent requests together, so many small uploads share one transaction and one flush to disk.
+ * Writes wait in a queue shared by a few committer threads, each of which takes the first waiting write and whatever else 
+ * arrives within WINDOW_MILLIS(up to MAX_ROWS notes and fragments) and stores them with one addOrUpdateAll.
+ * The committers' batches are stored in parallel on different connections, so the order of two writes is only kept 
+ * if the second is given after the first returns, which is how a user's writes are run(see {@link UserMailboxes}).
+ * {@link #write write} returns only once its batch is committed. 
+ * If a batch fails its writes are stored one by one so a bad upload only fails its own request.
+ * Writes still queued when the committers stop are failed.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class GroupCommitter{
+    private static final long WINDOW_MILLIS = 2;
+    private static final int MAX_ROWS = 5000;
+    
+    private final ServerDatabase db;
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread[] committers;
+    private final AtomicInteger liveCommitters;
+    
+    /* lock on queue is used for these */
+        private volatile boolean running = true;
+
+    /**
+     * @param db            database to store the writes in
+     * @param committers    number of batches stored at once, each takes one of the database's connections while storing
+     */
+    GroupCommitter(ServerDatabase db, int committers){
+        if(committers < 1){
+            throw new IllegalArgumentException("committers must be at least 1");
+        }
+        this.db = db;
+        this.committers = new Thread[committers];
+        liveCommitters = new AtomicInteger(committers);
+        for(int i = 0; i < committers; i++){
+            Thread committer = new Thread(this::run, "group-committer-" + i);
+            committer.setDaemon(true);
+            this.committers[i] = committer;
+            committer.start();
+        }
+    }
+    
+    /**
+     * Stores the notes in the next batch.
+     * @param notes the notes, which must not be modified until this returns
+     * @throws SQLException if storing the notes failed, or the committers stopped before storing them
+     * @throws InterruptedException if interrupted while waiting, the notes may still be stored
+     */
+    void write(Collection<EncryptedNote> notes) throws SQLException, InterruptedException{
+        if(notes.isEmpty()){
+            return;
+        }
+        
+        PendingWrite write = new PendingWrite(notes);
+        synchronized(queue){
+            //checked under the lock so nothing is queued after the committers are told to stop
+            if(!running){
+                throw new SQLException("Shut down.");
+            }
+            queue.add(write);
+        }
+        try{
+            write.done.get();
+        }catch(ExecutionException ex){
+            if(ex.getCause() instanceof SQLException){
+                throw (SQLException)ex.getCause();
+            }
+            throw new SQLException(ex.getCause());
+        }
+    }
+    
+    /**
+     * Stores the writes already queued and stops the committers, 
+     * writes that aren't stored within the time allowed are failed.
+     */
+    void shutdown(){
+        synchronized(queue){
+            running = false;
+        }
+        for(Thread committer : committers){
+            committer.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        try{
+            for(Thread committer : committers){
+                committer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            }
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        failQueued();
+    }
+    
+    /**
+     * Fails the writes nothing will take, a committer still storing a batch completes that batch itself.
+     */
+    private void failQueued(){
+        ArrayList<PendingWrite> left = new ArrayList<>();
+        queue.drainTo(left);
+        for(PendingWrite write : left){
+            write.done.completeExceptionally(new SQLException("Shut down."));
+        }
+    }
+    
+    private void run(){
+        try{
+            commitUntilStopped();
+        }finally{
+            //the last committer out fails what's left, even if it stopped on an error while still running
+            if(liveCommitters.decrementAndGet() == 0){
+                synchronized(queue){
+                    running = false;
+                }
+                failQueued();
+            }
+        }
+    }
+    
+    private void commitUntilStopped(){
+        ArrayList<PendingWrite> batch = new ArrayList<>();
+        while(running || !queue.isEmpty()){
+            try{
+                PendingWrite first = running ? queue.take() : queue.poll();
+                if(first == null){
+                    break;
+                }
+                batch.add(first);
+                int rows = first.rows;
+                
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS);
+                while(rows < MAX_ROWS){
+                    PendingWrite next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if(next == null){
+                        break;
+                    }
+                    batch.add(next);
+                    rows += next.rows;
+                }
+            }catch(InterruptedException ex){
+                //shutting down, what was taken is still committed
+            }
+            
+            try{
+                commit(batch);
+            }finally{
+                //no-op for the ones committed, fails the rest if this committer is dying
+                for(PendingWrite write : batch){
+                    write.done.completeExceptionally(new SQLException("Committer stopped."));
+                }
+                batch.clear();
+            }
+        }
+    }
+    
+    private void commit(ArrayList<PendingWrite> batch){
+        if(batch.isEmpty()){
+            return;
+        }
+        
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        for(PendingWrite write : batch){
+            notes.addAll(write.notes);
+        }
+        
+        try{
+            db.addOrUpdateAll(notes);
+            for(PendingWrite write : batch){
+                write.done.complete(null);
+            }
+            return;
+        }catch(SQLException | RuntimeException ex){
+            if(batch.size() == 1){
+                batch.get(0).done.completeExceptionally(ex);
+                return;
+            }
+            Logger.getLogger(GroupCommitter.class.getName()).log(Level.WARNING, "batch failed, storing writes separately", ex);
+        }
+        
+        for(PendingWrite write : batch){
+            try{
+                db.addOrUpdateAll(write.notes);
+                write.done.complete(null);
+            }catch(SQLException | RuntimeException ex){
+                write.done.completeExceptionally(ex);
+            }
+        }
+    }
+    
+    private static class PendingWrite{
+        final Collection<EncryptedNote> notes;
+        final int rows;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(Collection<EncryptedNote> notes){
+            this.notes = notes;
+            int count = 0;
+            for(EncryptedNote note : notes){
+                count++;
+                for(EncryptedNote.Fragment frag : note){
+                    count++;
+                }
+            }
+            rows = count;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ServerDatabase kept in memory, for running the server locally without MySQL.
+ * Keeps a blind index of each note's latest search tokens so notes can be found without seeing their text.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+public class MemoryNoteDatabase implements ServerDatabase{
+    private final ConcurrentHashMap<ByteBuffer, UserNotes> users = new ConcurrentHashMap<>();
+    
+    @Override
+    public ArrayList<EncryptedNote> getAllNotes(ECDSASignerVerifier signerOrVerifier){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(signerOrVerifier.getPublicKeyBytes()));
+        if(userNotes == null){
+            return new ArrayList<>();
+        }
+        return userNotes.getAll();
+    }
+
+    @Override
+    public ChangePage getChangesSince(ECDSASignerVerifier signerOrVerifier, long since, int limit){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(signerOrVerifier.getPublicKeyBytes()));
+        if(userNotes == null){
+            return new ChangePage(new ArrayList<>(), since, false);
+        }
+        return userNotes.getChangesSince(since, limit);
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getCompactedNotes(ECDSASignerVerifier signerOrVerifier, NoteID after, int limit){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(signerOrVerifier.getPublicKeyBytes()));
+        if(userNotes == null){
+            return new ArrayList<>();
+        }
+        return userNotes.getCompacted(after, limit);
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getNotes(ECDSASignerVerifier signerOrVerifier, Collection<NoteID> noteIDs){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(signerOrVerifier.getPublicKeyBytes()));
+        if(userNotes == null){
+            return new ArrayList<>();
+        }
+        return userNotes.get(noteIDs);
+    }
+
+    @Override
+    public Timestamp getLatestEditDate(byte[] userID){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(userID));
+        if(userNotes == null){
+            return null;
+        }
+        return userNotes.getLatestEditDate();
+    }
+
+    @Override
+    public long getLatestSeq(byte[] userID){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(userID));
+        if(userNotes == null){
+            return 0;
+        }
+        return userNotes.getLatestSeq();
+    }
+
+    @Override
+    public void advanceSeq(byte[] userID, long seq){
+        users.computeIfAbsent(ByteBuffer.wrap(userID), k -> new UserNotes()).advanceSeq(seq);
+    }
+
+    @Override
+    public void addOrUpdate(EncryptedNote note){
+        users.computeIfAbsent(ByteBuffer.wrap(note.getUserID()), k -> new UserNotes()).addOrUpdate(note);
+    }
+
+    @Override
+    public void addOrUpdateAll(Collection<EncryptedNote> notes){
+        for(EncryptedNote note : notes){
+            addOrUpdate(note);
+        }
+    }
+
+    @Override
+    public ArrayList<byte[]> getUserIDs(){
+        ArrayList<byte[]> ids = new ArrayList<>(users.size());
+        for(ByteBuffer key : users.keySet()){
+            ids.add(key.array().clone());
+        }
+        return ids;
+    }
+
+    @Override
+    public void removeUser(byte[] userID){
+        users.remove(ByteBuffer.wrap(userID));
+    }
+
+    @Override
+    public int archiveHistory(Timestamp editedBefore){
+        //no cold storage to move to, all history stays in memory until restart
+        return 0;
+    }
+
+    @Override
+    public void close(){
+        //nothing to release
+    }
+
+    @Override
+    public ArrayList<NoteID> findNotes(byte[] userID, Collection<byte[]> searchTokens){
+        UserNotes userNotes = users.get(ByteBuffer.wrap(userID));
+        if(userNotes == null){
+            return new ArrayList<>();
+        }
+        return userNotes.find(searchTokens);
+    }
+    
+    private static class UserNotes{
+        private final LinkedHashMap<NoteID, EncryptedNote> notes = new LinkedHashMap<>();
+        //blind index: token -> notes whose latest fragment has the token
+        private final HashMap<Long, Set<NoteID>> tokenIndex = new HashMap<>();
+        private final HashMap<NoteID, long[]> indexedTokens = new HashMap<>();
+        //change feed: newest change of each note's meta data and fragments by sequence number
+        private long seq = 0;
+        private final HashMap<Change, Long> changeSeqs = new HashMap<>();
+        private final TreeMap<Long, Change> feed = new TreeMap<>();
+        
+        synchronized ArrayList<EncryptedNote> getAll(){
+            ArrayList<EncryptedNote> all = new ArrayList<>(notes.size());
+            for(EncryptedNote note : notes.values()){
+                all.add(note.getSnapshot());
+            }
+            return all;
+        }
+        
+        synchronized ChangePage getChangesSince(long since, int limit){
+            LinkedHashMap<NoteID, Set<FragmentID>> changed = new LinkedHashMap<>();
+            long lastSeq = since;
+            int count = 0;
+            for(Map.Entry<Long, Change> entry : feed.tailMap(since, false).entrySet()){
+                if(count == limit){
+                    break;
+                }
+                Set<FragmentID> fragments = changed.computeIfAbsent(entry.getValue().noteID, k -> new HashSet<>());
+                if(entry.getValue().fragmentID != null){
+                    fragments.add(entry.getValue().fragmentID);
+                }
+                lastSeq = entry.getKey();
+                count++;
+            }
+            
+            ArrayList<EncryptedNote> page = new ArrayList<>(changed.size());
+            for(Map.Entry<NoteID, Set<FragmentID>> entry : changed.entrySet()){
+                page.add(notes.get(entry.getKey()).getSnapshot(entry.getValue()));
+            }
+            //once caught up the cursor is the last number given out, numbers of changes that were superseded are skipped
+            boolean more = feed.higherKey(lastSeq) != null;
+            return new ChangePage(page, more ? lastSeq : Math.max(lastSeq, seq), more);
+        }
+        
+        synchronized ArrayList<EncryptedNote> getCompacted(NoteID after, int limit){
+            TreeMap<ByteBuffer, EncryptedNote> byID = new TreeMap<>();
+            ByteBuffer afterKey = after == null ? null : ByteBuffer.wrap(after.toBytes());
+            for(EncryptedNote note : notes.values()){
+                ByteBuffer key = ByteBuffer.wrap(note.getNoteId().toBytes());
+                if(!note.getDeleted() && (afterKey == null || key.compareTo(afterKey) > 0)){
+                    byID.put(key, note);
+                    if(byID.size() > limit){
+                        byID.pollLastEntry();
+                    }
+                }
+            }
+            
+            ArrayList<EncryptedNote> page = new ArrayList<>(byID.size());
+            for(EncryptedNote note : byID.values()){
+                page.add(note.getLatestSnapshot());
+            }
+            return page;
+        }
+        
+        synchronized long getLatestSeq(){
+            return seq;
+        }
+        
+        synchronized void advanceSeq(long seq){
+            this.seq = Math.max(this.seq, seq);
+        }
+        
+        synchronized Timestamp getLatestEditDate(){
+            Timestamp latest = null;
+            for(EncryptedNote note : notes.values()){
+                if(latest == null || note.getMetaEditDate().after(latest)){
+                    latest = note.getMetaEditDate();
+                }
+                for(EncryptedNote.Fragment frag : note){
+                    if(frag.getEditDate().after(latest)){
+                        latest = frag.getEditDate();
+                    }
+                }
+            }
+            return latest;
+        }
+        
+        synchronized ArrayList<EncryptedNote> get(Collection<NoteID> noteIDs){
+            ArrayList<EncryptedNote> found = new ArrayList<>(noteIDs.size());
+            for(NoteID id : noteIDs){
+                EncryptedNote note = notes.get(id);
+                if(note != null){
+                    found.add(note.getSnapshot());
+                }
+            }
+            return found;
+        }
+        
+        synchronized void addOrUpdate(EncryptedNote note){
+            EncryptedNote stored = notes.get(note.getNoteId());
+            if(stored == null){
+                stored = note.getSnapshot();
+                notes.put(stored.getNoteId(), stored);
+            }else{
+                stored.merge(note);
+            }
+            
+            recordChange(new Change(stored.getNoteId(), null), note.getMetaEditDate(), note.getSignature());
+            for(EncryptedNote.Fragment frag : note){
+                recordChange(new Change(stored.getNoteId(), frag.getFragmentId()), frag.getEditDate(), frag.getSignature());
+            }
+            
+            reindex(stored);
+        }
+        
+        //moves the item to the end of the feed if the written copy replaced the stored one, see EncryptedNote.replaces,
+        //the same copy written again keeps its place so it isn't sent to every client again
+        private void recordChange(Change change, Timestamp version, ECDSASignature signature){
+            Long oldSeq = changeSeqs.get(change);
+            if(oldSeq != null){
+                Change old = feed.get(oldSeq);
+                if(!EncryptedNote.replaces(version, signature, old.version, old.signature)){
+                    return;
+                }
+                feed.remove(oldSeq);
+            }
+            change.version = version;
+            change.signature = signature;
+            changeSeqs.put(change, ++seq);
+            feed.put(seq, change);
+        }
+        
+        synchronized ArrayList<NoteID> find(Collection<byte[]> searchTokens){
+            if(searchTokens.isEmpty()){
+                return new ArrayList<>();
+            }
+            
+            HashSet<NoteID> matches = null;
+            for(byte[] token : searchTokens){
+                if(token.length != Protocol.SEARCH_TOKEN_LENGTH){
+                    throw new IllegalArgumentException("invalid search token length");
+                }
+                
+                Set<NoteID> withToken = tokenIndex.getOrDefault(ByteBuffer.wrap(token).getLong(), Collections.emptySet());
+                if(matches == null){
+                    matches = new HashSet<>(withToken);
+                }else{
+                    matches.retainAll(withToken);
+                }
+                if(matches.isEmpty()){
+                    break;
+                }
+            }
+            
+            return new ArrayList<>(matches);
+        }
+        
+        private void reindex(EncryptedNote note){
+            NoteID id = note.getNoteId();
+            
+            long[] old = indexedTokens.remove(id);
+            if(old != null){
+                for(long token : old){
+                    Set<NoteID> ids = tokenIndex.get(token);
+                    ids.remove(id);
+                    if(ids.isEmpty()){
+                        tokenIndex.remove(token);
+                    }
+                }
+            }
+            
+            //only the latest fragment is the current text
+            EncryptedNote.Fragment latest = null;
+            for(Iterator<EncryptedNote.Fragment> it = note.iterator(); it.hasNext();){
+                latest = it.next();
+            }
+            if(note.getDeleted() || latest == null || latest.getDeleted()){
+                return;
+            }
+            
+            ByteBuffer tokenBytes = ByteBuffer.wrap(latest.getSearchTokens());
+            long[] tokens = new long[tokenBytes.remaining() / Protocol.SEARCH_TOKEN_LENGTH];
+            for(int i = 0; i < tokens.length; i++){
+                tokens[i] = tokenBytes.getLong();
+                tokenIndex.computeIfAbsent(tokens[i], k -> new HashSet<>()).add(id);
+            }
+            indexedTokens.put(id, tokens);
+        }
+    }
+    
+    //a note's meta data(null fragmentID) or one of its fragments, equal by ids
+    private static class Change{
+        final NoteID noteID;
+        final FragmentID fragmentID;
+        Timestamp version;
+        ECDSASignature signature;
+        
+        Change(NoteID noteID, FragmentID fragmentID){
+            this.noteID = noteID;
+            this.fragmentID = fragmentID;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if(!(obj instanceof Change)){
+                return false;
+            }
+            Change other = (Change)obj;
+            return noteID.equals(other.noteID) && Objects.equals(fragmentID, other.fragmentID);
+        }
+
+        @Override
+        public int hashCode(){
+            return noteID.hashCode() * 31 + Objects.hashCode(fragmentID);
+        }
+    }
+}
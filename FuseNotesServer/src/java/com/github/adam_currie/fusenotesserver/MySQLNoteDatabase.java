@@ -0,0 +1,1113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesserver.ConnectionPool.PooledConnection;
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ServerDatabase stored in MySQL.
+ * Uploads are written in one transaction using batches, which the driver rewrites into multi-row inserts,
+ * so the number of round trips doesn't grow with the number of notes and fragments.
+ * Every stored change is also given the next number of its user's sequence in the change_feed table,
+ * the user's row in user_seq is locked first so writes of one user are numbered one after another.
+ * When given an archive directory, fragments that were last edited long ago and aren't the latest of their note
+ * can be moved out of the tables into a FragmentArchive by {@link #archiveHistory archiveHistory}, 
+ * reads that need them fetch them back from the archive, notes with archived fragments are listed in archived_note.
+ * When given a blob directory, fragment bodies over INLINE_BODY_LIMIT are kept in a BlobStore
+ * and only their hash is stored in the row, which keeps rows small and stores a re-uploaded body once.
+ * Bodies are stored while the user's user_seq row is locked, and once an edit or archiving has committed 
+ * the bodies its rows referred to are deleted if no other row of the user still refers to them, see {@link #collectBodies collectBodies}.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+public class MySQLNoteDatabase implements ServerDatabase{
+    /*
+     * Connector/J options: server side prepared statements cached on each connection(the pool keeps connections open so they stay cached),
+     * and batched inserts rewritten into multi-row inserts.
+     */
+    private static final String URL_OPTIONS = "useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=4096&rewriteBatchedStatements=true";
+    private static final long BORROW_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int MAX_IN_LIST = 500;
+    private static final int ARCHIVE_BATCH_NOTES = 500;
+    private static final int INLINE_BODY_LIMIT = 4 * 1024;//chars, smaller bodies cost less in the row than in a file
+    
+    private static final String NOTE_COLUMNS = "note_id,creation,meta_edit,deleted,signature";
+    private static final String FRAGMENT_COLUMNS = "note_id,fragment_id,creation,edit,deleted,note_body,body_hash,search_tokens,signature";
+    private static final String LATEST_FRAGMENT_COLUMNS = "f.note_id,f.fragment_id,f.creation,f.edit,f.deleted,f.note_body,f.body_hash,f.search_tokens,f.signature";
+    
+    /*
+     * The upserts keep the same copy EncryptedNote.merge would: the newer edit, or for the same edit the higher signature.
+     * MySQL assigns left to right and later assignments see the updated values, 
+     * so the signature is assigned after the columns that compare it and the date is assigned last.
+     */
+    private static final String NOTE_WINS = 
+            "meta_edit < VALUES(meta_edit) OR (meta_edit=VALUES(meta_edit) AND signature < VALUES(signature))";
+    private static final String UPSERT_NOTE = 
+            "INSERT INTO note (user_id,note_id,creation,meta_edit,deleted,signature) VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+                "deleted=CASE WHEN " + NOTE_WINS + " THEN VALUES(deleted) ELSE deleted END," +
+                "signature=CASE WHEN " + NOTE_WINS + " THEN VALUES(signature) ELSE signature END," +
+                "meta_edit=GREATEST(meta_edit, VALUES(meta_edit))";
+    
+    private static final String FRAGMENT_WINS = 
+            "edit < VALUES(edit) OR (edit=VALUES(edit) AND signature < VALUES(signature))";
+    private static final String UPSERT_FRAGMENT = 
+            "INSERT INTO note_fragment (user_id,note_id,fragment_id,creation,edit,deleted,note_body,body_hash,search_tokens,signature) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+                "deleted=CASE WHEN " + FRAGMENT_WINS + " THEN VALUES(deleted) ELSE deleted END," +
+                "note_body=CASE WHEN " + FRAGMENT_WINS + " THEN VALUES(note_body) ELSE note_body END," +
+                "body_hash=CASE WHEN " + FRAGMENT_WINS + " THEN VALUES(body_hash) ELSE body_hash END," +
+                "search_tokens=CASE WHEN " + FRAGMENT_WINS + " THEN VALUES(search_tokens) ELSE search_tokens END," +
+                "signature=CASE WHEN " + FRAGMENT_WINS + " THEN VALUES(signature) ELSE signature END," +
+                "edit=GREATEST(edit, VALUES(edit))";
+    
+    //an item keeps the number of its newest change, so the feed has at most one row per note and fragment
+    //it is only renumbered when the stored copy was replaced, so re-uploading the same copy doesn't send it to every client again,
+    //rows from before the feed had signatures are renumbered once
+    private static final String CHANGE_WINS = 
+            "version < VALUES(version) OR (version=VALUES(version) AND (signature IS NULL OR signature < VALUES(signature)))";
+    private static final String UPSERT_CHANGE = 
+            "INSERT INTO change_feed (user_id,note_id,fragment_id,version,signature,seq) VALUES (?, ?, ?, ?, ?, ?) " +
+            "ON DUPLICATE KEY UPDATE " +
+                "seq=CASE WHEN " + CHANGE_WINS + " THEN VALUES(seq) ELSE seq END," +
+                "signature=CASE WHEN " + CHANGE_WINS + " THEN VALUES(signature) ELSE signature END," +
+                "version=GREATEST(version, VALUES(version))";
+    
+    //fragment_id of the change_feed rows for note meta data
+    private static final byte[] META_FRAGMENT_ID = new byte[0];
+    
+    private final ConnectionPool pool;
+    private final FragmentArchive archive;//null when history isn't archived
+    private final BlobStore blobs;//null when bodies are kept in the rows
+    
+    /**
+     * 
+     * @param url       jdbc url of the database, driver options are added to it
+     * @param user      database user
+     * @param password  database password
+     * @param poolSize  most connections to have open at once
+     * @throws SQLException if the tables couldn't be created
+     */
+    public MySQLNoteDatabase(String url, String user, String password, int poolSize) throws SQLException{
+        this(url, user, password, poolSize, null, null);
+    }
+    
+    /**
+     * 
+     * @param url           jdbc url of the database, driver options are added to it
+     * @param user          database user
+     * @param password      database password
+     * @param poolSize      most connections to have open at once
+     * @param archiveDir    directory to archive old fragments in, null to keep them all in the database
+     * @param blobDir       directory to keep large fragment bodies in, null to keep them in the database
+     * @throws SQLException if the tables, archive or blob directory couldn't be created
+     */
+    public MySQLNoteDatabase(String url, String user, String password, int poolSize, Path archiveDir, Path blobDir) throws SQLException{
+        this(new ConnectionPool(url + (url.contains("?") ? "&" : "?") + URL_OPTIONS, user, password, poolSize, BORROW_TIMEOUT_MILLIS), 
+                archiveDir, blobDir);
+    }
+    
+    /**
+     * Uses the pool as is, without adding the driver options.
+     * The statements are kept to what MySQL's mode of other databases(like H2) also runs, so tests can use one of those.
+     * @param pool          connections to the database, closed with this
+     * @param archiveDir    directory to archive old fragments in, null to keep them all in the database
+     * @param blobDir       directory to keep large fragment bodies in, null to keep them in the database
+     * @throws SQLException if the tables, archive or blob directory couldn't be created
+     */
+    MySQLNoteDatabase(ConnectionPool pool, Path archiveDir, Path blobDir) throws SQLException{
+        try{
+            archive = archiveDir == null ? null : new FragmentArchive(archiveDir);
+            blobs = blobDir == null ? null : new BlobStore(blobDir);
+        }catch(IOException ex){
+            pool.close();
+            throw new SQLException("Couldn't create the fragment archive or blob store.", ex);
+        }
+        this.pool = pool;
+        createTables();
+    }
+    
+    private void createTables() throws SQLException{
+        try(PooledConnection pooled = pool.borrow()){
+            try(Statement statement = pooled.get().createStatement()){
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS note (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "note_id BINARY(12) NOT NULL," +
+                            "creation DATETIME(3)," +
+                            "meta_edit DATETIME(3)," +
+                            "deleted BOOL," +
+                            "signature BINARY(66)," +
+                            "PRIMARY KEY (user_id, note_id)," +
+                            "KEY (user_id, meta_edit)" +
+                        ")"
+                );
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS note_fragment (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "note_id BINARY(12) NOT NULL," +
+                            "fragment_id BINARY(6) NOT NULL," +
+                            "creation DATETIME(3)," +
+                            "edit DATETIME(3)," +
+                            "deleted BOOL," +
+                            "note_body MEDIUMTEXT," +
+                            "body_hash BINARY(32)," +
+                            "search_tokens BLOB," +
+                            "signature BINARY(66)," +
+                            "PRIMARY KEY (user_id, note_id, fragment_id)," +
+                            "KEY (user_id, edit)" +
+                        ")"
+                );
+                //set instead of note_body when the body is in the blob store
+                addColumnIfMissing(pooled.get(), "note_fragment", "body_hash", "BINARY(32) AFTER note_body");
+                //blind index over the latest fragment of each note
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS search_token (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "token BIGINT NOT NULL," +
+                            "note_id BINARY(12) NOT NULL," +
+                            "PRIMARY KEY (user_id, token, note_id)" +
+                        ")"
+                );
+                //last sequence number given to each user's changes
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS user_seq (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "seq BIGINT NOT NULL," +
+                            "PRIMARY KEY (user_id)" +
+                        ")"
+                );
+                //newest change of each note's meta data(empty fragment_id) and fragments, read in seq order by clients
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS change_feed (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "note_id BINARY(12) NOT NULL," +
+                            "fragment_id VARBINARY(6) NOT NULL," +
+                            "version DATETIME(3)," +
+                            "signature BINARY(66)," +
+                            "seq BIGINT NOT NULL," +
+                            "PRIMARY KEY (user_id, note_id, fragment_id)," +
+                            "KEY (user_id, seq)" +
+                        ")"
+                );
+                //signature of the version, to tell a copy that replaced the stored one from the same copy uploaded again
+                addColumnIfMissing(pooled.get(), "change_feed", "signature", "BINARY(66) AFTER version");
+                //notes with fragments in the archive, so reads of other notes don't touch it
+                statement.execute(
+                        "CREATE TABLE IF NOT EXISTS archived_note (" +
+                            "user_id BINARY(33) NOT NULL," +
+                            "note_id BINARY(12) NOT NULL," +
+                            "PRIMARY KEY (user_id, note_id)" +
+                        ")"
+                );
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getAllNotes(ECDSASignerVerifier signerOrVerifier) throws SQLException{
+        byte[] userID = signerOrVerifier.getPublicKeyBytes();
+        
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement noteStatement = pooled.get().prepareStatement(
+                            "SELECT " + NOTE_COLUMNS + " FROM note WHERE user_id=?");
+                    PreparedStatement fragmentStatement = pooled.get().prepareStatement(
+                            "SELECT " + FRAGMENT_COLUMNS + " FROM note_fragment WHERE user_id=?")){
+                noteStatement.setBytes(1, userID);
+                fragmentStatement.setBytes(1, userID);
+                
+                return addArchived(pooled.get(), signerOrVerifier, loadNotes(signerOrVerifier, noteStatement, fragmentStatement));
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public ChangePage getChangesSince(ECDSASignerVerifier signerOrVerifier, long since, int limit) throws SQLException{
+        byte[] userID = signerOrVerifier.getPublicKeyBytes();
+        LinkedHashMap<NoteID, Set<FragmentID>> changed = new LinkedHashMap<>();
+        long lastSeq = since;
+        int rows = 0;
+        
+        try(PooledConnection pooled = pool.borrow()){
+            try{
+                //read first, every change numbered up to it is committed since numbers are reserved in the writing transaction
+                long latestSeq;
+                try(PreparedStatement statement = pooled.get().prepareStatement("SELECT seq FROM user_seq WHERE user_id=?")){
+                    statement.setBytes(1, userID);
+                    try(ResultSet results = statement.executeQuery()){
+                        latestSeq = results.next() ? results.getLong("seq") : 0;
+                    }
+                }
+                
+                //keyset page over the (user_id, seq) index
+                try(PreparedStatement statement = pooled.get().prepareStatement(
+                            "SELECT note_id, fragment_id, seq FROM change_feed WHERE user_id=? AND seq > ? ORDER BY seq LIMIT ?")){
+                    statement.setBytes(1, userID);
+                    statement.setLong(2, since);
+                    statement.setInt(3, limit);
+                    
+                    try(ResultSet results = statement.executeQuery()){
+                        while(results.next()){
+                            Set<FragmentID> fragments = changed.computeIfAbsent(
+                                    NoteID.fromBytes(results.getBytes("note_id")), k -> new HashSet<>());
+                            byte[] fragmentID = results.getBytes("fragment_id");
+                            if(fragmentID.length > 0){
+                                fragments.add(FragmentID.fromBytes(fragmentID));
+                            }
+                            lastSeq = results.getLong("seq");
+                            rows++;
+                        }
+                    }
+                }
+                
+                //once caught up the cursor is the last number given out, numbers of changes that were superseded are skipped
+                if(rows < limit){
+                    lastSeq = Math.max(lastSeq, latestSeq);
+                }
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+        
+        //notes are always sent with their meta data, only the changed fragments are sent,
+        //the archive is only read for notes with changed fragments that have been archived since
+        ArrayList<EncryptedNote> notes = new ArrayList<>(changed.size());
+        ArrayList<EncryptedNote> missing = new ArrayList<>();
+        for(EncryptedNote note : getNotes(signerOrVerifier, changed.keySet(), false)){
+            EncryptedNote snapshot = note.getSnapshot(changed.get(note.getNoteId()));
+            if(countFragments(snapshot) < changed.get(note.getNoteId()).size()){
+                missing.add(note);
+            }else{
+                notes.add(snapshot);
+            }
+        }
+        if(!missing.isEmpty()){
+            try(PooledConnection pooled = pool.borrow()){
+                try{
+                    for(EncryptedNote note : addArchived(pooled.get(), signerOrVerifier, missing)){
+                        notes.add(note.getSnapshot(changed.get(note.getNoteId())));
+                    }
+                }catch(SQLException ex){
+                    throw pooled.failed(ex);
+                }
+            }
+        }
+        
+        return new ChangePage(notes, lastSeq, rows == limit);
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getCompactedNotes(ECDSASignerVerifier signerOrVerifier, NoteID after, int limit) throws SQLException{
+        byte[] userID = signerOrVerifier.getPublicKeyBytes();
+        byte[] afterID = after == null ? new byte[0] : after.toBytes();
+        
+        //keyset page over the primary key, fragments are limited to the latest of each note in the page
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement noteStatement = pooled.get().prepareStatement(
+                            "SELECT " + NOTE_COLUMNS + " FROM note WHERE user_id=? AND note_id > ? AND NOT deleted ORDER BY note_id LIMIT ?");
+                    PreparedStatement fragmentStatement = pooled.get().prepareStatement(
+                            "SELECT " + LATEST_FRAGMENT_COLUMNS + " FROM " +
+                            "(SELECT note_id FROM note WHERE user_id=? AND note_id > ? AND NOT deleted ORDER BY note_id LIMIT ?) page " +
+                            "JOIN note_fragment f ON f.user_id=? AND f.note_id=page.note_id " +
+                            "WHERE f.creation=(SELECT MAX(l.creation) FROM note_fragment l WHERE l.user_id=f.user_id AND l.note_id=f.note_id)")){
+                noteStatement.setBytes(1, userID);
+                noteStatement.setBytes(2, afterID);
+                noteStatement.setInt(3, limit);
+                fragmentStatement.setBytes(1, userID);
+                fragmentStatement.setBytes(2, afterID);
+                fragmentStatement.setInt(3, limit);
+                fragmentStatement.setBytes(4, userID);
+                
+                return loadNotes(signerOrVerifier, noteStatement, fragmentStatement);
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getNotes(ECDSASignerVerifier signerOrVerifier, Collection<NoteID> noteIDs) throws SQLException{
+        return getNotes(signerOrVerifier, noteIDs, true);
+    }
+    
+    private ArrayList<EncryptedNote> getNotes(ECDSASignerVerifier signerOrVerifier, Collection<NoteID> noteIDs, boolean withArchived) throws SQLException{
+        byte[] userID = signerOrVerifier.getPublicKeyBytes();
+        ArrayList<EncryptedNote> found = new ArrayList<>(noteIDs.size());
+        
+        try(PooledConnection pooled = pool.borrow()){
+            try{
+                for(List<NoteID> chunk : chunks(new ArrayList<>(noteIDs))){
+                    String inList = placeholders(chunk.size());
+                    try(PreparedStatement noteStatement = pooled.get().prepareStatement(
+                                "SELECT " + NOTE_COLUMNS + " FROM note WHERE user_id=? AND note_id IN " + inList);
+                            PreparedStatement fragmentStatement = pooled.get().prepareStatement(
+                                "SELECT " + FRAGMENT_COLUMNS + " FROM note_fragment WHERE user_id=? AND note_id IN " + inList)){
+                        noteStatement.setBytes(1, userID);
+                        fragmentStatement.setBytes(1, userID);
+                        for(int i = 0; i < chunk.size(); i++){
+                            noteStatement.setBytes(i + 2, chunk.get(i).toBytes());
+                            fragmentStatement.setBytes(i + 2, chunk.get(i).toBytes());
+                        }
+                        
+                        found.addAll(loadNotes(signerOrVerifier, noteStatement, fragmentStatement));
+                    }
+                }
+                
+                return withArchived ? addArchived(pooled.get(), signerOrVerifier, found) : found;
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public Timestamp getLatestEditDate(byte[] userID) throws SQLException{
+        //both are covered by the (user_id, edit date) indexes
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement statement = pooled.get().prepareStatement(
+                        "SELECT (SELECT MAX(meta_edit) FROM note WHERE user_id=?) AS meta_edit, " +
+                        "(SELECT MAX(edit) FROM note_fragment WHERE user_id=?) AS edit")){
+                statement.setBytes(1, userID);
+                statement.setBytes(2, userID);
+                
+                try(ResultSet results = statement.executeQuery()){
+                    results.next();
+                    Timestamp metaEdit = results.getTimestamp("meta_edit");
+                    Timestamp edit = results.getTimestamp("edit");
+                    if(metaEdit == null || (edit != null && edit.after(metaEdit))){
+                        return edit;
+                    }
+                    return metaEdit;
+                }
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public long getLatestSeq(byte[] userID) throws SQLException{
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement statement = pooled.get().prepareStatement("SELECT seq FROM user_seq WHERE user_id=?")){
+                statement.setBytes(1, userID);
+                
+                try(ResultSet results = statement.executeQuery()){
+                    return results.next() ? results.getLong("seq") : 0;
+                }
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public void advanceSeq(byte[] userID, long seq) throws SQLException{
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement statement = pooled.get().prepareStatement(
+                        "INSERT INTO user_seq (user_id,seq) VALUES (?, ?) ON DUPLICATE KEY UPDATE seq=GREATEST(seq, VALUES(seq))")){
+                statement.setBytes(1, userID);
+                statement.setLong(2, seq);
+                statement.execute();
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public void addOrUpdate(EncryptedNote note) throws SQLException{
+        addOrUpdateAll(Collections.singletonList(note));
+    }
+
+    @Override
+    public void addOrUpdateAll(Collection<EncryptedNote> notes) throws SQLException{
+        if(notes.isEmpty()){
+            return;
+        }
+        
+        try(PooledConnection pooled = pool.borrow()){
+            try{
+                Connection connection = pooled.get();
+                connection.setAutoCommit(false);
+                
+                //locks the users' sequence rows until commit
+                HashMap<ByteBuffer, Long> nextSeq = reserveSeqs(connection, notes);
+                
+                //stored while the users are locked so collectBodies can't delete a body this is about to refer to,
+                //bodies of failed writes are collected after the next write of the same fragments
+                IdentityHashMap<EncryptedNote.Fragment, byte[]> bodyHashes = storeBodies(notes);
+                HashMap<ByteBuffer, HashSet<ByteBuffer>> oldBodies = findBodyHashes(connection, notes);
+                
+                try(PreparedStatement noteStatement = connection.prepareStatement(UPSERT_NOTE);
+                        PreparedStatement fragmentStatement = connection.prepareStatement(UPSERT_FRAGMENT);
+                        PreparedStatement changeStatement = connection.prepareStatement(UPSERT_CHANGE)){
+                    for(EncryptedNote note : notes){
+                        byte[] userID = note.getUserID();
+                        byte[] noteID = note.getNoteId().toBytes();
+                        
+                        noteStatement.setBytes(1, userID);
+                        noteStatement.setBytes(2, noteID);
+                        noteStatement.setTimestamp(3, note.getCreateDate());
+                        noteStatement.setTimestamp(4, note.getMetaEditDate());
+                        noteStatement.setBoolean(5, note.getDeleted());
+                        noteStatement.setBytes(6, note.getSignature().toBytes());
+                        noteStatement.addBatch();
+                        addChange(changeStatement, nextSeq, userID, noteID, META_FRAGMENT_ID, note.getMetaEditDate(), note.getSignature());
+                        
+                        for(EncryptedNote.Fragment frag : note){
+                            fragmentStatement.setBytes(1, userID);
+                            fragmentStatement.setBytes(2, noteID);
+                            fragmentStatement.setBytes(3, frag.getFragmentId().toBytes());
+                            fragmentStatement.setTimestamp(4, frag.getCreateDate());
+                            fragmentStatement.setTimestamp(5, frag.getEditDate());
+                            fragmentStatement.setBoolean(6, frag.getDeleted());
+                            byte[] bodyHash = bodyHashes.get(frag);
+                            fragmentStatement.setString(7, bodyHash == null ? frag.getNoteBody() : null);
+                            fragmentStatement.setBytes(8, bodyHash);
+                            fragmentStatement.setBytes(9, frag.getSearchTokens());
+                            fragmentStatement.setBytes(10, frag.getSignature().toBytes());
+                            fragmentStatement.addBatch();
+                            addChange(changeStatement, nextSeq, userID, noteID, frag.getFragmentId().toBytes(), frag.getEditDate(), frag.getSignature());
+                        }
+                    }
+                    
+                    noteStatement.executeBatch();
+                    fragmentStatement.executeBatch();
+                    changeStatement.executeBatch();
+                }
+                
+                updateSearchTokens(connection, notes);
+                
+                connection.commit();
+                
+                collectBodies(connection, oldBodies);
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<NoteID> findNotes(byte[] userID, Collection<byte[]> searchTokens) throws SQLException{
+        ArrayList<NoteID> found = new ArrayList<>();
+        if(searchTokens.isEmpty()){
+            return found;
+        }
+        
+        //notes that have every token
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement statement = pooled.get().prepareStatement(
+                        "SELECT note_id FROM search_token WHERE user_id=? AND token IN " + placeholders(searchTokens.size()) + " " +
+                        "GROUP BY note_id HAVING COUNT(DISTINCT token)=?")){
+                int param = 1;
+                statement.setBytes(param++, userID);
+                for(byte[] token : searchTokens){
+                    if(token.length != Protocol.SEARCH_TOKEN_LENGTH){
+                        throw new IllegalArgumentException("invalid search token length");
+                    }
+                    statement.setLong(param++, ByteBuffer.wrap(token).getLong());
+                }
+                statement.setInt(param, searchTokens.size());
+                
+                try(ResultSet results = statement.executeQuery()){
+                    while(results.next()){
+                        found.add(NoteID.fromBytes(results.getBytes("note_id")));
+                    }
+                }
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+        
+        return found;
+    }
+
+    @Override
+    public ArrayList<byte[]> getUserIDs() throws SQLException{
+        ArrayList<byte[]> ids = new ArrayList<>();
+        
+        //covered by the primary key
+        try(PooledConnection pooled = pool.borrow()){
+            try(PreparedStatement statement = pooled.get().prepareStatement("SELECT DISTINCT user_id FROM note");
+                    ResultSet results = statement.executeQuery()){
+                while(results.next()){
+                    ids.add(results.getBytes("user_id"));
+                }
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+        
+        return ids;
+    }
+
+    @Override
+    public void removeUser(byte[] userID) throws SQLException{
+        try(PooledConnection pooled = pool.borrow()){
+            try{
+                Connection connection = pooled.get();
+                connection.setAutoCommit(false);
+                
+                for(String table : new String[]{"search_token", "note_fragment", "note", "change_feed", "user_seq", "archived_note"}){
+                    try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + table + " WHERE user_id=?")){
+                        statement.setBytes(1, userID);
+                        statement.execute();
+                    }
+                }
+                
+                connection.commit();
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+        
+        //after the commit, no rows point into them
+        try{
+            if(archive != null){
+                archive.removeUser(userID);
+            }
+            if(blobs != null){
+                blobs.removeUser(userID);
+            }
+        }catch(IOException ex){
+            throw new SQLException("Couldn't delete the user's archived fragments or bodies.", ex);
+        }
+    }
+
+    @Override
+    public int archiveHistory(Timestamp editedBefore) throws SQLException{
+        if(archive == null){
+            return 0;
+        }
+        
+        int archived = 0;
+        for(byte[] userID : getUserIDs()){
+            ECDSASignerVerifier verifier;
+            try{
+                verifier = new ECDSASignerVerifier(ECDSAUtil.toPublicKeyParams(userID));
+            }catch(InvalidKeyException ex){
+                Logger.getLogger(MySQLNoteDatabase.class.getName()).log(Level.WARNING, null, ex);
+                continue;
+            }
+            
+            int count;
+            do{
+                count = archiveBatch(verifier, editedBefore);
+                archived += count;
+            }while(count > 0);
+        }
+        return archived;
+    }
+
+    @Override
+    public void close(){
+        pool.close();
+    }
+    
+    /**
+     * Archives the cold fragments of up to ARCHIVE_BATCH_NOTES of the user's notes.
+     * The segment is written before the rows are deleted, and only rows that haven't been edited since they were read
+     * are deleted, so a crash or a concurrent upload can at worst leave a fragment in both places.
+     * @return the number of fragments moved out of the tables
+     */
+    private int archiveBatch(ECDSASignerVerifier verifier, Timestamp editedBefore) throws SQLException{
+        byte[] userID = verifier.getPublicKeyBytes();
+        
+        //a fragment is cold when it's old and another fragment of its note was created after it
+        String cold = "f.user_id=? AND f.edit < ? " +
+                "AND f.creation < (SELECT MAX(l.creation) FROM note_fragment l WHERE l.user_id=f.user_id AND l.note_id=f.note_id)";
+        
+        try(PooledConnection pooled = pool.borrow()){
+            try{
+                Connection connection = pooled.get();
+                
+                ArrayList<byte[]> noteIDs = new ArrayList<>();
+                try(PreparedStatement statement = connection.prepareStatement(
+                            "SELECT DISTINCT f.note_id FROM note_fragment f WHERE " + cold + " LIMIT ?")){
+                    statement.setBytes(1, userID);
+                    statement.setTimestamp(2, editedBefore);
+                    statement.setInt(3, ARCHIVE_BATCH_NOTES);
+                    try(ResultSet results = statement.executeQuery()){
+                        while(results.next()){
+                            noteIDs.add(results.getBytes("note_id"));
+                        }
+                    }
+                }
+                if(noteIDs.isEmpty()){
+                    return 0;
+                }
+                
+                ArrayList<EncryptedNote> notes;
+                String inList = placeholders(noteIDs.size());
+                try(PreparedStatement noteStatement = connection.prepareStatement(
+                            "SELECT " + NOTE_COLUMNS + " FROM note WHERE user_id=? AND note_id IN " + inList);
+                        PreparedStatement fragmentStatement = connection.prepareStatement(
+                            "SELECT " + LATEST_FRAGMENT_COLUMNS + " FROM note_fragment f WHERE " + cold + " AND f.note_id IN " + inList)){
+                    noteStatement.setBytes(1, userID);
+                    fragmentStatement.setBytes(1, userID);
+                    fragmentStatement.setTimestamp(2, editedBefore);
+                    for(int i = 0; i < noteIDs.size(); i++){
+                        noteStatement.setBytes(i + 2, noteIDs.get(i));
+                        fragmentStatement.setBytes(i + 3, noteIDs.get(i));
+                    }
+                    notes = loadNotes(verifier, noteStatement, fragmentStatement);
+                }
+                
+                try{
+                    archive.append(verifier, notes);
+                }catch(IOException ex){
+                    throw new SQLException("Couldn't write the fragment archive.", ex);
+                }
+                
+                connection.setAutoCommit(false);
+                HashMap<ByteBuffer, HashSet<ByteBuffer>> oldBodies = findBodyHashes(connection, notes);
+                int deleted = 0;
+                try(PreparedStatement mark = connection.prepareStatement(
+                            "INSERT IGNORE INTO archived_note (user_id,note_id) VALUES (?, ?)");
+                        PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM note_fragment WHERE user_id=? AND note_id=? AND fragment_id=? AND edit=?")){
+                    for(EncryptedNote note : notes){
+                        byte[] noteID = note.getNoteId().toBytes();
+                        mark.setBytes(1, userID);
+                        mark.setBytes(2, noteID);
+                        mark.addBatch();
+                        
+                        for(EncryptedNote.Fragment frag : note){
+                            delete.setBytes(1, userID);
+                            delete.setBytes(2, noteID);
+                            delete.setBytes(3, frag.getFragmentId().toBytes());
+                            delete.setTimestamp(4, frag.getEditDate());
+                            delete.addBatch();
+                        }
+                    }
+                    
+                    mark.executeBatch();
+                    for(int count : delete.executeBatch()){
+                        //rewritten batches report SUCCESS_NO_INFO
+                        deleted += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                }
+                connection.commit();
+                
+                collectBodies(connection, oldBodies);
+                return deleted;
+            }catch(SQLException ex){
+                throw pooled.failed(ex);
+            }
+        }
+    }
+    
+    /**
+     * Merges the archived fragments into the notes that have any.
+     * @return the notes
+     */
+    private ArrayList<EncryptedNote> addArchived(Connection connection, ECDSASignerVerifier signerOrVerifier, ArrayList<EncryptedNote> notes) throws SQLException{
+        if(archive == null || notes.isEmpty()){
+            return notes;
+        }
+        
+        HashMap<NoteID, EncryptedNote> byID = new HashMap<>();
+        for(EncryptedNote note : notes){
+            byID.put(note.getNoteId(), note);
+        }
+        
+        HashSet<NoteID> archived = new HashSet<>();
+        for(List<NoteID> chunk : chunks(new ArrayList<>(byID.keySet()))){
+            try(PreparedStatement statement = connection.prepareStatement(
+                        "SELECT note_id FROM archived_note WHERE user_id=? AND note_id IN " + placeholders(chunk.size()))){
+                statement.setBytes(1, signerOrVerifier.getPublicKeyBytes());
+                for(int i = 0; i < chunk.size(); i++){
+                    statement.setBytes(i + 2, chunk.get(i).toBytes());
+                }
+                try(ResultSet results = statement.executeQuery()){
+                    while(results.next()){
+                        archived.add(NoteID.fromBytes(results.getBytes("note_id")));
+                    }
+                }
+            }
+        }
+        if(archived.isEmpty()){
+            return notes;
+        }
+        
+        try{
+            for(EncryptedNote old : archive.read(signerOrVerifier, archived).values()){
+                //the stored meta data is newer, so only the fragments are taken from the archive
+                byID.get(old.getNoteId()).merge(old);
+            }
+        }catch(IOException ex){
+            throw new SQLException("Couldn't read the fragment archive.", ex);
+        }
+        
+        return notes;
+    }
+    
+    private static int countFragments(EncryptedNote note){
+        int count = 0;
+        for(EncryptedNote.Fragment frag : note){
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Reserves a block of sequence numbers for each user's changes, one per note and fragment.
+     * Users are locked in key order so two writes of the same users can't deadlock.
+     * @return first reserved number of each user
+     */
+    private static HashMap<ByteBuffer, Long> reserveSeqs(Connection connection, Collection<EncryptedNote> notes) throws SQLException{
+        TreeMap<ByteBuffer, Long> counts = new TreeMap<>();
+        for(EncryptedNote note : notes){
+            long changes = 1;
+            for(EncryptedNote.Fragment frag : note){
+                changes++;
+            }
+            counts.merge(ByteBuffer.wrap(note.getUserID()), changes, Long::sum);
+        }
+        
+        HashMap<ByteBuffer, Long> nextSeq = new HashMap<>();
+        try(PreparedStatement reserve = connection.prepareStatement(
+                    "INSERT INTO user_seq (user_id,seq) VALUES (?, ?) ON DUPLICATE KEY UPDATE seq=seq+VALUES(seq)");
+                PreparedStatement select = connection.prepareStatement("SELECT seq FROM user_seq WHERE user_id=?")){
+            for(Map.Entry<ByteBuffer, Long> entry : counts.entrySet()){
+                byte[] userID = entry.getKey().array();
+                reserve.setBytes(1, userID);
+                reserve.setLong(2, entry.getValue());
+                reserve.execute();
+                
+                select.setBytes(1, userID);
+                try(ResultSet results = select.executeQuery()){
+                    results.next();
+                    nextSeq.put(entry.getKey(), results.getLong("seq") - entry.getValue() + 1);
+                }
+            }
+        }
+        
+        return nextSeq;
+    }
+    
+    private static void addChange(PreparedStatement changeStatement, HashMap<ByteBuffer, Long> nextSeq,
+            byte[] userID, byte[] noteID, byte[] fragmentID, Timestamp version, ECDSASignature signature) throws SQLException{
+        long seq = nextSeq.merge(ByteBuffer.wrap(userID), 1L, Long::sum) - 1;
+        changeStatement.setBytes(1, userID);
+        changeStatement.setBytes(2, noteID);
+        changeStatement.setBytes(3, fragmentID);
+        changeStatement.setTimestamp(4, version);
+        changeStatement.setBytes(5, signature.toBytes());
+        changeStatement.setLong(6, seq);
+        changeStatement.addBatch();
+    }
+    
+    /**
+     * Replaces the indexed tokens of the notes with the tokens of their latest fragment.
+     * Must be called in the same transaction that stored the notes.
+     */
+    private void updateSearchTokens(Connection connection, Collection<EncryptedNote> notes) throws SQLException{
+        //group by user, uploads are normally all one user
+        HashMap<ByteBuffer, ArrayList<NoteID>> byUser = new HashMap<>();
+        for(EncryptedNote note : notes){
+            byUser.computeIfAbsent(ByteBuffer.wrap(note.getUserID()), k -> new ArrayList<>()).add(note.getNoteId());
+        }
+        
+        for(Map.Entry<ByteBuffer, ArrayList<NoteID>> entry : byUser.entrySet()){
+            byte[] userID = entry.getKey().array();
+            
+            for(List<NoteID> chunk : chunks(entry.getValue())){
+                String inList = placeholders(chunk.size());
+                
+                try(PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM search_token WHERE user_id=? AND note_id IN " + inList);
+                        PreparedStatement latest = connection.prepareStatement(
+                            "SELECT f.note_id, f.search_tokens FROM note_fragment f " +
+                            "JOIN note n ON n.user_id=f.user_id AND n.note_id=f.note_id " +
+                            "WHERE f.user_id=? AND f.note_id IN " + inList + " AND NOT n.deleted AND NOT f.deleted " +
+                            "AND f.creation=(SELECT MAX(l.creation) FROM note_fragment l WHERE l.user_id=f.user_id AND l.note_id=f.note_id)");
+                        PreparedStatement insert = connection.prepareStatement(
+                            "INSERT IGNORE INTO search_token (user_id,token,note_id) VALUES (?, ?, ?)")){
+                    delete.setBytes(1, userID);
+                    latest.setBytes(1, userID);
+                    for(int i = 0; i < chunk.size(); i++){
+                        delete.setBytes(i + 2, chunk.get(i).toBytes());
+                        latest.setBytes(i + 2, chunk.get(i).toBytes());
+                    }
+                    delete.executeUpdate();
+                    
+                    try(ResultSet results = latest.executeQuery()){
+                        while(results.next()){
+                            byte[] noteID = results.getBytes("note_id");
+                            byte[] tokens = results.getBytes("search_tokens");
+                            if(tokens == null){
+                                continue;
+                            }
+                            
+                            ByteBuffer tokenBuffer = ByteBuffer.wrap(tokens);
+                            while(tokenBuffer.remaining() >= Protocol.SEARCH_TOKEN_LENGTH){
+                                insert.setBytes(1, userID);
+                                insert.setLong(2, tokenBuffer.getLong());
+                                insert.setBytes(3, noteID);
+                                insert.addBatch();
+                            }
+                        }
+                    }
+                    insert.executeBatch();
+                }
+            }
+        }
+    }
+    
+    private ArrayList<EncryptedNote> loadNotes(ECDSASignerVerifier signerOrVerifier, PreparedStatement noteStatement, PreparedStatement fragmentStatement) throws SQLException{
+        LinkedHashMap<NoteID, EncryptedNote> notes = new LinkedHashMap<>();
+        
+        try(ResultSet results = noteStatement.executeQuery()){
+            while(results.next()){
+                EncryptedNote note = new EncryptedNote(
+                    NoteID.fromBytes(results.getBytes("note_id")),
+                    signerOrVerifier,
+                    results.getTimestamp("creation"),
+                    results.getTimestamp("meta_edit"),
+                    results.getBoolean("deleted"),
+                    ECDSASignature.fromBytes(results.getBytes("signature"))
+                );
+                notes.put(note.getNoteId(), note);
+            }
+        }
+        
+        try(ResultSet results = fragmentStatement.executeQuery()){
+            while(results.next()){
+                EncryptedNote note = notes.get(NoteID.fromBytes(results.getBytes("note_id")));
+                if(note == null){
+                    continue;
+                }
+                
+                note.addFragment(
+                    FragmentID.fromBytes(results.getBytes("fragment_id")),
+                    results.getTimestamp("creation"),
+                    results.getTimestamp("edit"),
+                    readBody(signerOrVerifier.getPublicKeyBytes(), results),
+                    results.getBytes("search_tokens"),
+                    results.getBoolean("deleted"),
+                    ECDSASignature.fromBytes(results.getBytes("signature"))
+                );
+            }
+        }
+        
+        return new ArrayList<>(notes.values());
+    }
+    
+    /**
+     * Finds the blob store hashes of the stored fragments of the notes.
+     * @return hashes by user, empty if there is no blob store
+     */
+    private HashMap<ByteBuffer, HashSet<ByteBuffer>> findBodyHashes(Connection connection, Collection<EncryptedNote> notes) throws SQLException{
+        HashMap<ByteBuffer, HashSet<ByteBuffer>> hashes = new HashMap<>();
+        if(blobs == null){
+            return hashes;
+        }
+        
+        HashMap<ByteBuffer, ArrayList<NoteID>> byUser = new HashMap<>();
+        for(EncryptedNote note : notes){
+            byUser.computeIfAbsent(ByteBuffer.wrap(note.getUserID()), k -> new ArrayList<>()).add(note.getNoteId());
+        }
+        
+        for(Map.Entry<ByteBuffer, ArrayList<NoteID>> entry : byUser.entrySet()){
+            for(List<NoteID> chunk : chunks(entry.getValue())){
+                try(PreparedStatement statement = connection.prepareStatement(
+                            "SELECT body_hash FROM note_fragment WHERE user_id=? AND body_hash IS NOT NULL AND note_id IN " + placeholders(chunk.size()))){
+                    statement.setBytes(1, entry.getKey().array());
+                    for(int i = 0; i < chunk.size(); i++){
+                        statement.setBytes(i + 2, chunk.get(i).toBytes());
+                    }
+                    try(ResultSet results = statement.executeQuery()){
+                        while(results.next()){
+                            hashes.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).add(ByteBuffer.wrap(results.getBytes("body_hash")));
+                        }
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+    
+    /**
+     * Deletes the bodies that no row of their user refers to any more, out of the ones given.
+     * Must be called after the transaction that stopped referring to them has committed.
+     * Runs in its own transaction holding the users' user_seq rows, which writes hold while they store bodies, 
+     * so a write can't find a body already stored and then have it deleted before its rows refer to it, 
+     * even from another server instance.
+     * @param candidates    hashes by user, any superset of the bodies that may no longer be used
+     */
+    private void collectBodies(Connection connection, HashMap<ByteBuffer, HashSet<ByteBuffer>> candidates) throws SQLException{
+        if(candidates.isEmpty()){
+            return;
+        }
+        
+        //same order as reserveSeqs so the two can't deadlock
+        TreeMap<ByteBuffer, HashSet<ByteBuffer>> byUser = new TreeMap<>(candidates);
+        HashMap<ByteBuffer, HashSet<ByteBuffer>> unused = new HashMap<>();
+        try(PreparedStatement lock = connection.prepareStatement("SELECT seq FROM user_seq WHERE user_id=? FOR UPDATE")){
+            for(Map.Entry<ByteBuffer, HashSet<ByteBuffer>> entry : byUser.entrySet()){
+                byte[] userID = entry.getKey().array();
+                lock.setBytes(1, userID);
+                try(ResultSet results = lock.executeQuery()){
+                    if(!results.next()){
+                        continue;//removed, removeUser deletes its bodies
+                    }
+                }
+                
+                HashSet<ByteBuffer> userUnused = new HashSet<>(entry.getValue());
+                for(List<ByteBuffer> chunk : chunks(new ArrayList<>(entry.getValue()))){
+                    try(PreparedStatement statement = connection.prepareStatement(
+                                "SELECT DISTINCT body_hash FROM note_fragment WHERE user_id=? AND body_hash IN " + placeholders(chunk.size()))){
+                        statement.setBytes(1, userID);
+                        for(int i = 0; i < chunk.size(); i++){
+                            statement.setBytes(i + 2, chunk.get(i).array());
+                        }
+                        try(ResultSet results = statement.executeQuery()){
+                            while(results.next()){
+                                userUnused.remove(ByteBuffer.wrap(results.getBytes("body_hash")));
+                            }
+                        }
+                    }
+                }
+                unused.put(entry.getKey(), userUnused);
+            }
+            
+            //still holding the locks
+            for(Map.Entry<ByteBuffer, HashSet<ByteBuffer>> entry : unused.entrySet()){
+                for(ByteBuffer hash : entry.getValue()){
+                    try{
+                        blobs.delete(entry.getKey().array(), hash.array());
+                    }catch(IOException ex){
+                        //left behind, it isn't referred to so it's only wasted space
+                        Logger.getLogger(MySQLNoteDatabase.class.getName()).log(Level.WARNING, "couldn't delete an unused note body", ex);
+                    }
+                }
+            }
+        }
+        connection.commit();
+    }
+    
+    /**
+     * Stores the bodies over INLINE_BODY_LIMIT in the blob store.
+     * @return hash of each stored fragment's body
+     */
+    private IdentityHashMap<EncryptedNote.Fragment, byte[]> storeBodies(Collection<EncryptedNote> notes) throws SQLException{
+        IdentityHashMap<EncryptedNote.Fragment, byte[]> hashes = new IdentityHashMap<>();
+        if(blobs == null){
+            return hashes;
+        }
+        
+        try{
+            for(EncryptedNote note : notes){
+                for(EncryptedNote.Fragment frag : note){
+                    String body = frag.getNoteBody();
+                    if(body != null && body.length() > INLINE_BODY_LIMIT){
+                        hashes.put(frag, blobs.put(note.getUserID(), body));
+                    }
+                }
+            }
+        }catch(IOException ex){
+            throw new SQLException("Couldn't store note bodies.", ex);
+        }
+        return hashes;
+    }
+    
+    private String readBody(byte[] userID, ResultSet results) throws SQLException{
+        byte[] bodyHash = results.getBytes("body_hash");
+        if(bodyHash == null){
+            return results.getString("note_body");
+        }
+        if(blobs == null){
+            throw new SQLException("Note body is in the blob store but no blob directory is configured.");
+        }
+        
+        try{
+            return blobs.get(userID, bodyHash);
+        }catch(IOException ex){
+            throw new SQLException("Couldn't read a note body.", ex);
+        }
+    }
+    
+    private static void addColumnIfMissing(Connection connection, String table, String column, String definition) throws SQLException{
+        try(ResultSet columns = connection.getMetaData().getColumns(connection.getCatalog(), null, table, column)){
+            if(columns.next()){
+                return;
+            }
+        }
+        
+        try(Statement statement = connection.createStatement()){
+            statement.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+        }
+    }
+    
+    private static <T> List<List<T>> chunks(List<T> list){
+        ArrayList<List<T>> chunks = new ArrayList<>();
+        for(int i = 0; i < list.size(); i += MAX_IN_LIST){
+            chunks.add(list.subList(i, Math.min(i + MAX_IN_LIST, list.size())));
+        }
+        return chunks;
+    }
+    
+    private static String placeholders(int count){
+        StringBuilder sb = new StringBuilder("(");
+        for(int i = 0; i < count; i++){
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return sb.append(")").toString();
+    }
+}
@@ -5,40 +5,1083 @@
  */
 package com.github.adam_currie.fusenotesserver;
 
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import javax.servlet.GenericServlet;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
-import javax.servlet.ServletRequest;
-import javax.servlet.ServletResponse;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletContext;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
- *
+ * Sync, search and reconcile endpoints, see {@link Protocol#SYNC_PATH SYNC_PATH}, {@link Protocol#SEARCH_PATH SEARCH_PATH},
+ * {@link Protocol#MERKLE_PATH MERKLE_PATH}, {@link Protocol#FETCH_PATH FETCH_PATH} and {@link Protocol#BOOTSTRAP_PATH BOOTSTRAP_PATH}.
+ * Every request must be signed with the key of the user it names, see {@link Protocol#AUTH_HEADER AUTH_HEADER}, 
+ * GETs are checked before anything else is done for them and POSTs once their body has been read.
+ * Request and response bodies are read and written with non-blocking io so slow clients don't hold container threads,
+ * requests are handled on a separate worker pool once they have been fully read.
+ * Requests that write(sync and upload) go through a mailbox for their user, 
+ * so one user's writes run one at a time in the order they arrived and never wait on each other's row locks,
+ * while different users' writes run in parallel, and uploads that arrive together are committed together by a GroupCommitter.
+ * Idle sync polls can be made as a conditional GET, see {@link #doGet doGet}, 
+ * which is answered with 304 from the UserStateCache when the user's notes haven't changed.
+ * Requests over a client address's rate get 429 and requests past the server's limits get 503, both with Retry-After, 
+ * see the admission.* context params in web.xml.
  * @author Adam Currie
  */
-public class NoteServlet extends GenericServlet{
+public class NoteServlet extends HttpServlet{
+    private static final long serialVersionUID = 1L;
+    
+    private static final int MAX_REQUEST_BYTES = 32 * 1024 * 1024;
+    private static final long REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int MAX_USER_ID_LENGTH = 65;
+    private static final int MAX_SEARCH_TOKENS = 64;
+    private static final int MAX_ID_LENGTH = 64;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_DB_POOL_SIZE = 16;
+    private static final int DEFAULT_COMMITTERS = 4;
+    private static final int MAX_CACHED_USERS = 100000;
+    private static final long CACHED_USER_IDLE_MILLIS = 30 * 60 * 1000;
+    private static final long MAX_CACHED_TREE_NOTES = 1000000;
+    private static final int DEFAULT_MAX_SEQ_AGE_MILLIS = 2000;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int OVERLOADED_RETRY_SECONDS = 5;
+    //a client uploads a few batches at once and a large store is a few hundred batches, 
+    //clients behind the same address share the rate
+    private static final double DEFAULT_CLIENT_REQUESTS_PER_SECOND = 20;
+    private static final int DEFAULT_CLIENT_BURST = 400;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    private static final int DEFAULT_MAX_QUEUED = 64;
+    private static final int DEFAULT_MAX_USER_QUEUED = 8;
+    private static final int DEFAULT_VIRTUAL_NODES = 128;
+    private static final int BOOTSTRAP_PAGE_NOTES = 200;
+    private static final long BOOTSTRAP_TIMEOUT_MILLIS = 10 * 60 * 1000;//cut off streams are resumed
+    private static final int DEFAULT_ARCHIVE_AFTER_DAYS = 90;
+    private static final long ARCHIVE_INTERVAL_HOURS = 24;
+    private static final String USER_STATE_CACHE_MBEAN = "com.github.adam_currie.fusenotesserver:type=UserStateCache";
+    private static final String SHARDS_MBEAN = "com.github.adam_currie.fusenotesserver:type=ShardedNoteDatabase";
+    
+    private ServerDatabase db;
+    private ExecutorService workers;
+    private UserMailboxes writers;
+    private GroupCommitter committer;
+    private SignatureVerifier signatures;
+    private UserStateCache userStates;
+    private AdmissionControl admission;
+    private ScheduledExecutorService archiver;
+
+    @Override
+    public void init() throws ServletException{
+        db = openDatabase();
+        signatures = new SignatureVerifier();
+        committer = new GroupCommitter(db, getIntParam(getServletContext(), "db.committers", DEFAULT_COMMITTERS));
+        userStates = new UserStateCache(db, MAX_CACHED_USERS, CACHED_USER_IDLE_MILLIS, 
+                getIntParam(getServletContext(), "cache.maxSeqAgeMillis", DEFAULT_MAX_SEQ_AGE_MILLIS), MAX_CACHED_TREE_NOTES);
+        registerMBean(userStates, USER_STATE_CACHE_MBEAN);
+        if(db instanceof ShardedNoteDatabase){
+            registerMBean(db, SHARDS_MBEAN);
+        }
+        
+        ServletContext context = getServletContext();
+        admission = new AdmissionControl(
+                getDoubleParam(context, "admission.clientRequestsPerSecond", DEFAULT_CLIENT_REQUESTS_PER_SECOND),
+                getIntParam(context, "admission.clientBurst", DEFAULT_CLIENT_BURST),
+                MAX_CACHED_USERS,
+                getIntParam(context, "admission.maxInFlight", DEFAULT_MAX_IN_FLIGHT)
+        );
+        
+        //requests that would wait behind a full queue are turned away instead
+        int threads = Runtime.getRuntime().availableProcessors();
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<>(getIntParam(context, "admission.maxQueued", DEFAULT_MAX_QUEUED)));
+        writers = new UserMailboxes(workers, getIntParam(context, "admission.maxUserQueued", DEFAULT_MAX_USER_QUEUED));
+        
+        scheduleArchiving(getIntParam(context, "archive.afterDays", DEFAULT_ARCHIVE_AFTER_DAYS));
+    }
+    
+    /**
+     * Moves old note history to the archive once a day, starting a minute after startup.
+     */
+    private void scheduleArchiving(int afterDays){
+        archiver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fragment-archiver");
+            t.setDaemon(true);
+            return t;
+        });
+        archiver.scheduleWithFixedDelay(() -> {
+            try{
+                int archived = db.archiveHistory(new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(afterDays)));
+                Logger.getLogger(NoteServlet.class.getName()).log(Level.INFO, "archived {0} fragments", archived);
+            }catch(SQLException | RuntimeException ex){
+                //tried again next time, nothing is deleted before it's archived
+                Logger.getLogger(NoteServlet.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, 1, TimeUnit.HOURS.toMinutes(ARCHIVE_INTERVAL_HOURS), TimeUnit.MINUTES);
+    }
+    
+    private static int getIntParam(ServletContext context, String name, int defaultValue) throws ServletException{
+        String param = context.getInitParameter(name);
+        if(param == null){
+            return defaultValue;
+        }
+        try{
+            return Integer.parseInt(param.trim());
+        }catch(NumberFormatException ex){
+            throw new ServletException("Invalid " + name + ": " + param, ex);
+        }
+    }
+    
+    private static double getDoubleParam(ServletContext context, String name, double defaultValue) throws ServletException{
+        String param = context.getInitParameter(name);
+        if(param == null){
+            return defaultValue;
+        }
+        try{
+            return Double.parseDouble(param.trim());
+        }catch(NumberFormatException ex){
+            throw new ServletException("Invalid " + name + ": " + param, ex);
+        }
+    }
+
+    @Override
+    public void destroy(){
+        archiver.shutdownNow();
+        workers.shutdown();
+        try{
+            workers.awaitTermination(REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+        signatures.shutdown();
+        committer.shutdown();
+        unregisterMBean(USER_STATE_CACHE_MBEAN);
+        if(db instanceof ShardedNoteDatabase){
+            unregisterMBean(SHARDS_MBEAN);
+        }
+        db.close();
+    }
+    
+    private static void registerMBean(Object mbean, String name){
+        try{
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        }catch(JMException ex){
+            //only monitoring is lost
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    private static void unregisterMBean(String name){
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        }catch(JMException ex){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+    
+    /**
+     * Opens the database configured by the db.* context params in web.xml, 
+     * MySQL when db.type is mysql, otherwise an in memory database.
+     * When db.shards is set users are spread across a database for each comma separated entry, 
+     * jdbc urls for mysql or just names for memory.
+     * When archive.dir is set old mysql fragments are archived there, and when blob.dir is set large mysql fragment bodies
+     * are stored there, in a sub directory for each shard.
+     */
+    private ServerDatabase openDatabase() throws ServletException{
+        ServletContext context = getServletContext();
+        Path archiveDir = getPathParam(context, "archive.dir");
+        Path blobDir = getPathParam(context, "blob.dir");
+        
+        String shardsParam = context.getInitParameter("db.shards");
+        if(shardsParam == null || shardsParam.trim().isEmpty()){
+            return openShard(context, context.getInitParameter("db.url"), archiveDir, blobDir);
+        }
+        
+        LinkedHashMap<String, ServerDatabase> shards = new LinkedHashMap<>();
+        try{
+            for(String shard : shardsParam.split(",")){
+                String name = shard.trim();
+                shards.put(name, openShard(context, name, shardDir(archiveDir, name), shardDir(blobDir, name)));
+            }
+        }catch(ServletException ex){
+            for(ServerDatabase opened : shards.values()){
+                opened.close();
+            }
+            throw ex;
+        }
+        return new ShardedNoteDatabase(shards, getIntParam(context, "db.virtualNodes", DEFAULT_VIRTUAL_NODES), MAX_CACHED_USERS);
+    }
+    
+    //null when the param isn't set
+    private static Path getPathParam(ServletContext context, String name){
+        String param = context.getInitParameter(name);
+        return param == null || param.trim().isEmpty() ? null : Paths.get(param.trim());
+    }
+    
+    private static Path shardDir(Path dir, String shard){
+        if(dir == null){
+            return null;
+        }
+        try{
+            return dir.resolve(URLEncoder.encode(shard, "UTF-8"));
+        }catch(UnsupportedEncodingException ex){
+            throw new AssertionError(ex);
+        }
+    }
+    
+    private ServerDatabase openShard(ServletContext context, String url, Path archiveDir, Path blobDir) throws ServletException{
+        if(!"mysql".equalsIgnoreCase(context.getInitParameter("db.type"))){
+            return new MemoryNoteDatabase();
+        }
+        
+        int poolSize = getIntParam(context, "db.poolSize", DEFAULT_DB_POOL_SIZE);
+        
+        try{
+            return new MySQLNoteDatabase(
+                    url,
+                    context.getInitParameter("db.user"),
+                    context.getInitParameter("db.password"),
+                    poolSize,
+                    archiveDir,
+                    blobDir
+            );
+        }catch(SQLException ex){
+            throw new ServletException("Couldn't open the notes database.", ex);
+        }
+    }
 
     @Override
     public String getServletInfo(){
-        return "TODO: Short description";
+        return "FuseNotes sync endpoint";
     }
 
     @Override
-    public void service(ServletRequest request, ServletResponse response) throws ServletException, IOException{
-        response.setContentType("text/html;charset=UTF-8");
-        try(PrintWriter out = response.getWriter()){
-            /*
-             * TODO output your page here. You may use following sample code.
-             */
-            out.println("<!DOCTYPE html>");
-            out.println("<html>");
-            out.println("<head>");
-            out.println("<title>Servlet NoteServlet</title>");            
-            out.println("</head>");
-            out.println("<body>");
-            out.println("<h1>Servlet NoteServlet at " + "</h1>");
-            out.println("</body>");
-            out.println("</html>");
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException{
+        String path = request.getPathInfo();
+        if(!Protocol.SYNC_PATH.equals(path) && !Protocol.UPLOAD_PATH.equals(path) && !Protocol.SEARCH_PATH.equals(path) 
+                && !Protocol.MERKLE_PATH.equals(path) && !Protocol.FETCH_PATH.equals(path)){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if(request.getContentLengthLong() > MAX_REQUEST_BYTES){
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        //checked before reading the body so a client over its rate never takes a worker
+        if(overRate(request, response)){
+            return;
+        }
+        
+        AsyncContext async = startAsync(request, response);
+        if(async == null){
+            return;
+        }
+        ServletInputStream in = request.getInputStream();
+        in.setReadListener(new RequestReader(async, in, path, request.getHeader(Protocol.AUTH_HEADER), 
+                "gzip".equalsIgnoreCase(request.getHeader("Content-Encoding")), 
+                acceptsGzip(request.getHeader("Accept-Encoding"))));
+    }
+    
+    /**
+     * Sync polls and the bootstrap stream, both identify the user with the user param.
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException{
+        String path = request.getPathInfo();
+        if(!Protocol.SYNC_PATH.equals(path) && !Protocol.BOOTSTRAP_PATH.equals(path)){
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        byte[] userID;
+        try{
+            userID = Base64.getUrlDecoder().decode(request.getParameter("user"));
+        }catch(IllegalArgumentException | NullPointerException ex){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if(userID.length > MAX_USER_ID_LENGTH){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        if(overRate(request, response)){
+            return;
+        }
+        
+        //checked before the 304 answer too, or anyone could watch when the user's notes change
+        String query = request.getQueryString();
+        try{
+            if(!isSignedBy(signatures.getVerifier(userID), "GET", query == null ? path : path + "?" + query, 
+                    request.getHeader(Protocol.AUTH_HEADER), new byte[0])){
+                response.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+        }catch(InvalidKeyException ex){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        if(Protocol.SYNC_PATH.equals(path)){
+            poll(request, response, userID);
+        }else{
+            bootstrap(request, response, userID);
+        }
+    }
+    
+    /**
+     * Sync poll without notes to upload: GET SYNC_PATH?user=[base64url user id]&cursor=[cursor]&limit=[limit], 
+     * response body as for POST. 
+     * Responses that bring the client up to date have the user's last change number as a strong ETag, 
+     * a request with that ETag in If-None-Match gets 304 with no body while the number is still the user's last, 
+     * answered from the UserStateCache without a worker or the database.
+     * The cached number is read from the database again after cache.maxSeqAgeMillis, 
+     * so writes through other server instances show up after at most that long.
+     */
+    private void poll(HttpServletRequest request, HttpServletResponse response, byte[] userID) throws IOException{
+        long since;
+        int limit;
+        try{
+            since = Long.parseLong(request.getParameter("cursor"));
+            limit = Integer.parseInt(request.getParameter("limit"));
+        }catch(NumberFormatException ex){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if(limit < 1 || limit > Protocol.MAX_SYNC_LIMIT){
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        
+        long cachedSeq = userStates.getCachedSeq(userID);
+        if(cachedSeq >= 0 && matches(request.getHeader("If-None-Match"), toETag(cachedSeq))){
+            userStates.countHit();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", toETag(cachedSeq));
+            return;
+        }
+        
+        AsyncContext async = startAsync(request, response);
+        if(async == null){
+            return;
+        }
+        boolean acceptsGzip = acceptsGzip(request.getHeader("Accept-Encoding"));
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        try{
+            workers.execute(() -> execute(async, acceptsGzip, asyncResponse -> {
+                ChangePage page = readChanges(signatures.getVerifier(userID), since, limit);
+                if(!page.hasMore()){
+                    asyncResponse.setHeader("ETag", toETag(page.getLastSeq()));
+                    //the cached number was too old to answer with, but it hadn't moved
+                    if(matches(ifNoneMatch, toETag(page.getLastSeq()))){
+                        return null;
+                    }
+                }
+                
+                ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(responseBody);
+                writePage(out, page);
+                out.flush();
+                return responseBody.toByteArray();
+            }));
+        }catch(RejectedExecutionException ex){
+            retryLater(async, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toMillis(OVERLOADED_RETRY_SECONDS));
+        }
+    }
+    
+    /**
+     * Streams the user's compacted notes to a new device, see {@link Protocol#BOOTSTRAP_PATH BOOTSTRAP_PATH}.
+     * Resume tokens are [cursor][last note id sent] so a resumed stream keeps the cursor it started with, 
+     * anything changed since then is after the cursor and comes with the next sync.
+     */
+    private void bootstrap(HttpServletRequest request, HttpServletResponse response, byte[] userID) throws IOException{
+        long cursor = -1;
+        NoteID after = null;
+        String resume = request.getParameter("resume");
+        if(resume != null){
+            try{
+                ByteBuffer token = ByteBuffer.wrap(Base64.getUrlDecoder().decode(resume));
+                if(token.remaining() != Long.BYTES + NoteID.LENGTH){
+                    throw new IllegalArgumentException("Invalid resume token.");
+                }
+                cursor = token.getLong();
+                byte[] noteID = new byte[NoteID.LENGTH];
+                token.get(noteID);
+                after = NoteID.fromBytes(noteID);
+            }catch(IllegalArgumentException ex){
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+        
+        AsyncContext async = startAsync(request, response);
+        if(async == null){
+            return;
+        }
+        async.setTimeout(BOOTSTRAP_TIMEOUT_MILLIS);
+        
+        long resumeCursor = cursor;
+        NoteID resumeAfter = after;
+        try{
+            workers.execute(() -> startBootstrap(async, userID, resumeCursor, resumeAfter));
+        }catch(RejectedExecutionException ex){
+            retryLater(async, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toMillis(OVERLOADED_RETRY_SECONDS));
+        }
+    }
+    
+    private void startBootstrap(AsyncContext async, byte[] userID, long cursor, NoteID after){
+        ECDSASignerVerifier verifier;
+        try{
+            verifier = signatures.getVerifier(userID);
+            if(cursor < 0){
+                //taken before the first page so anything changed during the stream is after it
+                cursor = db.getLatestSeq(userID);
+            }
+        }catch(InvalidKeyException ex){
+            fail(async, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }catch(SQLException | RuntimeException ex){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.SEVERE, null, ex);
+            fail(async, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        
+        try{
+            //no content length, so the stream is sent chunked
+            HttpServletResponse response = (HttpServletResponse)async.getResponse();
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(Protocol.CONTENT_TYPE);
+            ServletOutputStream out = response.getOutputStream();
+            out.setWriteListener(new BootstrapWriter(async, out, verifier, cursor, after));
+        }catch(IOException ex){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, null, ex);
+            async.complete();
+        }
+    }
+    
+    private static String toETag(long seq){
+        return "\"" + seq + "\"";
+    }
+    
+    //weak comparison, as If-None-Match uses
+    private static boolean matches(String ifNoneMatch, String etag){
+        if(ifNoneMatch == null){
+            return false;
+        }
+        for(String tag : ifNoneMatch.split(",")){
+            tag = tag.trim();
+            if(tag.startsWith("W/")){
+                tag = tag.substring(2);
+            }
+            if(tag.equals(etag)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Takes a token from the client's bucket, or turns the request away with 429.
+     * @return true if the request was turned away
+     */
+    private boolean overRate(HttpServletRequest request, HttpServletResponse response) throws IOException{
+        long wait = admission.tryAcquire(request.getRemoteAddr());
+        if(wait > 0){
+            response.setHeader("Retry-After", Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(wait + 999))));
+            response.sendError(SC_TOO_MANY_REQUESTS);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Admits the request and starts async processing, the admission slot is given back when the request completes.
+     * @return the async context, null if the server is full and the request was turned away
+     */
+    private AsyncContext startAsync(HttpServletRequest request, HttpServletResponse response) throws IOException{
+        if(!admission.tryEnter()){
+            response.setIntHeader("Retry-After", OVERLOADED_RETRY_SECONDS);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
+        
+        AsyncContext async;
+        try{
+            async = request.startAsync();
+        }catch(RuntimeException ex){
+            admission.exit();
+            throw ex;
+        }
+        async.addListener(new AsyncListener(){
+            @Override
+            public void onComplete(AsyncEvent event){
+                admission.exit();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event){
+            }
+
+            @Override
+            public void onError(AsyncEvent event){
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event){
+            }
+        });
+        async.setTimeout(REQUEST_TIMEOUT_MILLIS);
+        return async;
+    }
+    
+    private static boolean acceptsGzip(String acceptEncoding){
+        if(acceptEncoding == null){
+            return false;
+        }
+        for(String coding : acceptEncoding.split(",")){
+            String[] parts = coding.trim().split(";");
+            if("gzip".equalsIgnoreCase(parts[0].trim())){
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Inflates a gzipped request, refusing anything that inflates past MAX_REQUEST_BYTES.
+     */
+    private static byte[] gunzip(byte[] compressed) throws IOException{
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(compressed.length * 4);
+        try(GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))){
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            for(int read; (read = in.read(buffer)) != -1;){
+                inflated.write(buffer, 0, read);
+                if(inflated.size() > MAX_REQUEST_BYTES){
+                    throw new IOException("Request too large.");
+                }
+            }
+        }
+        return inflated.toByteArray();
+    }
+    
+    private static byte[] gzip(byte[] data) throws IOException{
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+        try(GZIPOutputStream out = new GZIPOutputStream(compressed)){
+            out.write(data);
+        }
+        return compressed.toByteArray();
+    }
+    
+    /**
+     * Checks that a request was signed with the user's key recently, see {@link Protocol#AUTH_HEADER AUTH_HEADER}.
+     * @param verifier  the user the request names
+     * @param method    the http method
+     * @param path      the path info, with the query string if there is one
+     * @param auth      the AUTH_HEADER value, may be null
+     * @param body      the request body after any content encoding was removed
+     * @return false if the header is missing, malformed, too old or not signed by the user
+     */
+    private static boolean isSignedBy(ECDSASignerVerifier verifier, String method, String path, String auth, byte[] body){
+        if(auth == null){
+            return false;
+        }
+        String[] parts = auth.trim().split(" ");
+        if(parts.length != 2){
+            return false;
+        }
+        
+        try{
+            long time = Long.parseLong(parts[0]);
+            if(Math.abs(System.currentTimeMillis() - time) > Protocol.MAX_AUTH_SKEW_MILLIS){
+                return false;
+            }
+            ECDSASignature signature = ECDSASignature.fromBytes(Base64.getDecoder().decode(parts[1]));
+            return verifier.checkRequest(method, path, time, body, signature);
+        }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException ex){
+            return false;
+        }
+    }
+    
+    /**
+     * Handles a fully read request.
+     * @return the response body
+     */
+    private byte[] handle(String path, String auth, byte[] requestBody) throws IOException, InvalidKeyException, SignatureException, SQLException, InterruptedException{
+        ByteBuffer in = ByteBuffer.wrap(requestBody);
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(responseBody);
+        
+        try{
+            byte[] userID = NoteCodec.readBytes(in, MAX_USER_ID_LENGTH);
+            ECDSASignerVerifier verifier = signatures.getVerifier(userID);
+            if(!isSignedBy(verifier, "POST", path, auth, requestBody)){
+                throw new SignatureException("Request isn't signed by the user.");
+            }
+
+            switch(path){
+                case Protocol.SYNC_PATH:
+                    handleSync(in, verifier, out);
+                    break;
+                case Protocol.UPLOAD_PATH:
+                    store(verifier, NoteCodec.readNotes(in, verifier));
+                    out.writeLong(db.getLatestSeq(verifier.getPublicKeyBytes()));
+                    break;
+                case Protocol.SEARCH_PATH:
+                    handleSearch(in, verifier, out);
+                    break;
+                case Protocol.MERKLE_PATH:
+                    handleMerkle(in, verifier, out);
+                    break;
+                default:
+                    handleFetch(in, verifier, out);
+            }
+        }catch(BufferUnderflowException ex){
+            throw new IOException("Truncated request.", ex);
+        }
+        
+        out.flush();
+        return responseBody.toByteArray();
+    }
+    
+    private void handleSync(ByteBuffer in, ECDSASignerVerifier verifier, DataOutputStream out) throws IOException, SignatureException, SQLException, InterruptedException{
+        long since = in.getLong();
+        int limit = in.getInt();
+        if(limit < 1 || limit > Protocol.MAX_SYNC_LIMIT){
+            throw new IOException("Invalid sync limit: " + limit);
+        }
+        ArrayList<EncryptedNote> uploaded = NoteCodec.readNotes(in, verifier);
+        
+        store(verifier, uploaded);
+        
+        writePage(out, readChanges(verifier, since, limit));
+    }
+    
+    private ChangePage readChanges(ECDSASignerVerifier verifier, long since, int limit) throws SQLException{
+        if(since >= 0 && !userStates.hasChangesSince(verifier.getPublicKeyBytes(), since)){
+            //idle poll
+            return new ChangePage(new ArrayList<>(), since, false);
+        }
+        return db.getChangesSince(verifier, Math.max(since, 0), limit);
+    }
+    
+    private static void writePage(DataOutputStream out, ChangePage page) throws IOException{
+        out.writeLong(page.getLastSeq());
+        out.writeBoolean(page.hasMore());
+        NoteCodec.writeNotes(out, page.getNotes());
+    }
+    
+    /**
+     * Verifies and stores notes uploaded by a user.
+     */
+    private void store(ECDSASignerVerifier verifier, ArrayList<EncryptedNote> uploaded) throws SignatureException, SQLException, InterruptedException{
+        if(!signatures.verifyAll(uploaded)){
+            throw new SignatureException("Uploaded note has an invalid signature.");
+        }
+        if(!uploaded.isEmpty()){
+            committer.write(uploaded);
+            userStates.notesWritten(verifier.getPublicKeyBytes(), uploaded, db.getLatestSeq(verifier.getPublicKeyBytes()));
+            NotificationEndpoint.notifyChanged(verifier.getPublicKeyBytes());
+        }
+    }
+    
+    private void handleSearch(ByteBuffer in, ECDSASignerVerifier verifier, DataOutputStream out) throws IOException, SQLException{
+        int count = in.getInt();
+        if(count < 0 || count > MAX_SEARCH_TOKENS){
+            throw new IOException("Invalid token count: " + count);
+        }
+        
+        ArrayList<byte[]> tokens = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            byte[] token = new byte[Protocol.SEARCH_TOKEN_LENGTH];
+            in.get(token);
+            tokens.add(token);
+        }
+        
+        ArrayList<NoteID> found = db.findNotes(verifier.getPublicKeyBytes(), tokens);
+        NoteCodec.writeNotes(out, db.getNotes(verifier, found));
+    }
+    
+    private void handleMerkle(ByteBuffer in, ECDSASignerVerifier verifier, DataOutputStream out) throws IOException, SQLException{
+        int level = in.get() & 0xFF;
+        int count = in.getInt();
+        if(level > MerkleTree.DEPTH || count < 0 || count > MerkleTree.nodesAt(level)){
+            throw new IOException("Invalid merkle request.");
+        }
+        
+        int[] nodes = new int[count];
+        for(int i = 0; i < count; i++){
+            nodes[i] = in.getInt();
+            if(nodes[i] < 0 || nodes[i] >= MerkleTree.nodesAt(level)){
+                throw new IOException("Invalid merkle node: " + nodes[i]);
+            }
+        }
+        
+        //taken before reading the tree so anything changed after it is picked up by the next sync
+        out.writeLong(db.getLatestSeq(verifier.getPublicKeyBytes()));
+        
+        MerkleTree tree = userStates.getMerkleTree(verifier);
+        for(int index : nodes){
+            if(level < MerkleTree.DEPTH){
+                out.write(tree.getChildHashes(level, index));
+            }else{
+                Map<NoteID, byte[]> bucket = tree.getBucket(index);
+                out.writeInt(bucket.size());
+                for(Map.Entry<NoteID, byte[]> entry : bucket.entrySet()){
+                    NoteCodec.writeBytes(out, entry.getKey().toBytes());
+                    out.write(entry.getValue());
+                }
+            }
+        }
+    }
+    
+    private void handleFetch(ByteBuffer in, ECDSASignerVerifier verifier, DataOutputStream out) throws IOException, SQLException{
+        int count = in.getInt();
+        if(count < 0 || count > Protocol.MAX_FETCH_NOTES){
+            throw new IOException("Invalid note count: " + count);
+        }
+        
+        ArrayList<NoteID> ids = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            ids.add(NoteID.fromBytes(NoteCodec.readBytes(in, MAX_ID_LENGTH)));
+        }
+        
+        NoteCodec.writeNotes(out, db.getNotes(verifier, ids));
+    }
+    
+    private static void fail(AsyncContext async, int status){
+        ((HttpServletResponse)async.getResponse()).setStatus(status);
+        async.complete();
+    }
+    
+    private static void retryLater(AsyncContext async, int status, long retryAfterMillis){
+        HttpServletResponse response = (HttpServletResponse)async.getResponse();
+        response.setStatus(status);
+        response.setHeader("Retry-After", Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999))));
+        async.complete();
+    }
+    
+    /**
+     * Reads the request body as it becomes available then hands it to the workers.
+     */
+    private class RequestReader implements ReadListener{
+        private final AsyncContext async;
+        private final ServletInputStream in;
+        private final String path;
+        private final String auth;
+        private final boolean gzipped;
+        private final boolean acceptsGzip;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        private boolean failed = false;
+
+        RequestReader(AsyncContext async, ServletInputStream in, String path, String auth, boolean gzipped, boolean acceptsGzip){
+            this.async = async;
+            this.in = in;
+            this.path = path;
+            this.auth = auth;
+            this.gzipped = gzipped;
+            this.acceptsGzip = acceptsGzip;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException{
+            while(!failed && in.isReady()){
+                int read = in.read(buffer);
+                if(read < 0){
+                    return;
+                }
+                
+                body.write(buffer, 0, read);
+                if(body.size() > MAX_REQUEST_BYTES){
+                    failed = true;
+                    fail(async, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException{
+            if(failed){
+                return;
+            }
+            
+            byte[] userID;
+            try{
+                userID = readUserID();
+            }catch(IOException | BufferUnderflowException ex){
+                fail(async, HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            
+            try{
+                if(Protocol.SYNC_PATH.equals(path) || Protocol.UPLOAD_PATH.equals(path)){
+                    writers.execute(userID, this::process);
+                }else{
+                    workers.execute(this::process);
+                }
+            }catch(RejectedExecutionException ex){
+                retryLater(async, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toMillis(OVERLOADED_RETRY_SECONDS));
+            }
+        }
+
+        @Override
+        public void onError(Throwable t){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, "failed reading request", t);
+            async.complete();
+        }
+        
+        //only inflates as much of a gzipped body as the user id needs
+        private byte[] readUserID() throws IOException{
+            byte[] bytes = body.toByteArray();
+            if(!gzipped){
+                return NoteCodec.readBytes(ByteBuffer.wrap(bytes), MAX_USER_ID_LENGTH);
+            }
+            
+            byte[] head = new byte[MAX_USER_ID_LENGTH + 5];//longest length varint is 5 bytes
+            int length = 0;
+            try(GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(bytes))){
+                for(int read; length < head.length && (read = gzip.read(head, length, head.length - length)) != -1;){
+                    length += read;
+                }
+            }
+            return NoteCodec.readBytes(ByteBuffer.wrap(head, 0, length), MAX_USER_ID_LENGTH);
+        }
+        
+        private void process(){
+            execute(async, acceptsGzip, response -> handle(path, auth, gzipped ? gunzip(body.toByteArray()) : body.toByteArray()));
+        }
+    }
+    
+    /**
+     * Runs a handler on the current worker and sends its response body, 
+     * or the status for the error it failed with.
+     */
+    private void execute(AsyncContext async, boolean acceptsGzip, RequestHandler handler){
+        HttpServletResponse response = (HttpServletResponse)async.getResponse();
+        byte[] responseBody;
+        try{
+            responseBody = handler.handle(response);
+            if(responseBody == null){
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                async.complete();
+                return;
+            }
+        }catch(IOException | InvalidKeyException ex){
+            fail(async, HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }catch(SignatureException ex){
+            fail(async, HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            retryLater(async, HttpServletResponse.SC_SERVICE_UNAVAILABLE, TimeUnit.SECONDS.toMillis(OVERLOADED_RETRY_SECONDS));
+            return;
+        }catch(SQLException | RuntimeException ex){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.SEVERE, null, ex);
+            fail(async, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        
+        try{
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(Protocol.CONTENT_TYPE);
+            if(acceptsGzip && responseBody.length >= Protocol.GZIP_MIN_BYTES){
+                responseBody = gzip(responseBody);
+                response.setHeader("Content-Encoding", "gzip");
+            }
+            response.setContentLength(responseBody.length);
+            ServletOutputStream out = response.getOutputStream();
+            out.setWriteListener(new ResponseWriter(async, out, responseBody));
+        }catch(IOException ex){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, null, ex);
+            async.complete();
+        }
+    }
+    
+    private interface RequestHandler{
+        //may set headers on the response, the body is returned, null for 304 not modified
+        byte[] handle(HttpServletResponse response) throws IOException, InvalidKeyException, SignatureException, SQLException, InterruptedException;
+    }
+    
+    /**
+     * Writes a bootstrap stream, reading each page on a worker once the last one has been written, 
+     * so neither container threads nor workers wait on a slow client.
+     */
+    private class BootstrapWriter implements WriteListener{
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final ECDSASignerVerifier verifier;
+        private final long cursor;
+        private NoteID after;//only used by the page reads, which run one at a time
+        
+        /*
+         * lock on this is used for these, the container and the worker that read the next page take turns
+         */
+            private byte[] chunk;
+            private int offset = 0;
+            private boolean ended = false;
+
+        BootstrapWriter(AsyncContext async, ServletOutputStream out, ECDSASignerVerifier verifier, long cursor, NoteID after){
+            this.async = async;
+            this.out = out;
+            this.verifier = verifier;
+            this.cursor = cursor;
+            this.after = after;
+            chunk = ByteBuffer.allocate(Long.BYTES).putLong(cursor).array();
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException{
+            while(out.isReady()){
+                if(offset < chunk.length){
+                    int length = Math.min(IO_BUFFER_SIZE, chunk.length - offset);
+                    out.write(chunk, offset, length);
+                    offset += length;
+                }else if(ended){
+                    async.complete();
+                    return;
+                }else{
+                    //the client has the resume token before waiting on the next page
+                    out.flush();
+                    if(out.isReady()){
+                        try{
+                            workers.execute(this::readPage);
+                        }catch(RejectedExecutionException ex){
+                            async.complete();//the client resumes
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, "failed writing bootstrap stream", t);
+            async.complete();
+        }
+        
+        private void readPage(){
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            boolean last;
+            try{
+                ArrayList<EncryptedNote> page = db.getCompactedNotes(verifier, after, BOOTSTRAP_PAGE_NOTES);
+                DataOutputStream data = new DataOutputStream(bytes);
+                if(!page.isEmpty()){
+                    after = page.get(page.size() - 1).getNoteId();
+                    
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                    DataOutputStream frameOut = new DataOutputStream(frame);
+                    NoteCodec.writeNotes(frameOut, page);
+                    NoteCodec.writeBytes(frameOut, ByteBuffer.allocate(Long.BYTES + NoteID.LENGTH).putLong(cursor).put(after.toBytes()).array());
+                    frameOut.flush();
+                    
+                    data.writeInt(frame.size());
+                    frame.writeTo(data);
+                }
+                last = page.size() < BOOTSTRAP_PAGE_NOTES;
+                if(last){
+                    data.writeInt(0);
+                }
+                data.flush();
+            }catch(SQLException | IOException | RuntimeException ex){
+                //already committed to 200, the client sees the stream end early and resumes
+                Logger.getLogger(NoteServlet.class.getName()).log(Level.SEVERE, null, ex);
+                async.complete();
+                return;
+            }
+            
+            synchronized(this){
+                chunk = bytes.toByteArray();
+                offset = 0;
+                ended = last;
+                try{
+                    //the container won't call back until a write finds the client isn't ready
+                    onWritePossible();
+                }catch(IOException ex){
+                    Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, null, ex);
+                    async.complete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the response body whenever the client can take more of it.
+     */
+    private static class ResponseWriter implements WriteListener{
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final byte[] data;
+        private int offset = 0;
+
+        ResponseWriter(AsyncContext async, ServletOutputStream out, byte[] data){
+            this.async = async;
+            this.out = out;
+            this.data = data;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException{
+            while(out.isReady()){
+                if(offset == data.length){
+                    async.complete();
+                    return;
+                }
+                
+                int length = Math.min(IO_BUFFER_SIZE, data.length - offset);
+                out.write(data, offset, length);
+                offset += length;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t){
+            Logger.getLogger(NoteServlet.class.getName()).log(Level.WARNING, "failed writing response", t);
+            async.complete();
         }
     }
 
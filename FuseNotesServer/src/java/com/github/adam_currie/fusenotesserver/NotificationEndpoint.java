@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.websocket.CloseReason;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+
+/**
+ * Pushes change notifications to clients so they don't have to poll, see {@link Protocol#NOTIFY_PATH NOTIFY_PATH}.
+ * @author Adam Currie
+ */
+@ServerEndpoint("/NoteServlet" + Protocol.NOTIFY_PATH)
+public class NotificationEndpoint{
+    private static final int MAX_SUBSCRIBE_MESSAGE_LENGTH = 256;
+    private static final String USER_ID_PROPERTY = "userID";
+    private static final String CHALLENGE_PROPERTY = "challenge";
+    
+    private static final SecureRandom random = new SecureRandom();
+    
+    //user id -> sessions subscribed to the user's changes
+    private static final ConcurrentHashMap<ByteBuffer, Set<Session>> subscribers = new ConcurrentHashMap<>();
+    
+    /**
+     * Tells every client subscribed to a user that the user's notes changed.
+     * Doesn't block, a client that is still receiving an earlier notification is skipped
+     * since it hasn't synced yet.
+     * @param userID the user
+     */
+    static void notifyChanged(byte[] userID){
+        Set<Session> sessions = subscribers.get(ByteBuffer.wrap(userID));
+        if(sessions == null){
+            return;
+        }
+        
+        for(Session session : sessions){
+            if(!session.isOpen()){
+                continue;
+            }
+            try{
+                session.getAsyncRemote().sendText(Protocol.NOTIFY_CHANGED);
+            }catch(IllegalStateException ex){
+                //already sending one
+            }
+        }
+    }
+    
+    @OnOpen
+    public void onOpen(Session session) throws IOException{
+        byte[] challenge = new byte[Protocol.NOTIFY_CHALLENGE_LENGTH];
+        random.nextBytes(challenge);
+        session.getUserProperties().put(CHALLENGE_PROPERTY, challenge);
+        session.getBasicRemote().sendText(Base64.getEncoder().encodeToString(challenge));
+    }
+    
+    @OnMessage(maxMessageSize = MAX_SUBSCRIBE_MESSAGE_LENGTH)
+    public void onMessage(Session session, String message) throws IOException{
+        if(session.getUserProperties().containsKey(USER_ID_PROPERTY)){
+            return;//already subscribed, nothing else is expected from clients
+        }
+        
+        //the client proves it holds the user's key by signing the challenge, so only the user learns when their notes change
+        byte[] challenge = (byte[])session.getUserProperties().remove(CHALLENGE_PROPERTY);
+        byte[] userID = challenge == null ? null : verifiedUserID(challenge, message);
+        if(userID == null){
+            session.close(new CloseReason(CloseReason.CloseCodes.CANNOT_ACCEPT, "invalid signature"));
+            return;
+        }
+        
+        ByteBuffer key = ByteBuffer.wrap(userID);
+        session.getUserProperties().put(USER_ID_PROPERTY, key);
+        //added inside compute so it can't race with the set being removed when it empties
+        subscribers.compute(key, (k, sessions) -> {
+            if(sessions == null){
+                sessions = ConcurrentHashMap.newKeySet();
+            }
+            sessions.add(session);
+            return sessions;
+        });
+    }
+    
+    //the user id if the message has a valid signature of the challenge, null otherwise
+    private static byte[] verifiedUserID(byte[] challenge, String message){
+        String[] parts = message.trim().split(" ");
+        if(parts.length != 2){
+            return null;
+        }
+        
+        try{
+            byte[] userID = Base64.getDecoder().decode(parts[0]);
+            ECDSASignature signature = ECDSASignature.fromBytes(Base64.getDecoder().decode(parts[1]));
+            return new ECDSASignerVerifier(ECDSAUtil.toPublicKeyParams(userID)).checkChallenge(challenge, signature) ? userID : null;
+        }catch(IllegalArgumentException | ArrayIndexOutOfBoundsException | InvalidKeyException ex){
+            return null;
+        }
+    }
+    
+    @OnClose
+    public void onClose(Session session){
+        unsubscribe(session);
+    }
+    
+    @OnError
+    public void onError(Session session, Throwable t){
+        Logger.getLogger(NotificationEndpoint.class.getName()).log(Level.FINE, null, t);
+        unsubscribe(session);
+    }
+    
+    private static void unsubscribe(Session session){
+        ByteBuffer key = (ByteBuffer)session.getUserProperties().get(USER_ID_PROPERTY);
+        if(key == null){
+            return;
+        }
+        
+        subscribers.computeIfPresent(key, (k, sessions) -> {
+            sessions.remove(session);
+            return sessions.isEmpty() ? null : sessions;
+        });
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteDatabase;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/*
+ * Name     ServerDatabase
+ * Purpose  Data access layer for the server's notes database.
+ */
+public interface ServerDatabase extends NoteDatabase, AutoCloseable{
+    
+    //up to limit of the user's changes numbered after since, in sequence order, each note with only its changed fragments,
+    //the page's cursor is the user's last sequence number once there are no more
+    public ChangePage getChangesSince(ECDSASignerVerifier signerOrVerifier, long since, int limit) throws SQLException;
+    
+    //last sequence number given to the user's changes, 0 if there are none
+    public long getLatestSeq(byte[] userID) throws SQLException;
+    
+    //makes sure the user's changes are numbered after seq from now on, for moving users between databases
+    public void advanceSeq(byte[] userID, long seq) throws SQLException;
+    
+    //up to limit of the user's notes that aren't deleted with ids after the given one(null for the first), in id order, 
+    //each with only its latest fragment
+    public ArrayList<EncryptedNote> getCompactedNotes(ECDSASignerVerifier signerOrVerifier, NoteID after, int limit) throws SQLException;
+    
+    //the user's notes with the given ids, ids that aren't found are skipped
+    public ArrayList<EncryptedNote> getNotes(ECDSASignerVerifier signerOrVerifier, Collection<NoteID> noteIDs) throws SQLException;
+    
+    //latest meta data or fragment edit date of any of the user's notes, null if the user has no notes
+    public Timestamp getLatestEditDate(byte[] userID) throws SQLException;
+    
+    //adds or merges all the notes as one write
+    public void addOrUpdateAll(Collection<EncryptedNote> notes) throws SQLException;
+    
+    //ids of every user that has notes, for moving users between databases
+    public ArrayList<byte[]> getUserIDs() throws SQLException;
+    
+    //deletes all of the user's notes as one write
+    public void removeUser(byte[] userID) throws SQLException;
+    
+    //moves fragments last edited before the date that aren't the latest of their note to cold storage, 
+    //they are still returned by reads that include history, returns the number moved
+    public int archiveHistory(Timestamp editedBefore) throws SQLException;
+    
+    //releases connections and other resources
+    @Override
+    public void close();
+}
@@ -0,0 +1,472 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ServerDatabase spread across several databases by user, all of a user's notes are on one shard.
+ * Users are assigned to shards with a consistent hash ring of virtual nodes, 
+ * so adding a shard only takes users from the others in proportion to its share of the ring.
+ * The shard a user is on is found by trying the ring's shard first then the others, 
+ * so users that haven't been moved since the shards changed are still found.
+ * Where users with notes are is kept for the most recently used users, 
+ * a user with no notes is looked for again each time, so ids that were never written to don't take up the cache.
+ * Users can be moved while they are in use, see {@link #moveUser(byte[], String) moveUser}.
+ * Moves are only seen by this instance, 
+ * so with several server instances on the same shards the others must be stopped while users are moved 
+ * and started again afterwards, or they would keep reading and writing the old shards.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+public class ShardedNoteDatabase implements ServerDatabase, ShardedNoteDatabaseMXBean{
+    private final LinkedHashMap<String, ServerDatabase> shards;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final int maxPlacements;
+    
+    /*
+     * lock on placements is used for this and Placement.users, access ordered so the least recently used users are first
+     */
+        private final LinkedHashMap<ByteBuffer, Placement> placements = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * 
+     * @param shards        the databases by name, names must stay the same for users to stay on the same shards
+     * @param virtualNodes  points on the ring for each shard, more spreads users more evenly
+     * @param maxPlacements most users to remember the shard of, users being used or moved are kept over it
+     */
+    public ShardedNoteDatabase(Map<String, ServerDatabase> shards, int virtualNodes, int maxPlacements){
+        if(shards.isEmpty() || virtualNodes < 1){
+            throw new IllegalArgumentException("need at least one shard and virtual node");
+        }
+        
+        this.maxPlacements = maxPlacements;
+        this.shards = new LinkedHashMap<>(shards);
+        for(String name : shards.keySet()){
+            for(int i = 0; i < virtualNodes; i++){
+                ring.put(hash((name + "#" + i).getBytes(StandardCharsets.UTF_8)), name);
+            }
+        }
+    }
+    
+    /**
+     * Gets the shard the ring assigns a user to, which may not be where the user is yet.
+     * @param userID    the user
+     * @return the name of the shard
+     */
+    public String getHomeShard(byte[] userID){
+        Map.Entry<Long, String> node = ring.ceilingEntry(hash(userID));
+        return (node != null ? node : ring.firstEntry()).getValue();
+    }
+    
+    /**
+     * Moves a user's notes to another shard without stopping reads or writes for the user.
+     * Writes go to both shards while the notes are copied, 
+     * then the user is switched over and the notes are deleted from the old shard.
+     * The new shard numbers the user's changes after the old one's so change feed cursors stay valid, 
+     * writes to both shards are made one at a time for that so the new shard's numbers never fall behind.
+     * Other server instances using the same shards don't see the move, see {@link ShardedNoteDatabase ShardedNoteDatabase}.
+     * @param userID    the user
+     * @param shard     name of the shard to move to
+     * @throws SQLException if reading or copying the notes fails, the user stays where they were
+     * @throws InvalidKeyException if the user id isn't a valid public key
+     */
+    public void moveUser(byte[] userID, String shard) throws SQLException, InvalidKeyException{
+        ServerDatabase target = shards.get(shard);
+        if(target == null){
+            throw new IllegalArgumentException("no such shard: " + shard);
+        }
+        ECDSASignerVerifier verifier = new ECDSASignerVerifier(ECDSAUtil.toPublicKeyParams(userID));
+        
+        //kept in the cache until the move is done so every write sees it
+        Placement placement = acquire(userID, true);
+        try{
+            move(userID, verifier, placement, shard, target);
+        }finally{
+            release(placement);
+        }
+    }
+    
+    private void move(byte[] userID, ECDSASignerVerifier verifier, Placement placement, String shard, ServerDatabase target) throws SQLException{
+        placement.lock.writeLock().lock();
+        try{
+            if(placement.retired || placement.movingTo != null){
+                throw new IllegalStateException("user is already being moved");
+            }
+            if(placement.shard.equals(shard)){
+                return;
+            }
+            //no writes are in progress while the write lock is held
+            target.advanceSeq(userID, shards.get(placement.shard).getLatestSeq(userID));
+            placement.movingTo = shard;
+        }finally{
+            placement.lock.writeLock().unlock();
+        }
+        
+        ServerDatabase source = shards.get(placement.shard);
+        try{
+            //merging is idempotent so writes made during the copy are safe to copy again
+            target.addOrUpdateAll(source.getAllNotes(verifier));
+        }catch(SQLException | RuntimeException ex){
+            placement.lock.writeLock().lock();
+            try{
+                placement.movingTo = null;
+            }finally{
+                placement.lock.writeLock().unlock();
+            }
+            try{
+                target.removeUser(userID);
+            }catch(SQLException cleanupEx){
+                ex.addSuppressed(cleanupEx);
+            }
+            throw ex;
+        }
+        
+        placement.lock.writeLock().lock();
+        try{
+            placement.retired = true;
+            synchronized(placements){
+                placements.put(ByteBuffer.wrap(userID.clone()), new Placement(shard));
+            }
+        }finally{
+            placement.lock.writeLock().unlock();
+        }
+        
+        try{
+            source.removeUser(userID);
+        }catch(SQLException ex){
+            //the stale copy would be found first after a restart if the old shard is the user's home
+            Logger.getLogger(ShardedNoteDatabase.class.getName()).log(Level.SEVERE, "user moved but not deleted from " + placement.shard, ex);
+        }
+    }
+    
+    /**
+     * Moves every user that isn't on its home shard there, for after shards are added or removed from the ring.
+     * @return the number of users moved
+     * @throws SQLException if a user couldn't be moved, users already moved stay moved
+     * @throws InvalidKeyException if a stored user id isn't a valid public key
+     */
+    @Override
+    public int rebalance() throws SQLException, InvalidKeyException{
+        int moved = 0;
+        for(Map.Entry<String, ServerDatabase> entry : shards.entrySet()){
+            for(byte[] userID : entry.getValue().getUserIDs()){
+                String home = getHomeShard(userID);
+                if(!home.equals(entry.getKey()) && !home.equals(getShard(userID))){
+                    moveUser(userID, home);
+                    moved++;
+                }
+            }
+        }
+        return moved;
+    }
+
+    @Override
+    public String[] getShardNames(){
+        return shards.keySet().toArray(new String[shards.size()]);
+    }
+
+    @Override
+    public int getPlacedUsers(){
+        synchronized(placements){
+            return placements.size();
+        }
+    }
+
+    @Override
+    public String getShard(String userID) throws SQLException{
+        return getShard(Base64.getDecoder().decode(userID));
+    }
+    
+    private String getShard(byte[] userID) throws SQLException{
+        Placement placement = acquire(userID, false);
+        try{
+            return placement.shard;
+        }finally{
+            release(placement);
+        }
+    }
+
+    @Override
+    public void moveUser(String userID, String shard) throws SQLException, InvalidKeyException{
+        moveUser(Base64.getDecoder().decode(userID), shard);
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getAllNotes(ECDSASignerVerifier signerOrVerifier) throws SQLException{
+        return read(signerOrVerifier.getPublicKeyBytes(), db -> db.getAllNotes(signerOrVerifier));
+    }
+
+    @Override
+    public ChangePage getChangesSince(ECDSASignerVerifier signerOrVerifier, long since, int limit) throws SQLException{
+        return read(signerOrVerifier.getPublicKeyBytes(), db -> db.getChangesSince(signerOrVerifier, since, limit));
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getCompactedNotes(ECDSASignerVerifier signerOrVerifier, NoteID after, int limit) throws SQLException{
+        return read(signerOrVerifier.getPublicKeyBytes(), db -> db.getCompactedNotes(signerOrVerifier, after, limit));
+    }
+
+    @Override
+    public ArrayList<EncryptedNote> getNotes(ECDSASignerVerifier signerOrVerifier, Collection<NoteID> noteIDs) throws SQLException{
+        return read(signerOrVerifier.getPublicKeyBytes(), db -> db.getNotes(signerOrVerifier, noteIDs));
+    }
+
+    @Override
+    public Timestamp getLatestEditDate(byte[] userID) throws SQLException{
+        return read(userID, db -> db.getLatestEditDate(userID));
+    }
+
+    @Override
+    public long getLatestSeq(byte[] userID) throws SQLException{
+        return read(userID, db -> db.getLatestSeq(userID));
+    }
+
+    @Override
+    public void advanceSeq(byte[] userID, long seq) throws SQLException{
+        read(userID, db -> {
+            db.advanceSeq(userID, seq);
+            return null;
+        });
+    }
+
+    @Override
+    public ArrayList<NoteID> findNotes(byte[] userID, Collection<byte[]> searchTokens) throws SQLException{
+        return read(userID, db -> db.findNotes(userID, searchTokens));
+    }
+
+    @Override
+    public void addOrUpdate(EncryptedNote note) throws SQLException{
+        write(note.getUserID(), Collections.singletonList(note));
+    }
+
+    @Override
+    public void addOrUpdateAll(Collection<EncryptedNote> notes) throws SQLException{
+        LinkedHashMap<ByteBuffer, List<EncryptedNote>> byUser = new LinkedHashMap<>();
+        for(EncryptedNote note : notes){
+            byUser.computeIfAbsent(ByteBuffer.wrap(note.getUserID()), k -> new ArrayList<>()).add(note);
+        }
+        
+        for(Map.Entry<ByteBuffer, List<EncryptedNote>> entry : byUser.entrySet()){
+            write(entry.getKey().array(), entry.getValue());
+        }
+    }
+
+    @Override
+    public ArrayList<byte[]> getUserIDs() throws SQLException{
+        ArrayList<byte[]> ids = new ArrayList<>();
+        for(ServerDatabase shard : shards.values()){
+            ids.addAll(shard.getUserIDs());
+        }
+        return ids;
+    }
+
+    @Override
+    public void removeUser(byte[] userID) throws SQLException{
+        read(userID, db -> {
+            db.removeUser(userID);
+            return null;
+        });
+    }
+
+    @Override
+    public int archiveHistory(Timestamp editedBefore) throws SQLException{
+        int archived = 0;
+        for(ServerDatabase shard : shards.values()){
+            archived += shard.archiveHistory(editedBefore);
+        }
+        return archived;
+    }
+
+    @Override
+    public void close(){
+        for(ServerDatabase shard : shards.values()){
+            shard.close();
+        }
+    }
+    
+    private <T> T read(byte[] userID, ShardCall<T> call) throws SQLException{
+        while(true){
+            Placement placement = acquire(userID, false);
+            placement.lock.readLock().lock();
+            try{
+                if(!placement.retired){
+                    return call.call(shards.get(placement.shard));
+                }
+            }finally{
+                placement.lock.readLock().unlock();
+                release(placement);
+            }
+        }
+    }
+    
+    //cached even if the user has no notes yet, they will once this is done
+    private void write(byte[] userID, Collection<EncryptedNote> notes) throws SQLException{
+        while(true){
+            Placement placement = acquire(userID, true);
+            placement.lock.readLock().lock();
+            try{
+                if(placement.retired){
+                    continue;
+                }
+                if(placement.movingTo == null){
+                    shards.get(placement.shard).addOrUpdateAll(notes);
+                    return;
+                }
+                //same order on both shards so each change is numbered at least as high on the new one
+                synchronized(placement){
+                    shards.get(placement.shard).addOrUpdateAll(notes);
+                    shards.get(placement.movingTo).addOrUpdateAll(notes);
+                }
+                return;
+            }finally{
+                placement.lock.readLock().unlock();
+                release(placement);
+            }
+        }
+    }
+    
+    /**
+     * Gets where the user is and marks it in use so it isn't evicted, {@link #release(Placement) release} it when done.
+     * A placement in use is never evicted, so a move always sees every read and write that uses the cached placement.
+     * @param userID    the user
+     * @param cache     true to cache the placement even if the user has no notes
+     * @return the placement, not cached if the user has no notes and cache is false
+     */
+    private Placement acquire(byte[] userID, boolean cache) throws SQLException{
+        ByteBuffer key = ByteBuffer.wrap(userID.clone());
+        synchronized(placements){
+            Placement placement = placements.get(key);
+            if(placement != null){
+                placement.users++;
+                return placement;
+            }
+        }
+        
+        String found = findShard(userID);
+        if(found == null && !cache){
+            return new Placement(getHomeShard(userID));
+        }
+        
+        synchronized(placements){
+            //another thread may have found the user first
+            Placement placement = placements.get(key);
+            if(placement == null){
+                placement = new Placement(found != null ? found : getHomeShard(userID));
+                placements.put(key, placement);
+                evictUnused();
+            }
+            placement.users++;
+            return placement;
+        }
+    }
+    
+    private void release(Placement placement){
+        synchronized(placements){
+            placement.users--;
+        }
+    }
+    
+    //must hold the lock on placements, the least recently used placement that isn't in use goes
+    private void evictUnused(){
+        if(placements.size() <= maxPlacements){
+            return;
+        }
+        Iterator<Placement> it = placements.values().iterator();
+        while(it.hasNext()){
+            if(it.next().users == 0){
+                it.remove();
+                return;
+            }
+        }
+    }
+    
+    //the home shard unless the user's notes are only on another one, null if the user has no notes on any
+    private String findShard(byte[] userID) throws SQLException{
+        String home = getHomeShard(userID);
+        if(shards.get(home).getLatestEditDate(userID) != null){
+            return home;
+        }
+        
+        for(Map.Entry<String, ServerDatabase> entry : shards.entrySet()){
+            if(!entry.getKey().equals(home) && entry.getValue().getLatestEditDate(userID) != null){
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+    
+    private static long hash(byte[] bytes){
+        try{
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes)).getLong();
+        }catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException("SHA-256 is always available", ex);
+        }
+    }
+    
+    private interface ShardCall<T>{
+        T call(ServerDatabase db) throws SQLException;
+    }
+    
+    /**
+     * Where a user's notes are, replaced rather than changed when the user moves.
+     */
+    private static class Placement{
+        final String shard;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int users = 0;//guarded by placements, callers between acquire and release
+        
+        /*
+         * lock is used for these, reads and writes hold the read lock while they use the shard
+         */
+            String movingTo = null;
+            boolean retired = false;
+
+        Placement(String shard){
+            this.shard = shard;
+        }
+    }
+}
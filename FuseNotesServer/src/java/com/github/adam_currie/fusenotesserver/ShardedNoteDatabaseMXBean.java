@@ -0,0 +1,49 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import java.security.InvalidKeyException;
+import java.sql.SQLException;
+
+/*
+ * Name     ShardedNoteDatabaseMXBean
+ * Purpose  Operator view of the ShardedNoteDatabase, registered with the platform MBean server.
+ *          Users can be moved while the server is running.
+ */
+public interface ShardedNoteDatabaseMXBean{
+    
+    public String[] getShardNames();
+    
+    //users whose shard is cached, the most recently used ones that have notes
+    public int getPlacedUsers();
+    
+    //name of the shard the user's notes are on, userID in base64
+    public String getShard(String userID) throws SQLException, InvalidKeyException;
+    
+    //moves the user's notes to the named shard, userID in base64
+    public void moveUser(String userID, String shard) throws SQLException, InvalidKeyException;
+    
+    //moves every user that isn't on the shard the hash ring gives it, returns the number moved
+    public int rebalance() throws SQLException, InvalidKeyException;
+}
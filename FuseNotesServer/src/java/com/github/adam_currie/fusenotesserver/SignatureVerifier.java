@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.math.ec.WNafUtil;
+
+/**
+ * Checks the signatures of uploaded notes on a dedicated pool sized to the cpu count.
+ * Decoded public keys are kept in an LRU cache along with their precomputed multiples, 
+ * so repeat uploads from a user skip decoding the key and building the tables.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class SignatureVerifier{
+    private static final int KEY_CACHE_SIZE = 10000;
+    
+    //at least this many signatures per task so small uploads aren't split into tasks that cost more to hand off than to run
+    private static final int MIN_SIGNATURES_PER_TASK = 16;
+    
+    //window used by ECDSA verification for 256 bit scalars
+    private static final int WNAF_WIDTH = WNafUtil.getWindowSize(256);
+    
+    private final int threadCount = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService pool;
+    
+    /*
+     * lock on keyCache is used for this
+     */
+        private final LinkedHashMap<ByteBuffer, ECDSASignerVerifier> keyCache = new LinkedHashMap<ByteBuffer, ECDSASignerVerifier>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECDSASignerVerifier> eldest){
+                return size() > KEY_CACHE_SIZE;
+            }
+        };
+    
+    SignatureVerifier(){
+        AtomicInteger threadNumber = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread t = new Thread(r, "signature-verifier-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    /**
+     * Gets a verifier for a user, decoding the key only if it isn't cached.
+     * @param userID the user's compressed public key
+     * @return the verifier
+     * @throws InvalidKeyException if the user id isn't a valid public key
+     */
+    ECDSASignerVerifier getVerifier(byte[] userID) throws InvalidKeyException{
+        ByteBuffer key = ByteBuffer.wrap(userID.clone());
+        synchronized(keyCache){
+            ECDSASignerVerifier cached = keyCache.get(key);
+            if(cached != null){
+                return cached;
+            }
+        }
+        
+        //decoded outside the lock, two threads may both decode a new key but that's harmless
+        ECPublicKeyParameters params = ECDSAUtil.toPublicKeyParams(userID);
+        WNafUtil.precompute(params.getQ(), WNAF_WIDTH, true);
+        ECDSASignerVerifier verifier = new ECDSASignerVerifier(params);
+        
+        synchronized(keyCache){
+            ECDSASignerVerifier raced = keyCache.putIfAbsent(key, verifier);
+            return raced != null ? raced : verifier;
+        }
+    }
+    
+    /**
+     * Checks the signatures of the notes and all their fragments, split across the pool.
+     * Stops early once any signature fails.
+     * @param notes the notes, which must not be modified until this returns
+     * @return true if every signature is valid
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean verifyAll(List<EncryptedNote> notes) throws InterruptedException{
+        ArrayList<SignedItem> items = new ArrayList<>();
+        for(EncryptedNote note : notes){
+            items.add(note::checkSignature);
+            for(EncryptedNote.Fragment frag : note){
+                items.add(frag::checkSignature);
+            }
+        }
+        if(items.isEmpty()){
+            return true;
+        }
+        
+        int taskCount = Math.max(1, Math.min(threadCount, items.size() / MIN_SIGNATURES_PER_TASK));
+        AtomicBoolean failed = new AtomicBoolean(false);
+        ArrayList<Future<?>> tasks = new ArrayList<>(taskCount);
+        for(int t = 0; t < taskCount; t++){
+            List<SignedItem> batch = items.subList(items.size() * t / taskCount, items.size() * (t + 1) / taskCount);
+            tasks.add(pool.submit((Callable<Void>)() -> {
+                for(SignedItem item : batch){
+                    if(failed.get()){
+                        break;
+                    }
+                    if(!item.checkSignature()){
+                        failed.set(true);
+                    }
+                }
+                return null;
+            }));
+        }
+        
+        for(Future<?> task : tasks){
+            try{
+                task.get();
+            }catch(ExecutionException ex){
+                //a malformed signature can throw from inside the verifier
+                failed.set(true);
+            }
+        }
+        
+        return !failed.get();
+    }
+    
+    void shutdown(){
+        pool.shutdown();
+        try{
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private interface SignedItem{
+        boolean checkSignature();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs each user's tasks one at a time in the order they were given, on a shared pool.
+ * A user with queued tasks has a mailbox which takes one pool thread at a time to run them, 
+ * so tasks of different users run in parallel and tasks of the same user never overlap.
+ * The mailbox gives its thread back after MAX_TASKS_PER_TURN tasks so one busy user can't hold it.
+ * Only orders tasks within this server, writes of the same user through other server instances 
+ * are ordered by the database(the user_seq row lock in MySQL), and show up in the UserStateCache after its maxSeqAgeMillis.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class UserMailboxes{
+    private static final int MAX_TASKS_PER_TURN = 8;
+    
+    private final Executor pool;
+    private final int maxQueued;
+    private final ConcurrentHashMap<ByteBuffer, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    
+    /**
+     * 
+     * @param pool      runs the mailboxes
+     * @param maxQueued most tasks a user can have waiting
+     */
+    UserMailboxes(Executor pool, int maxQueued){
+        this.pool = pool;
+        this.maxQueued = maxQueued;
+    }
+    
+    /**
+     * Queues a task to run after the user's earlier tasks.
+     * @param userID    the user
+     * @param task      the task
+     * @throws RejectedExecutionException if the user has too many tasks waiting or the pool is full
+     */
+    void execute(byte[] userID, Runnable task){
+        ByteBuffer key = ByteBuffer.wrap(userID.clone());
+        while(true){
+            Mailbox mailbox = mailboxes.computeIfAbsent(key, Mailbox::new);
+            synchronized(mailbox){
+                if(mailbox.closed){
+                    //emptied and removed after it was looked up
+                    continue;
+                }
+                if(mailbox.tasks.size() >= maxQueued){
+                    throw new RejectedExecutionException("too many tasks queued for the user");
+                }
+                
+                mailbox.tasks.add(task);
+                if(!mailbox.scheduled){
+                    try{
+                        pool.execute(mailbox);
+                    }catch(RejectedExecutionException ex){
+                        mailbox.tasks.removeLast();
+                        mailbox.closeIfEmpty();
+                        throw ex;
+                    }
+                    mailbox.scheduled = true;
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 
+     * @return the number of users with tasks queued or running
+     */
+    int getActiveUsers(){
+        return mailboxes.size();
+    }
+    
+    private class Mailbox implements Runnable{
+        private final ByteBuffer key;
+        
+        /*
+         * lock on this is used for these
+         */
+            private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+            private boolean scheduled = false;//true while the mailbox is queued or running on the pool
+            private boolean closed = false;//true once removed from mailboxes, tasks go in a new mailbox
+
+        Mailbox(ByteBuffer key){
+            this.key = key;
+        }
+
+        @Override
+        public void run(){
+            while(true){
+                for(int i = 0; i < MAX_TASKS_PER_TURN; i++){
+                    Runnable task;
+                    synchronized(this){
+                        task = tasks.poll();
+                        if(task == null){
+                            scheduled = false;
+                            closeIfEmpty();
+                            return;
+                        }
+                    }
+                    
+                    try{
+                        task.run();
+                    }catch(RuntimeException ex){
+                        Logger.getLogger(UserMailboxes.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+                
+                //back of the line, keeps running here if the pool can't take it so queued tasks aren't dropped
+                try{
+                    pool.execute(this);
+                    return;
+                }catch(RejectedExecutionException ex){
+                    Logger.getLogger(UserMailboxes.class.getName()).log(Level.FINE, null, ex);
+                }
+            }
+        }
+        
+        //must hold the lock
+        private void closeIfEmpty(){
+            if(tasks.isEmpty() && !scheduled){
+                closed = true;
+                mailboxes.remove(key, this);
+            }
+        }
+    }
+}
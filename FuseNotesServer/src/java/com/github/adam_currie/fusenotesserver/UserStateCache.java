@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the last change feed sequence number of each user so polls that have nothing new 
+ * can be answered without querying the database.
+ * Also holds the user's {@link MerkleTree MerkleTree} once a client has needed it.
+ * The write path must call {@link #notesWritten(byte[], Collection, long) notesWritten} after storing notes.
+ * Writes made through another server instance sharing the database aren't seen by this cache, 
+ * so a cached number is only used for maxSeqAgeMillis after it was read from the database, 
+ * then it is read again and the tree is dropped if the number moved.
+ * Only users that have changes are cached, so ids that were never written to can't push real users out.
+ * Users are evicted when the cache is full or after being idle too long,
+ * the trees of the least recently used users are dropped when the trees together have too many notes.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+class UserStateCache implements UserStateCacheMXBean{
+    private static final int TREE_PAGE_CHANGES = 1000;
+    
+    private final ServerDatabase db;
+    private final int maxUsers;
+    private final long maxIdleMillis;
+    private final long maxSeqAgeMillis;
+    private final long maxTreeNotes;
+    private final AtomicLong treeNotes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    /*
+     * lock on users is used for this, access ordered so the least recently used users are first
+     */
+        private final LinkedHashMap<ByteBuffer, UserState> users = new LinkedHashMap<>(16, 0.75f, true);
+    
+    /**
+     * 
+     * @param db            the database to load users from on a miss
+     * @param maxUsers      most users to keep
+     * @param maxIdleMillis   how long a user is kept after their last poll or write
+     * @param maxSeqAgeMillis how long a sequence number read from the database is used before reading it again
+     * @param maxTreeNotes    most notes in all of the cached merkle trees together
+     */
+    UserStateCache(ServerDatabase db, int maxUsers, long maxIdleMillis, long maxSeqAgeMillis, long maxTreeNotes){
+        this.db = db;
+        this.maxUsers = maxUsers;
+        this.maxIdleMillis = maxIdleMillis;
+        this.maxSeqAgeMillis = maxSeqAgeMillis;
+        this.maxTreeNotes = maxTreeNotes;
+    }
+    
+    /**
+     * Checks whether the user's change feed has changes after a sequence number.
+     * Counts a hit if the answer is no and came from the cache.
+     * @param userID    the user
+     * @param since     the sequence number
+     * @return false if nothing was changed after since
+     * @throws SQLException if the user's number wasn't cached or was too old and reading it failed
+     */
+    boolean hasChangesSince(byte[] userID, long since) throws SQLException{
+        UserState state = get(userID);
+        if(state == null){
+            misses.increment();
+            long latestSeq = db.getLatestSeq(userID);
+            if(latestSeq > 0){
+                seqRead(getOrCreate(userID), latestSeq, System.currentTimeMillis());
+            }
+            return latestSeq > since;
+        }
+        
+        synchronized(state){
+            long now = System.currentTimeMillis();
+            if(!isFresh(state, now)){
+                misses.increment();
+                seqRead(state, db.getLatestSeq(userID), now);
+            }else if(state.latestSeq <= since){
+                hits.increment();
+            }
+            return state.latestSeq > since;
+        }
+    }
+    
+    /**
+     * Gets the user's last sequence number only if it is cached and recent enough, for answering without the database.
+     * Never adds the user.
+     * Call {@link #countHit() countHit} if it was used to answer.
+     * @param userID    the user
+     * @return the sequence number, -1 if it isn't cached or is too old
+     */
+    long getCachedSeq(byte[] userID){
+        UserState state = get(userID);
+        if(state == null){
+            return -1;
+        }
+        
+        synchronized(state){
+            return isFresh(state, System.currentTimeMillis()) ? state.latestSeq : -1;
+        }
+    }
+    
+    /**
+     * Counts a request that was answered from the cache without the database.
+     */
+    void countHit(){
+        hits.increment();
+    }
+    
+    /**
+     * Gets the user's merkle tree, building it from the database if it isn't cached.
+     * @param verifier  the user
+     * @return the tree, kept up to date by {@link #notesWritten(byte[], Collection, long) notesWritten}
+     * @throws SQLException if building the tree failed
+     */
+    MerkleTree getMerkleTree(ECDSASignerVerifier verifier) throws SQLException{
+        UserState state = getOrCreate(verifier.getPublicKeyBytes());
+        
+        MerkleTree tree;
+        synchronized(state){
+            long now = System.currentTimeMillis();
+            if(!isFresh(state, now)){
+                seqRead(state, db.getLatestSeq(verifier.getPublicKeyBytes()), now);
+            }
+            if(state.tree == null){
+                state.tree = buildTree(verifier);
+                state.treeSize = state.tree.size();
+                treeNotes.addAndGet(state.treeSize);
+            }
+            tree = state.tree;
+        }
+        
+        trimTrees(state);
+        return tree;
+    }
+    
+    //read a page of the change feed at a time, it has every note with its current fragments but not archived history
+    private MerkleTree buildTree(ECDSASignerVerifier verifier) throws SQLException{
+        MerkleTree tree = new MerkleTree();
+        long since = 0;
+        ChangePage page;
+        do{
+            page = db.getChangesSince(verifier, since, TREE_PAGE_CHANGES);
+            for(EncryptedNote note : page.getNotes()){
+                tree.update(note);
+            }
+            since = page.getLastSeq();
+        }while(page.hasMore());
+        return tree;
+    }
+    
+    /**
+     * Stores the user's last sequence number, which the database assigned to the stored notes, 
+     * and adds the notes to the user's merkle tree.
+     * Must be called after the notes are in the database so a concurrent load can't miss them.
+     * @param userID    the user
+     * @param notes     the notes that were stored
+     * @param latestSeq the user's last sequence number, read after the notes were stored
+     */
+    void notesWritten(byte[] userID, Collection<EncryptedNote> notes, long latestSeq){
+        UserState state = getOrCreate(userID);
+        synchronized(state){
+            //concurrent writes can finish in any order, the numbers only go up
+            if(!state.loaded || latestSeq > state.latestSeq){
+                state.latestSeq = latestSeq;
+                state.readAt = System.currentTimeMillis();
+            }
+            state.loaded = true;
+            if(state.tree != null){
+                for(EncryptedNote note : notes){
+                    state.tree.update(note);
+                }
+                int size = state.tree.size();
+                treeNotes.addAndGet(size - state.treeSize);
+                state.treeSize = size;
+            }
+        }
+        
+        trimTrees(state);
+    }
+    
+    //must hold the lock on state
+    private boolean isFresh(UserState state, long now){
+        return state.loaded && now - state.readAt <= maxSeqAgeMillis;
+    }
+    
+    //the tree is dropped if another instance wrote since it was built
+    private void seqRead(UserState state, long latestSeq, long now){
+        synchronized(state){
+            if(state.loaded && latestSeq > state.latestSeq && state.tree != null){
+                treeNotes.addAndGet(-state.treeSize);
+                state.tree = null;
+                state.treeSize = 0;
+            }
+            //a local write may have stored a newer number while this was being read
+            if(!state.loaded || latestSeq >= state.latestSeq){
+                state.latestSeq = latestSeq;
+                state.readAt = now;
+            }
+            state.loaded = true;
+        }
+    }
+    
+    //looks up without adding, counts as an access
+    private UserState get(byte[] userID){
+        synchronized(users){
+            UserState state = users.get(ByteBuffer.wrap(userID));
+            if(state != null){
+                state.lastAccess = System.currentTimeMillis();
+            }
+            return state;
+        }
+    }
+    
+    private UserState getOrCreate(byte[] userID){
+        ByteBuffer key = ByteBuffer.wrap(userID.clone());
+        long now = System.currentTimeMillis();
+        ArrayList<UserState> evicted = new ArrayList<>();
+        
+        UserState state;
+        synchronized(users){
+            evictIdle(now, evicted);
+            
+            state = users.get(key);
+            if(state == null){
+                state = new UserState();
+                users.put(key, state);
+                if(users.size() > maxUsers){
+                    Iterator<UserState> eldest = users.values().iterator();
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                    evictions.increment();
+                }
+            }
+            state.lastAccess = now;
+        }
+        
+        //outside the lock on users, a tree could be being built
+        for(UserState old : evicted){
+            dropTree(old);
+        }
+        return state;
+    }
+    
+    //the least recently used are first, so stop at the first one that isn't idle
+    private void evictIdle(long now, Collection<UserState> evicted){
+        Iterator<Map.Entry<ByteBuffer, UserState>> it = users.entrySet().iterator();
+        while(it.hasNext()){
+            UserState state = it.next().getValue();
+            if(now - state.lastAccess <= maxIdleMillis){
+                return;
+            }
+            evicted.add(state);
+            it.remove();
+            evictions.increment();
+        }
+    }
+    
+    //drops the trees of the least recently used users until the rest fit, except the one just used
+    private void trimTrees(UserState keep){
+        if(treeNotes.get() <= maxTreeNotes){
+            return;
+        }
+        
+        ArrayList<UserState> leastRecentFirst;
+        synchronized(users){
+            leastRecentFirst = new ArrayList<>(users.values());
+        }
+        for(UserState state : leastRecentFirst){
+            if(treeNotes.get() <= maxTreeNotes){
+                return;
+            }
+            if(state != keep){
+                dropTree(state);
+            }
+        }
+    }
+    
+    private void dropTree(UserState state){
+        synchronized(state){
+            if(state.tree != null){
+                treeNotes.addAndGet(-state.treeSize);
+                state.tree = null;
+                state.treeSize = 0;
+            }
+        }
+    }
+
+    @Override
+    public long getHits(){
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate(){
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double)h / total;
+    }
+
+    @Override
+    public long getEvictions(){
+        return evictions.sum();
+    }
+
+    @Override
+    public int getSize(){
+        synchronized(users){
+            return users.size();
+        }
+    }
+
+    @Override
+    public long getTreeNotes(){
+        return treeNotes.get();
+    }
+    
+    private static class UserState{
+        //guarded by users
+        private long lastAccess;
+        
+        /*
+         * lock on the UserState is used for these
+         */
+            private boolean loaded = false;
+            private long latestSeq = 0;
+            private long readAt;
+            private MerkleTree tree = null;
+            private int treeSize = 0;
+    }
+}
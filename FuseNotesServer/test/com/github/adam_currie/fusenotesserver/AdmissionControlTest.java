@@ -0,0 +1,57 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class AdmissionControlTest{
+    
+    @Test
+    public void clientsHaveSeparateBuckets(){
+        AdmissionControl admission = new AdmissionControl(1, 3, 10, 10);
+        for(int i = 0; i < 3; i++){
+            assertEquals(0, admission.tryAcquire("10.0.0.1"));
+        }
+        long wait = admission.tryAcquire("10.0.0.1");
+        assertTrue(wait > 0 && wait <= 1000);
+        
+        //another address has its own bucket
+        assertEquals(0, admission.tryAcquire("10.0.0.2"));
+    }
+    
+    @Test
+    public void inFlightIsCapped(){
+        AdmissionControl admission = new AdmissionControl(1, 1, 10, 2);
+        assertTrue(admission.tryEnter());
+        assertTrue(admission.tryEnter());
+        assertFalse(admission.tryEnter());
+        admission.exit();
+        assertTrue(admission.tryEnter());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesserver.ConnectionPool.PooledConnection;
+import java.sql.Connection;
+import java.sql.SQLException;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class ConnectionPoolTest{
+    private final ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1", "sa", "", 1, 1000);
+    
+    @After
+    public void tearDown(){
+        pool.close();
+    }
+    
+    @Test
+    public void connectionIsReused() throws SQLException{
+        assertSame(use(null), use(null));
+    }
+    
+    @Test
+    public void connectionThatFailedIsClosed() throws SQLException{
+        Connection failed = use(new SQLException("Communications link failure", "08S01"));
+        
+        assertTrue(failed.isClosed());
+        assertNotSame(failed, use(null));
+    }
+    
+    @Test
+    public void connectionFailureFoundInCause() throws SQLException{
+        Connection failed = use(new SQLException("batch failed", "HY000", new SQLException("reset", "08007")));
+        
+        assertTrue(failed.isClosed());
+    }
+    
+    @Test
+    public void connectionWithOtherErrorIsKept() throws SQLException{
+        Connection kept = use(new SQLException("Syntax error", "42000"));
+        
+        assertFalse(kept.isClosed());
+        assertSame(kept, use(null));
+    }
+    
+    //borrows a connection and gives it back after the error, if there is one
+    private Connection use(SQLException error) throws SQLException{
+        try(PooledConnection pooled = pool.borrow()){
+            if(error != null){
+                assertSame(error, pooled.failed(error));
+            }
+            return pooled.get();
+        }
+    }
+}
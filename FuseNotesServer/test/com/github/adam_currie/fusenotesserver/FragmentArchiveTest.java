@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class FragmentArchiveTest{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private final ECDSASignerVerifier signer = 
+            new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    
+    private ArrayList<EncryptedNote> notes(int count){
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            notes.add(new EncryptedNote(signer).setNoteBody("note " + i));
+        }
+        return notes;
+    }
+    
+    @Test
+    public void readsOnlyTheAskedForNotes() throws Exception{
+        FragmentArchive archive = new FragmentArchive(folder.newFolder().toPath());
+        ArrayList<EncryptedNote> first = notes(50);
+        ArrayList<EncryptedNote> second = notes(50);
+        archive.append(signer, first);
+        archive.append(signer, second);
+        
+        HashSet<NoteID> wanted = new HashSet<>();
+        wanted.add(first.get(3).getNoteId());
+        wanted.add(second.get(7).getNoteId());
+        Map<NoteID, EncryptedNote> found = archive.read(signer, wanted);
+        assertEquals(wanted, found.keySet());
+        assertEquals("note 3", found.get(first.get(3).getNoteId()).iterator().next().getNoteBody());
+        assertEquals("note 7", found.get(second.get(7).getNoteId()).iterator().next().getNoteBody());
+        
+        assertEquals(100, archive.read(signer, null).size());
+    }
+    
+    @Test
+    public void mergedSegmentsKeepEveryNote() throws Exception{
+        FragmentArchive archive = new FragmentArchive(folder.newFolder().toPath());
+        ArrayList<EncryptedNote> all = new ArrayList<>();
+        for(int i = 0; i < 20; i++){
+            ArrayList<EncryptedNote> batch = notes(3);
+            archive.append(signer, batch);
+            all.addAll(batch);
+        }
+        
+        Map<NoteID, EncryptedNote> found = archive.read(signer, null);
+        assertEquals(all.size(), found.size());
+        for(EncryptedNote note : all){
+            assertTrue(found.containsKey(note.getNoteId()));
+        }
+    }
+    
+    @Test
+    public void segmentsWithoutAnIndexAreStillRead() throws Exception{
+        Path dir = folder.newFolder().toPath();
+        Path userDir = Files.createDirectories(dir.resolve(
+                Base64.getUrlEncoder().withoutPadding().encodeToString(signer.getPublicKeyBytes())));
+        ArrayList<EncryptedNote> old = notes(5);
+        try(OutputStream file = Files.newOutputStream(userDir.resolve("1.seg")); 
+                DataOutputStream out = new DataOutputStream(new GZIPOutputStream(file))){
+            NoteCodec.writeNotes(out, old);
+        }
+        
+        FragmentArchive archive = new FragmentArchive(dir);
+        archive.append(signer, notes(5));
+        assertEquals(10, archive.read(signer, null).size());
+        assertEquals(Collections.singleton(old.get(2).getNoteId()), 
+                archive.read(signer, Collections.singleton(old.get(2).getNoteId())).keySet());
+        
+        archive.removeUser(signer.getPublicKeyBytes());
+        assertFalse(Files.exists(userDir));
+        assertTrue(archive.read(signer, null).isEmpty());
+    }
+}
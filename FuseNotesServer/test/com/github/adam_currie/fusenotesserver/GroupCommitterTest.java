@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class GroupCommitterTest{
+    private static final int WRITERS = 8;
+    private static final int WRITES_PER_WRITER = 50;
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    @Test
+    public void writesFromManyThreadsAreAllStored() throws Exception{
+        MemoryNoteDatabase db = new MemoryNoteDatabase();
+        GroupCommitter committer = new GroupCommitter(db, 4);
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS);
+        try{
+            ArrayList<ECDSASignerVerifier> signers = new ArrayList<>();
+            ArrayList<Future<?>> writers = new ArrayList<>();
+            for(int i = 0; i < WRITERS; i++){
+                ECDSASignerVerifier signer = newSigner();
+                signers.add(signer);
+                writers.add(pool.submit(() -> {
+                    for(int j = 0; j < WRITES_PER_WRITER; j++){
+                        committer.write(Collections.singletonList(new EncryptedNote(signer).setNoteBody("note " + j)));
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> writer : writers){
+                writer.get(30, TimeUnit.SECONDS);
+            }
+            
+            for(ECDSASignerVerifier signer : signers){
+                assertEquals(WRITES_PER_WRITER, db.getAllNotes(signer).size());
+            }
+        }finally{
+            pool.shutdownNow();
+            committer.shutdown();
+        }
+    }
+    
+    @Test
+    public void writesAfterShutdownFail() throws Exception{
+        GroupCommitter committer = new GroupCommitter(new MemoryNoteDatabase(), 2);
+        committer.shutdown();
+        try{
+            committer.write(Collections.singletonList(new EncryptedNote(newSigner())));
+            fail("write after shutdown was accepted");
+        }catch(SQLException ex){
+            //expected
+        }
+    }
+    
+    @Test(timeout = 30 * 1000)
+    public void writesAreFailedWhenTheCommitterDies() throws Exception{
+        CountDownLatch committing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MemoryNoteDatabase db = new MemoryNoteDatabase(){
+            @Override
+            public void addOrUpdateAll(Collection<EncryptedNote> notes){
+                committing.countDown();
+                try{
+                    release.await();
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                }
+                throw new AssertionError("committer killed by the test");
+            }
+        };
+        GroupCommitter committer = new GroupCommitter(db, 1);
+        ECDSASignerVerifier signer = newSigner();
+        
+        AtomicReference<Exception> inBatch = new AtomicReference<>();
+        Thread first = new Thread(() -> inBatch.set(tryWrite(committer, signer)));
+        first.start();
+        committing.await();
+        
+        //queued behind the dying batch, nothing takes it once the only committer is gone
+        AtomicReference<Exception> queued = new AtomicReference<>();
+        Thread second = new Thread(() -> queued.set(tryWrite(committer, signer)));
+        second.start();
+        while(second.getState() != Thread.State.WAITING){
+            Thread.sleep(1);
+        }
+        
+        release.countDown();
+        first.join();
+        second.join();
+        assertTrue(inBatch.get() instanceof SQLException);
+        assertTrue(queued.get() instanceof SQLException);
+        assertTrue(tryWrite(committer, signer) instanceof SQLException);
+    }
+    
+    private static Exception tryWrite(GroupCommitter committer, ECDSASignerVerifier signer){
+        try{
+            committer.write(Collections.singletonList(new EncryptedNote(signer)));
+            return null;
+        }catch(SQLException | InterruptedException ex){
+            return ex;
+        }
+    }
+}
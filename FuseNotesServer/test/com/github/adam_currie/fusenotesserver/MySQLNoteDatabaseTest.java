@@ -0,0 +1,361 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignature;
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.FragmentID;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests MySQLNoteDatabase against an in memory H2 database in its MySQL mode.
+ * The database doesn't check signatures, so the notes all share one to keep the tests fast.
+ * @author Adam Currie
+ */
+public class MySQLNoteDatabaseTest{
+    private static final AtomicInteger databases = new AtomicInteger();
+    private static final long CREATED = 1500000000000L;
+    private static final int MANY_NOTES = 1200;//more than a chunk of ids
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private ECDSASignerVerifier signer;
+    private ECDSASignature signature;
+    private MySQLNoteDatabase db;
+    private Path blobs;
+    
+    @Before
+    public void setUp() throws Exception{
+        signer = newSigner();
+        signature = new EncryptedNote(signer).getSignature();
+        db = open();
+    }
+    
+    @After
+    public void tearDown(){
+        db.close();
+    }
+    
+    //a new database for each test, it lasts until the pool's connections are closed
+    private MySQLNoteDatabase open() throws Exception{
+        String url = "jdbc:h2:mem:notes" + databases.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE";
+        blobs = folder.newFolder("blobs").toPath();
+        return new MySQLNoteDatabase(new ConnectionPool(url, "sa", "", 4, 10 * 1000), 
+                folder.newFolder("archive").toPath(), blobs);
+    }
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    private EncryptedNote note(ECDSASignerVerifier user, NoteID id, long metaEdit, boolean deleted){
+        return new EncryptedNote(id, user, new Timestamp(CREATED), new Timestamp(CREATED + metaEdit), deleted, signature);
+    }
+    
+    private void addFragment(EncryptedNote note, FragmentID id, long create, long edit, String body, byte[] tokens){
+        note.addFragment(id, new Timestamp(CREATED + create), new Timestamp(CREATED + edit), body, tokens, false, signature);
+    }
+    
+    private static byte[] token(int value){
+        return ByteBuffer.allocate(Protocol.SEARCH_TOKEN_LENGTH).putLong(value).array();
+    }
+    
+    private static EncryptedNote.Fragment onlyFragment(EncryptedNote note){
+        Iterator<EncryptedNote.Fragment> fragments = note.iterator();
+        EncryptedNote.Fragment frag = fragments.next();
+        assertFalse(fragments.hasNext());
+        return frag;
+    }
+    
+    private EncryptedNote get(NoteID id) throws Exception{
+        ArrayList<EncryptedNote> found = db.getNotes(signer, Collections.singletonList(id));
+        assertEquals(1, found.size());
+        return found.get(0);
+    }
+    
+    @Test
+    public void upsertKeepsNewerMetaData() throws Exception{
+        NoteID id = new NoteID();
+        db.addOrUpdate(note(signer, id, 10, false));
+        db.addOrUpdate(note(signer, id, 20, true));
+        db.addOrUpdate(note(signer, id, 15, false));//older, ignored
+        
+        EncryptedNote stored = get(id);
+        assertTrue(stored.getDeleted());
+        assertEquals(CREATED + 20, stored.getMetaEditDate().getTime());
+    }
+    
+    @Test
+    public void upsertKeepsNewerFragments() throws Exception{
+        NoteID id = new NoteID();
+        FragmentID fragID = new FragmentID();
+        
+        EncryptedNote first = note(signer, id, 0, false);
+        addFragment(first, fragID, 0, 10, "first", token(1));
+        EncryptedNote second = note(signer, id, 0, false);
+        addFragment(second, fragID, 0, 20, "second", token(2));
+        EncryptedNote stale = note(signer, id, 0, false);
+        addFragment(stale, fragID, 0, 15, "stale", token(3));
+        
+        //all in one batch, rows written earlier in the batch are updated by later ones
+        db.addOrUpdateAll(Arrays.asList(first, second, stale));
+        
+        EncryptedNote.Fragment frag = onlyFragment(get(id));
+        assertEquals("second", frag.getNoteBody());
+        assertEquals(CREATED + 20, frag.getEditDate().getTime());
+        assertArrayEquals(token(2), frag.getSearchTokens());
+    }
+    
+    @Test
+    public void sameDateCopiesSettleOnHigherSignature() throws Exception{
+        NoteID id = new NoteID();
+        ECDSASignature other = new EncryptedNote(signer).getSignature();
+        ECDSASignature low = signature.compareTo(other) < 0 ? signature : other;
+        ECDSASignature high = low == signature ? other : signature;
+        
+        //either order of upload ends with the same copy
+        db.addOrUpdate(new EncryptedNote(id, signer, new Timestamp(CREATED), new Timestamp(CREATED + 10), false, high));
+        long seq = db.getLatestSeq(signer.getPublicKeyBytes());
+        db.addOrUpdate(new EncryptedNote(id, signer, new Timestamp(CREATED), new Timestamp(CREATED + 10), false, low));
+        assertEquals(high, get(id).getSignature());
+        assertTrue(db.getChangesSince(signer, seq, Protocol.MAX_SYNC_LIMIT).getNotes().isEmpty());
+        
+        NoteID otherID = new NoteID();
+        db.addOrUpdate(new EncryptedNote(otherID, signer, new Timestamp(CREATED), new Timestamp(CREATED + 10), false, low));
+        seq = db.getLatestSeq(signer.getPublicKeyBytes());
+        db.addOrUpdate(new EncryptedNote(otherID, signer, new Timestamp(CREATED), new Timestamp(CREATED + 10), false, high));
+        assertEquals(high, get(otherID).getSignature());
+        assertEquals(1, db.getChangesSince(signer, seq, Protocol.MAX_SYNC_LIMIT).getNotes().size());
+    }
+    
+    @Test
+    public void sameCopyUploadedAgainKeepsItsNumber() throws Exception{
+        NoteID id = new NoteID();
+        EncryptedNote note = note(signer, id, 10, false);
+        addFragment(note, new FragmentID(), 0, 10, "body", token(1));
+        db.addOrUpdate(note);
+        long seq = db.getLatestSeq(signer.getPublicKeyBytes());
+        
+        db.addOrUpdate(note);
+        
+        ChangePage page = db.getChangesSince(signer, seq, Protocol.MAX_SYNC_LIMIT);
+        assertTrue(page.getNotes().isEmpty());
+        assertFalse(page.hasMore());
+    }
+    
+    @Test
+    public void batchOfManyNotesIsStoredAndNumbered() throws Exception{
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        for(int i = 0; i < MANY_NOTES; i++){
+            EncryptedNote note = note(signer, new NoteID(), 0, false);
+            addFragment(note, new FragmentID(), 0, 0, "a" + i, token(i));
+            addFragment(note, new FragmentID(), 1, 1, "b" + i, token(i));
+            notes.add(note);
+        }
+        db.addOrUpdateAll(notes);
+        
+        HashMap<NoteID, Integer> fragments = new HashMap<>();
+        for(EncryptedNote note : db.getAllNotes(signer)){
+            fragments.put(note.getNoteId(), countFragments(note));
+        }
+        assertEquals(MANY_NOTES, fragments.size());
+        assertEquals(Collections.singleton(2), new HashSet<>(fragments.values()));
+        
+        //a change for each note's meta data and each fragment, numbered without gaps
+        assertEquals(3 * MANY_NOTES, db.getLatestSeq(signer.getPublicKeyBytes()));
+        HashSet<NoteID> changed = new HashSet<>();
+        long cursor = 0;
+        int pages = 0;
+        for(boolean more = true; more; pages++){
+            ChangePage page = db.getChangesSince(signer, cursor, Protocol.MAX_SYNC_LIMIT);
+            for(EncryptedNote note : page.getNotes()){
+                changed.add(note.getNoteId());
+            }
+            cursor = page.getLastSeq();
+            more = page.hasMore();
+        }
+        assertEquals(fragments.keySet(), changed);
+        assertEquals(3 * MANY_NOTES, cursor);
+        assertEquals((3 * MANY_NOTES + Protocol.MAX_SYNC_LIMIT - 1) / Protocol.MAX_SYNC_LIMIT, pages);
+    }
+    
+    @Test
+    public void getNotesChunksLongIDLists() throws Exception{
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        ArrayList<NoteID> ids = new ArrayList<>();
+        for(int i = 0; i < MANY_NOTES; i++){
+            EncryptedNote note = note(signer, new NoteID(), 0, false);
+            addFragment(note, new FragmentID(), 0, 0, "body" + i, new byte[0]);
+            notes.add(note);
+            ids.add(note.getNoteId());
+        }
+        db.addOrUpdateAll(notes);
+        
+        //ids that aren't stored, in every chunk
+        ArrayList<NoteID> requested = new ArrayList<>();
+        for(int i = 0; i < ids.size(); i++){
+            requested.add(ids.get(i));
+            if(i % 100 == 0){
+                requested.add(new NoteID());
+            }
+        }
+        
+        HashSet<NoteID> found = new HashSet<>();
+        for(EncryptedNote note : db.getNotes(signer, requested)){
+            assertTrue(found.add(note.getNoteId()));
+            assertEquals(1, countFragments(note));
+        }
+        assertEquals(new HashSet<>(ids), found);
+    }
+    
+    @Test
+    public void searchTokensFollowLatestFragment() throws Exception{
+        NoteID id = new NoteID();
+        EncryptedNote note = note(signer, id, 0, false);
+        addFragment(note, new FragmentID(), 0, 0, "old", token(1));
+        db.addOrUpdate(note);
+        assertEquals(Collections.singletonList(id), db.findNotes(signer.getPublicKeyBytes(), Collections.singletonList(token(1))));
+        
+        EncryptedNote edit = note(signer, id, 0, false);
+        addFragment(edit, new FragmentID(), 10, 10, "new", token(2));
+        db.addOrUpdate(edit);
+        assertTrue(db.findNotes(signer.getPublicKeyBytes(), Collections.singletonList(token(1))).isEmpty());
+        assertEquals(Collections.singletonList(id), db.findNotes(signer.getPublicKeyBytes(), Collections.singletonList(token(2))));
+        
+        db.addOrUpdate(note(signer, id, 20, true));
+        assertTrue(db.findNotes(signer.getPublicKeyBytes(), Collections.singletonList(token(2))).isEmpty());
+    }
+    
+    @Test
+    public void largeBodiesRoundTripThroughBlobStore() throws Exception{
+        char[] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'x');
+        String body = new String(chars);
+        
+        NoteID id = new NoteID();
+        EncryptedNote note = note(signer, id, 0, false);
+        addFragment(note, new FragmentID(), 0, 0, body, new byte[0]);
+        db.addOrUpdate(note);
+        
+        assertEquals(body, onlyFragment(get(id)).getNoteBody());
+    }
+    
+    @Test
+    public void editedBodyDeletesTheOldBlob() throws Exception{
+        char[] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'a');
+        String first = new String(chars);
+        Arrays.fill(chars, 'b');
+        String second = new String(chars);
+        
+        NoteID id = new NoteID();
+        FragmentID fragID = new FragmentID();
+        EncryptedNote note = note(signer, id, 0, false);
+        addFragment(note, fragID, 0, 0, first, new byte[0]);
+        db.addOrUpdate(note);
+        assertEquals(1, blobCount());
+        
+        EncryptedNote edit = note(signer, id, 1, false);
+        addFragment(edit, fragID, 0, 1, second, new byte[0]);
+        db.addOrUpdate(edit);
+        
+        assertEquals(1, blobCount());
+        assertEquals(second, onlyFragment(get(id)).getNoteBody());
+    }
+    
+    private long blobCount() throws IOException{
+        try(Stream<Path> files = Files.walk(blobs)){
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+    
+    @Test
+    public void removeUserOnlyRemovesThatUser() throws Exception{
+        ECDSASignerVerifier other = newSigner();
+        EncryptedNote mine = note(signer, new NoteID(), 0, false);
+        addFragment(mine, new FragmentID(), 0, 0, "mine", token(1));
+        EncryptedNote theirs = note(other, new NoteID(), 0, false);
+        addFragment(theirs, new FragmentID(), 0, 0, "theirs", token(1));
+        db.addOrUpdateAll(Arrays.asList(mine, theirs));
+        
+        db.removeUser(signer.getPublicKeyBytes());
+        
+        assertTrue(db.getAllNotes(signer).isEmpty());
+        assertEquals(0, db.getLatestSeq(signer.getPublicKeyBytes()));
+        assertTrue(db.findNotes(signer.getPublicKeyBytes(), Collections.singletonList(token(1))).isEmpty());
+        assertEquals(1, db.getAllNotes(other).size());
+        assertEquals(1, db.findNotes(other.getPublicKeyBytes(), Collections.singletonList(token(1))).size());
+    }
+    
+    @Test
+    public void reopeningKeepsNotes() throws Exception{
+        String url = "jdbc:h2:mem:reopen" + databases.incrementAndGet() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+        EncryptedNote note = note(signer, new NoteID(), 0, false);
+        addFragment(note, new FragmentID(), 0, 0, "body", new byte[0]);
+        
+        MySQLNoteDatabase first = new MySQLNoteDatabase(new ConnectionPool(url, "sa", "", 1, 10 * 1000), null, null);
+        first.addOrUpdate(note);
+        first.close();
+        
+        //the tables and columns already exist
+        MySQLNoteDatabase second = new MySQLNoteDatabase(new ConnectionPool(url, "sa", "", 1, 10 * 1000), null, null);
+        try{
+            assertEquals(1, second.getAllNotes(signer).size());
+        }finally{
+            second.close();
+        }
+    }
+    
+    private static int countFragments(EncryptedNote note){
+        int count = 0;
+        for(EncryptedNote.Fragment frag : note){
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.ClientEndpointConfig;
+import javax.websocket.CloseReason;
+import javax.websocket.ContainerProvider;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
+import javax.websocket.Session;
+import javax.websocket.WebSocketContainer;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the subscribe handshake of NotificationEndpoint in an embedded Jetty.
+ * @author Adam Currie
+ */
+public class NotificationEndpointTest{
+    private static final long TIMEOUT_SECONDS = 10;
+    
+    private static Server server;
+    private static URI uri;
+    private static WebSocketContainer client;
+    
+    @BeforeClass
+    public static void startServer() throws Exception{
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setPort(0);
+        server.addConnector(connector);
+        
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/FuseNotesServer");
+        WebSocketServerContainerInitializer.configure(context, (servletContext, container) -> container.addEndpoint(NotificationEndpoint.class));
+        server.setHandler(context);
+        
+        server.start();
+        uri = new URI("ws://localhost:" + connector.getLocalPort() + "/FuseNotesServer/NoteServlet" + Protocol.NOTIFY_PATH);
+        client = ContainerProvider.getWebSocketContainer();
+    }
+    
+    @AfterClass
+    public static void stopServer() throws Exception{
+        server.stop();
+    }
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    @Test
+    public void signedChallengeSubscribes() throws Exception{
+        ECDSASignerVerifier signer = newSigner();
+        Listener listener = new Listener();
+        Session session = client.connectToServer(listener, ClientEndpointConfig.Builder.create().build(), uri);
+        try{
+            byte[] challenge = Base64.getDecoder().decode(listener.next());
+            assertEquals(Protocol.NOTIFY_CHALLENGE_LENGTH, challenge.length);
+            session.getBasicRemote().sendText(subscribe(signer, signer, challenge));
+            
+            //the subscription is added after the message arrives, keep notifying until it has been
+            String message = null;
+            for(long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS); message == null && System.nanoTime() < end;){
+                NotificationEndpoint.notifyChanged(signer.getPublicKeyBytes());
+                message = listener.messages.poll(100, TimeUnit.MILLISECONDS);
+            }
+            assertEquals(Protocol.NOTIFY_CHANGED, message);
+        }finally{
+            session.close();
+        }
+    }
+    
+    @Test
+    public void otherUsersSignatureIsRefused() throws Exception{
+        ECDSASignerVerifier victim = newSigner();
+        ECDSASignerVerifier attacker = newSigner();
+        Listener listener = new Listener();
+        client.connectToServer(listener, ClientEndpointConfig.Builder.create().build(), uri)
+                .getBasicRemote().sendText(subscribe(victim, attacker, Base64.getDecoder().decode(listener.next())));
+        
+        CloseReason reason = listener.closed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(reason);
+        assertEquals(CloseReason.CloseCodes.CANNOT_ACCEPT, reason.getCloseCode());
+    }
+    
+    @Test
+    public void userIDWithoutSignatureIsRefused() throws Exception{
+        ECDSASignerVerifier victim = newSigner();
+        Listener listener = new Listener();
+        client.connectToServer(listener, ClientEndpointConfig.Builder.create().build(), uri)
+                .getBasicRemote().sendText(Base64.getEncoder().encodeToString(victim.getPublicKeyBytes()));
+        
+        listener.next();//challenge
+        CloseReason reason = listener.closed.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(reason);
+        assertEquals(CloseReason.CloseCodes.CANNOT_ACCEPT, reason.getCloseCode());
+    }
+    
+    private static String subscribe(ECDSASignerVerifier user, ECDSASignerVerifier signer, byte[] challenge){
+        return Base64.getEncoder().encodeToString(user.getPublicKeyBytes()) + " " 
+                + Base64.getEncoder().encodeToString(signer.signChallenge(challenge).toBytes());
+    }
+    
+    private static class Listener extends Endpoint{
+        private final BlockingQueue<String> messages = new ArrayBlockingQueue<>(64);
+        private final BlockingQueue<CloseReason> closed = new ArrayBlockingQueue<>(1);
+        
+        @Override
+        public void onOpen(Session session, EndpointConfig config){
+            //not a lambda, the container reads the message type from the class
+            session.addMessageHandler(new MessageHandler.Whole<String>(){
+                @Override
+                public void onMessage(String message){
+                    messages.offer(message);
+                }
+            });
+        }
+        
+        @Override
+        public void onClose(Session session, CloseReason reason){
+            closed.offer(reason);
+        }
+        
+        private String next() throws InterruptedException{
+            String message = messages.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertNotNull(message);
+            return message;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests ShardedNoteDatabase with in memory shards.
+ * @author Adam Currie
+ */
+public class ShardedNoteDatabaseTest{
+    private static final int VIRTUAL_NODES = 128;
+    private static final int RING_USERS = 3000;
+    private static final int NOTES_BEFORE_MOVE = 2000;
+    private static final int WRITERS = 4;
+    private static final int MAX_PLACEMENTS = 100;
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    private static LinkedHashMap<String, ServerDatabase> shards(MemoryNoteDatabase... dbs){
+        LinkedHashMap<String, ServerDatabase> shards = new LinkedHashMap<>();
+        for(int i = 0; i < dbs.length; i++){
+            shards.put("shard" + i, dbs[i]);
+        }
+        return shards;
+    }
+    
+    private static ArrayList<EncryptedNote> notes(ECDSASignerVerifier signer, int count){
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            notes.add(new EncryptedNote(signer).setNoteBody("note " + i));
+        }
+        return notes;
+    }
+    
+    private static Set<NoteID> ids(Iterable<EncryptedNote> notes){
+        HashSet<NoteID> ids = new HashSet<>();
+        for(EncryptedNote note : notes){
+            ids.add(note.getNoteId());
+        }
+        return ids;
+    }
+    
+    @Test
+    public void ringSpreadsUsersAndAddingAShardOnlyTakesUsers(){
+        ShardedNoteDatabase three = new ShardedNoteDatabase(
+                shards(new MemoryNoteDatabase(), new MemoryNoteDatabase(), new MemoryNoteDatabase()), VIRTUAL_NODES, MAX_PLACEMENTS);
+        ShardedNoteDatabase four = new ShardedNoteDatabase(
+                shards(new MemoryNoteDatabase(), new MemoryNoteDatabase(), new MemoryNoteDatabase(), new MemoryNoteDatabase()), VIRTUAL_NODES, MAX_PLACEMENTS);
+        
+        SecureRandom random = new SecureRandom();
+        HashMap<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for(int i = 0; i < RING_USERS; i++){
+            byte[] userID = new byte[33];
+            random.nextBytes(userID);
+            
+            String home = three.getHomeShard(userID);
+            assertEquals(home, three.getHomeShard(userID.clone()));
+            counts.merge(home, 1, Integer::sum);
+            
+            //users only move to the new shard, never between the old ones
+            String newHome = four.getHomeShard(userID);
+            if(!newHome.equals(home)){
+                assertEquals("shard3", newHome);
+                moved++;
+            }
+        }
+        
+        assertEquals(3, counts.size());
+        for(int count : counts.values()){
+            assertTrue("uneven spread: " + counts, count > RING_USERS / 5 && count < RING_USERS / 2);
+        }
+        assertTrue("moved " + moved, moved > RING_USERS / 8 && moved < RING_USERS * 3 / 8);
+    }
+    
+    @Test
+    public void notesAreWrittenToTheHomeShard() throws Exception{
+        MemoryNoteDatabase[] dbs = {new MemoryNoteDatabase(), new MemoryNoteDatabase()};
+        ShardedNoteDatabase sharded = new ShardedNoteDatabase(shards(dbs), VIRTUAL_NODES, MAX_PLACEMENTS);
+        
+        for(int u = 0; u < 20; u++){
+            ECDSASignerVerifier signer = newSigner();
+            ArrayList<EncryptedNote> notes = notes(signer, 3);
+            sharded.addOrUpdateAll(notes);
+            
+            String home = sharded.getHomeShard(signer.getPublicKeyBytes());
+            for(int i = 0; i < dbs.length; i++){
+                int expected = home.equals("shard" + i) ? 3 : 0;
+                assertEquals(expected, dbs[i].getAllNotes(signer).size());
+            }
+            assertEquals(ids(notes), ids(sharded.getAllNotes(signer)));
+        }
+    }
+    
+    @Test
+    public void moveUserKeepsWritesMadeDuringTheMove() throws Exception{
+        MemoryNoteDatabase[] dbs = {new MemoryNoteDatabase(), new MemoryNoteDatabase()};
+        ShardedNoteDatabase sharded = new ShardedNoteDatabase(shards(dbs), VIRTUAL_NODES, MAX_PLACEMENTS);
+        ECDSASignerVerifier signer = newSigner();
+        byte[] userID = signer.getPublicKeyBytes();
+        
+        ArrayList<EncryptedNote> before = notes(signer, NOTES_BEFORE_MOVE);
+        sharded.addOrUpdateAll(before);
+        long cursor = sharded.getLatestSeq(userID);
+        String from = sharded.getShard(Base64.getEncoder().encodeToString(userID));
+        String to = from.equals("shard0") ? "shard1" : "shard0";
+        MemoryNoteDatabase source = dbs[from.equals("shard0") ? 0 : 1];
+        MemoryNoteDatabase target = dbs[from.equals("shard0") ? 1 : 0];
+        
+        //writers keep going until the move is done, and write once more after
+        AtomicBoolean moved = new AtomicBoolean();
+        ExecutorService pool = Executors.newFixedThreadPool(WRITERS);
+        ArrayList<Future<Set<NoteID>>> writers = new ArrayList<>();
+        for(int w = 0; w < WRITERS; w++){
+            writers.add(pool.submit(() -> {
+                HashSet<NoteID> written = new HashSet<>();
+                boolean last = false;
+                while(!last){
+                    last = moved.get();
+                    ArrayList<EncryptedNote> batch = notes(signer, 5);
+                    sharded.addOrUpdateAll(batch);
+                    written.addAll(ids(batch));
+                }
+                return written;
+            }));
+        }
+        
+        sharded.moveUser(userID, to);
+        moved.set(true);
+        HashSet<NoteID> during = new HashSet<>();
+        for(Future<Set<NoteID>> writer : writers){
+            during.addAll(writer.get(60, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+        
+        HashSet<NoteID> all = new HashSet<>(ids(before));
+        all.addAll(during);
+        assertEquals(to, sharded.getShard(Base64.getEncoder().encodeToString(userID)));
+        assertEquals(all, ids(target.getAllNotes(signer)));
+        assertTrue(source.getAllNotes(signer).isEmpty());
+        assertEquals(all, ids(sharded.getAllNotes(signer)));
+        
+        //a client that synced before the move gets everything written since from its old cursor,
+        //the copied notes are sent again too since the new shard numbers them after the cursor
+        HashSet<NoteID> changed = new HashSet<>();
+        for(boolean more = true; more;){
+            ChangePage page = sharded.getChangesSince(signer, cursor, Protocol.MAX_SYNC_LIMIT);
+            changed.addAll(ids(page.getNotes()));
+            cursor = page.getLastSeq();
+            more = page.hasMore();
+        }
+        assertTrue(changed.containsAll(during));
+    }
+    
+    @Test
+    public void rebalanceMovesUsersToTheirHomeShards() throws Exception{
+        MemoryNoteDatabase first = new MemoryNoteDatabase();
+        MemoryNoteDatabase second = new MemoryNoteDatabase();
+        
+        //every user starts on the only shard
+        ShardedNoteDatabase one = new ShardedNoteDatabase(shards(first), VIRTUAL_NODES, MAX_PLACEMENTS);
+        ArrayList<ECDSASignerVerifier> users = new ArrayList<>();
+        for(int u = 0; u < 30; u++){
+            ECDSASignerVerifier signer = newSigner();
+            one.addOrUpdateAll(notes(signer, 2));
+            users.add(signer);
+        }
+        
+        ShardedNoteDatabase two = new ShardedNoteDatabase(shards(first, second), VIRTUAL_NODES, MAX_PLACEMENTS);
+        int away = 0;
+        for(ECDSASignerVerifier signer : users){
+            //found where they are until they're moved
+            assertEquals(2, two.getAllNotes(signer).size());
+            if(two.getHomeShard(signer.getPublicKeyBytes()).equals("shard1")){
+                away++;
+            }
+        }
+        assertTrue(away > 0);
+        
+        assertEquals(away, two.rebalance());
+        assertEquals(0, two.rebalance());
+        for(ECDSASignerVerifier signer : users){
+            boolean home = two.getHomeShard(signer.getPublicKeyBytes()).equals("shard1");
+            assertEquals(home ? 0 : 2, first.getAllNotes(signer).size());
+            assertEquals(home ? 2 : 0, second.getAllNotes(signer).size());
+        }
+        assertEquals(users.size(), new HashSet<>(byteBuffers(two.getUserIDs())).size());
+    }
+    
+    private static ArrayList<ByteBuffer> byteBuffers(Iterable<byte[]> ids){
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        for(byte[] id : ids){
+            buffers.add(ByteBuffer.wrap(id));
+        }
+        return buffers;
+    }
+    
+    @Test
+    public void onlyUsersWithNotesArePlacedAndOnlyTheRecentOnes() throws Exception{
+        ShardedNoteDatabase sharded = new ShardedNoteDatabase(
+                shards(new MemoryNoteDatabase(), new MemoryNoteDatabase()), VIRTUAL_NODES, 10);
+        
+        for(int u = 0; u < 50; u++){
+            assertEquals(0, sharded.getLatestSeq(newSigner().getPublicKeyBytes()));
+        }
+        assertEquals(0, sharded.getPlacedUsers());
+        
+        ArrayList<ECDSASignerVerifier> users = new ArrayList<>();
+        for(int u = 0; u < 30; u++){
+            ECDSASignerVerifier signer = newSigner();
+            users.add(signer);
+            sharded.addOrUpdateAll(notes(signer, 1));
+        }
+        assertEquals(10, sharded.getPlacedUsers());
+        
+        //evicted users are found again
+        for(ECDSASignerVerifier signer : users){
+            assertEquals(1, sharded.getAllNotes(signer).size());
+        }
+        assertEquals(10, sharded.getPlacedUsers());
+    }
+}
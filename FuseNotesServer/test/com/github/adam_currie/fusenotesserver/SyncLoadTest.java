@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.NoteCodec;
+import com.github.adam_currie.fusenotesshared.NoteID;
+import com.github.adam_currie.fusenotesshared.Protocol;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the sync endpoints, with NoteServlet in an embedded Jetty using the in memory database.
+ * The container gets only a few threads, so the test fails if requests hold a container thread while they wait on a client.
+ * @author Adam Currie
+ */
+public class SyncLoadTest{
+    private static final int CONTAINER_THREADS = 16;
+    private static final int USERS = 16;
+    private static final int ROUNDS = 5;
+    private static final int NOTES_PER_UPLOAD = 20;
+    private static final int SLOW_CLIENTS = 4 * CONTAINER_THREADS;
+    private static final long TIMEOUT_SECONDS = 120;
+    
+    private static Server server;
+    private static String url;
+    private static int port;
+    
+    @BeforeClass
+    public static void startServer() throws Exception{
+        server = new Server(new QueuedThreadPool(CONTAINER_THREADS, CONTAINER_THREADS));
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        connector.setPort(0);
+        server.addConnector(connector);
+        
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/FuseNotesServer");
+        context.setInitParameter("db.type", "memory");
+        //the rate limits aren't what's being tested
+        context.setInitParameter("admission.clientRequestsPerSecond", "10000");
+        context.setInitParameter("admission.clientBurst", "10000");
+        context.setInitParameter("admission.maxInFlight", "1024");
+        context.setInitParameter("admission.maxQueued", "1024");
+        context.setInitParameter("admission.maxUserQueued", "64");
+        ServletHolder holder = context.addServlet(NoteServlet.class, "/NoteServlet/*");
+        holder.setAsyncSupported(true);
+        holder.setInitOrder(0);
+        server.setHandler(context);
+        
+        server.start();
+        port = connector.getLocalPort();
+        url = "http://localhost:" + port + "/FuseNotesServer/NoteServlet";
+    }
+    
+    @AfterClass
+    public static void stopServer() throws Exception{
+        server.stop();
+    }
+    
+    /**
+     * Every user uploads ROUNDS batches then pages through their changes, all users at once.
+     * Each user must get back exactly the notes they uploaded, with valid signatures.
+     */
+    @Test
+    public void concurrentUploadsAndSyncs() throws Exception{
+        ExecutorService clients = Executors.newFixedThreadPool(USERS);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        
+        long start = System.nanoTime();
+        ArrayList<Future<?>> users = new ArrayList<>();
+        for(int u = 0; u < USERS; u++){
+            users.add(clients.submit(() -> {
+                runUser(latencies);
+                return null;
+            }));
+        }
+        for(Future<?> user : users){
+            user.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        clients.shutdown();
+        
+        ArrayList<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        Logger.getLogger(SyncLoadTest.class.getName()).log(Level.INFO, 
+                "{0} requests in {1} ms, {2} req/s, p50 {3} ms, p99 {4} ms", new Object[]{
+                    sorted.size(), elapsedMillis, sorted.size() * 1000 / Math.max(1, elapsedMillis), 
+                    sorted.get(sorted.size() / 2), sorted.get(sorted.size() * 99 / 100)
+                });
+    }
+    
+    /**
+     * Reads must be signed by the user they name, even a poll that would get 304.
+     */
+    @Test
+    public void unsignedReadsAreRefused() throws Exception{
+        ECDSASignerVerifier user = newSigner();
+        ECDSASignerVerifier other = newSigner();
+        
+        HttpURLConnection unsigned = open(Protocol.SYNC_PATH 
+                + "?user=" + Base64.getUrlEncoder().withoutPadding().encodeToString(user.getPublicKeyBytes()) 
+                + "&cursor=0&limit=1");
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, unsigned.getResponseCode());
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, openPoll(user, other, 0).getResponseCode());
+        
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        NoteCodec.writeBytes(out, user.getPublicKeyBytes());
+        out.writeInt(0);
+        out.flush();
+        HttpURLConnection fetch = open(Protocol.FETCH_PATH);
+        sign(fetch, other, "POST", Protocol.FETCH_PATH, request.toByteArray());
+        fetch.setRequestMethod("POST");
+        fetch.setDoOutput(true);
+        try(OutputStream body = fetch.getOutputStream()){
+            request.writeTo(body);
+        }
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, fetch.getResponseCode());
+        
+        assertEquals(HttpURLConnection.HTTP_OK, openPoll(user, user, 0).getResponseCode());
+    }
+    
+    /**
+     * Slow clients that send their headers and then trickle the body in(or stop) 
+     * mustn't keep the container from serving other requests.
+     */
+    @Test
+    public void slowClientsDontHoldContainerThreads() throws Exception{
+        ArrayList<Socket> slow = new ArrayList<>();
+        try{
+            for(int i = 0; i < SLOW_CLIENTS; i++){
+                Socket socket = new Socket("localhost", port);
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /FuseNotesServer/NoteServlet" + Protocol.UPLOAD_PATH + " HTTP/1.1\r\n"
+                        + "Host: localhost\r\n"
+                        + "Content-Type: " + Protocol.CONTENT_TYPE + "\r\n"
+                        + "Content-Length: 100000\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(new byte[]{33});
+                out.flush();
+                slow.add(socket);
+            }
+            
+            ExecutorService client = Executors.newSingleThreadExecutor();
+            try{
+                client.submit(() -> {
+                    runUser(new ArrayList<>());
+                    return null;
+                }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }finally{
+                client.shutdownNow();
+            }
+        }finally{
+            for(Socket socket : slow){
+                socket.close();
+            }
+        }
+    }
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    private static void runUser(List<Long> latencies) throws IOException{
+        ECDSASignerVerifier signer = newSigner();
+        HashSet<NoteID> uploaded = new HashSet<>();
+        
+        for(int round = 0; round < ROUNDS; round++){
+            ArrayList<EncryptedNote> notes = new ArrayList<>();
+            for(int i = 0; i < NOTES_PER_UPLOAD; i++){
+                EncryptedNote note = new EncryptedNote(signer);
+                note.setNoteBody("round " + round + " note " + i);
+                notes.add(note);
+                uploaded.add(note.getNoteId());
+            }
+            
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(request);
+            NoteCodec.writeBytes(out, signer.getPublicKeyBytes());
+            NoteCodec.writeNotes(out, notes);
+            out.flush();
+            
+            long start = System.nanoTime();
+            HttpURLConnection connection = open(Protocol.UPLOAD_PATH);
+            sign(connection, signer, "POST", Protocol.UPLOAD_PATH, request.toByteArray());
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.size());
+            try(OutputStream body = connection.getOutputStream()){
+                request.writeTo(body);
+            }
+            assertEquals(Long.BYTES, read(connection).length);
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        
+        HashSet<NoteID> received = new HashSet<>();
+        long cursor = -1;
+        String etag = null;
+        for(boolean more = true; more;){
+            long start = System.nanoTime();
+            HttpURLConnection connection = openPoll(signer, signer, cursor);
+            ByteBuffer page = ByteBuffer.wrap(read(connection));
+            latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            etag = connection.getHeaderField("ETag");
+            
+            cursor = page.getLong();
+            more = page.get() != 0;
+            for(EncryptedNote note : NoteCodec.readNotes(page, signer)){
+                assertTrue(note.checkSignatures());
+                received.add(note.getNoteId());
+            }
+        }
+        assertEquals(uploaded, received);
+        
+        //nothing new, answered from the cached sequence number
+        assertNotNull(etag);
+        HttpURLConnection idle = openPoll(signer, signer, cursor);
+        idle.setRequestProperty("If-None-Match", etag);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, idle.getResponseCode());
+    }
+    
+    //a poll for user's changes signed by signer
+    private static HttpURLConnection openPoll(ECDSASignerVerifier user, ECDSASignerVerifier signer, long cursor) throws IOException{
+        String path = Protocol.SYNC_PATH 
+                + "?user=" + Base64.getUrlEncoder().withoutPadding().encodeToString(user.getPublicKeyBytes()) 
+                + "&cursor=" + cursor 
+                + "&limit=" + Protocol.MAX_SYNC_LIMIT;
+        HttpURLConnection connection = open(path);
+        sign(connection, signer, "GET", path, new byte[0]);
+        return connection;
+    }
+    
+    private static void sign(HttpURLConnection connection, ECDSASignerVerifier signer, String method, String path, byte[] body){
+        long time = System.currentTimeMillis();
+        connection.setRequestProperty(Protocol.AUTH_HEADER, 
+                time + " " + Base64.getEncoder().encodeToString(signer.signRequest(method, path, time, body).toBytes()));
+    }
+    
+    private static HttpURLConnection open(String path) throws IOException{
+        HttpURLConnection connection = (HttpURLConnection)new URL(url + path).openConnection();
+        connection.setConnectTimeout((int)TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        connection.setReadTimeout((int)TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        return connection;
+    }
+    
+    private static byte[] read(HttpURLConnection connection) throws IOException{
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(InputStream in = connection.getInputStream()){
+            byte[] buffer = new byte[8 * 1024];
+            for(int read; (read = in.read(buffer)) != -1;){
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesserver;
+
+import com.github.adam_currie.fusenotesshared.ECDSASignerVerifier;
+import com.github.adam_currie.fusenotesshared.ECDSAUtil;
+import com.github.adam_currie.fusenotesshared.EncryptedNote;
+import com.github.adam_currie.fusenotesshared.MerkleTree;
+import java.util.ArrayList;
+import java.util.Collections;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class UserStateCacheTest{
+    private final MemoryNoteDatabase db = new MemoryNoteDatabase();
+    
+    private static ECDSASignerVerifier newSigner(){
+        return new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    }
+    
+    private ArrayList<EncryptedNote> write(UserStateCache cache, ECDSASignerVerifier signer, int count){
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            notes.add(new EncryptedNote(signer).setNoteBody("note " + i));
+        }
+        db.addOrUpdateAll(notes);
+        cache.notesWritten(signer.getPublicKeyBytes(), notes, db.getLatestSeq(signer.getPublicKeyBytes()));
+        return notes;
+    }
+    
+    @Test
+    public void writesStoreTheNewSeq() throws Exception{
+        UserStateCache cache = new UserStateCache(db, 10, 60 * 1000, 60 * 1000, 1000);
+        ECDSASignerVerifier signer = newSigner();
+        byte[] userID = signer.getPublicKeyBytes();
+        
+        assertEquals(-1, cache.getCachedSeq(userID));
+        write(cache, signer, 3);
+        long seq = db.getLatestSeq(userID);
+        assertEquals(seq, cache.getCachedSeq(userID));
+        
+        assertFalse(cache.hasChangesSince(userID, seq));
+        assertTrue(cache.hasChangesSince(userID, seq - 1));
+        assertEquals(0, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        
+        //an older number from a write that finished later doesn't go back
+        cache.notesWritten(userID, Collections.emptyList(), seq - 1);
+        assertEquals(seq, cache.getCachedSeq(userID));
+    }
+    
+    @Test
+    public void treesOverBudgetAreDropped() throws Exception{
+        UserStateCache cache = new UserStateCache(db, 10, 60 * 1000, 60 * 1000, 15);
+        ECDSASignerVerifier first = newSigner();
+        ECDSASignerVerifier second = newSigner();
+        write(cache, first, 10);
+        write(cache, second, 10);
+        
+        MerkleTree firstTree = cache.getMerkleTree(first);
+        assertEquals(10, firstTree.size());
+        assertEquals(10, cache.getTreeNotes());
+        
+        //over the budget, the least recently used tree goes
+        assertEquals(10, cache.getMerkleTree(second).size());
+        assertEquals(10, cache.getTreeNotes());
+        assertNotSame(firstTree, cache.getMerkleTree(first));
+        
+        //written notes are added to the cached tree
+        write(cache, first, 2);
+        assertEquals(12, cache.getMerkleTree(first).size());
+        assertEquals(12, cache.getTreeNotes());
+    }
+    
+    @Test
+    public void unknownUsersArentCached() throws Exception{
+        UserStateCache cache = new UserStateCache(db, 10, 60 * 1000, 60 * 1000, 1000);
+        byte[] userID = newSigner().getPublicKeyBytes();
+        
+        assertEquals(-1, cache.getCachedSeq(userID));
+        assertFalse(cache.hasChangesSince(userID, 0));
+        assertEquals(-1, cache.getCachedSeq(userID));
+        assertEquals(0, cache.getSize());
+    }
+    
+    @Test
+    public void writesThroughAnotherInstanceShowUpAfterMaxSeqAge() throws Exception{
+        UserStateCache cache = new UserStateCache(db, 10, 60 * 1000, 50, 1000);
+        ECDSASignerVerifier signer = newSigner();
+        byte[] userID = signer.getPublicKeyBytes();
+        write(cache, signer, 3);
+        long seq = db.getLatestSeq(userID);
+        assertEquals(3, cache.getMerkleTree(signer).size());
+        
+        //stored without telling this cache, like another server instance would
+        db.addOrUpdateAll(Collections.singletonList(new EncryptedNote(signer).setNoteBody("elsewhere")));
+        assertFalse(cache.hasChangesSince(userID, seq));
+        
+        Thread.sleep(100);
+        assertEquals(-1, cache.getCachedSeq(userID));
+        assertTrue(cache.hasChangesSince(userID, seq));
+        assertEquals(db.getLatestSeq(userID), cache.getCachedSeq(userID));
+        assertEquals(4, cache.getMerkleTree(signer).size());
+    }
+}
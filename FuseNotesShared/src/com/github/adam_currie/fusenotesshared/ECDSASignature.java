@@ -31,7 +31,9 @@ import java.util.Arrays;
  *
  * @author Adam Currie
  */
-public class ECDSASignature implements Serializable{
+public class ECDSASignature implements Serializable, Comparable<ECDSASignature>{
+    private static final long serialVersionUID = 1L;
+    
     private final BigInteger[] rs;
 
     ECDSASignature(BigInteger[] rs){
@@ -71,6 +73,33 @@ public class ECDSASignature implements Serializable{
         return bytes;
     }
     
+    @Override
+    public boolean equals(Object obj){
+        return obj instanceof ECDSASignature && Arrays.equals(rs, ((ECDSASignature)obj).rs);
+    }
+
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(rs);
+    }
+    
+    /**
+     * Orders signatures by their {@link #toBytes() bytes} as unsigned numbers, 
+     * the same order databases give BINARY columns.
+     */
+    @Override
+    public int compareTo(ECDSASignature other){
+        byte[] a = toBytes();
+        byte[] b = other.toBytes();
+        for(int i = 0; i < a.length; i++){
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(diff != 0){
+                return diff;
+            }
+        }
+        return 0;
+    }
+    
     public static ECDSASignature fromBytes(byte[] bytes){
         BigInteger[] rs = new BigInteger[]{
             new BigInteger(Arrays.copyOfRange(bytes, 0, 33)), 
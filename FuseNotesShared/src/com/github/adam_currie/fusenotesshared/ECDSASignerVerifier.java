@@ -24,12 +24,17 @@
 package com.github.adam_currie.fusenotesshared;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
 
-/**\
+/**
  * Provides thread-safe verifying and optionally signing.
+ * Messages are hashed with SHA-256 first, ECDSA only uses as many bytes of what it's given as the curve's order has.
+ * k is derived from the key and the hash(RFC 6979) so signing the same message again gives the same signature.
  * @author Adam Currie
  */
 public class ECDSASignerVerifier{
@@ -45,7 +50,7 @@ public class ECDSASignerVerifier{
     //initialize for verifying
     public ECDSASignerVerifier(ECPublicKeyParameters key){
         this.privateKey = null;
-        this.publicKey = ECDSAUtil.toPublicKeyParams(privateKey);
+        this.publicKey = key;
     }
     
     public boolean canSign(){
@@ -57,21 +62,70 @@ public class ECDSASignerVerifier{
             throw new IllegalStateException("not initialized for signing");
         }
         
-        byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
-        
-        ECDSASigner signer = new org.bouncycastle.crypto.signers.ECDSASigner();
+        ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
         signer.init(true, privateKey);
         
-        return new ECDSASignature(signer.generateSignature(msgBytes));
+        return new ECDSASignature(signer.generateSignature(hash(message)));
     }
     
     public boolean checkSignature(String message, ECDSASignature signature){
-        byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
-        
         ECDSASigner verifier = new ECDSASigner();
         verifier.init(false, publicKey);
         
-        return verifier.verifySignature(msgBytes, signature.r(), signature.s());
+        return verifier.verifySignature(hash(message), signature.r(), signature.s());
+    }
+    
+    /**
+     * Signs a challenge from the server to prove this holds the user's key.
+     * The message is prefixed so the signature can't be used for anything else.
+     * @param challenge the random bytes sent by the server
+     * @return the signature
+     */
+    public ECDSASignature signChallenge(byte[] challenge){
+        return sign(challengeMessage(challenge));
+    }
+    
+    public boolean checkChallenge(byte[] challenge, ECDSASignature signature){
+        return checkSignature(challengeMessage(challenge), signature);
+    }
+    
+    private static String challengeMessage(byte[] challenge){
+        return "challenge|" + Base64.getEncoder().encodeToString(challenge);
+    }
+    
+    /**
+     * Signs a request to the server to prove this holds the user's key, see Protocol.AUTH_HEADER.
+     * The message is prefixed so the signature can't be used for anything else.
+     * @param method    the http method
+     * @param path      the path after the servlet url, with the query string if there is one
+     * @param time      the client's time in milliseconds
+     * @param body      the request body before any content encoding, empty if there is none
+     * @return the signature
+     */
+    public ECDSASignature signRequest(String method, String path, long time, byte[] body){
+        return sign(requestMessage(method, path, time, body));
+    }
+    
+    public boolean checkRequest(String method, String path, long time, byte[] body, ECDSASignature signature){
+        return checkSignature(requestMessage(method, path, time, body), signature);
+    }
+    
+    private static String requestMessage(String method, String path, long time, byte[] body){
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(body, 0, body.length);
+        byte[] bodyHash = new byte[digest.getDigestSize()];
+        digest.doFinal(bodyHash, 0);
+        return "request|" + method + "|" + path + "|" + time + "|" + Base64.getEncoder().encodeToString(bodyHash);
+    }
+    
+    private static byte[] hash(String message){
+        byte[] msgBytes = message.getBytes(StandardCharsets.UTF_8);
+        
+        SHA256Digest digest = new SHA256Digest();
+        digest.update(msgBytes, 0, msgBytes.length);
+        byte[] hash = new byte[digest.getDigestSize()];
+        digest.doFinal(hash, 0);
+        return hash;
     }
 
     public ECPrivateKeyParameters getPrivateKey(){
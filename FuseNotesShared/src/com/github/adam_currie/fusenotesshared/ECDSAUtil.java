@@ -42,6 +42,13 @@ import org.bouncycastle.math.ec.ECPoint;
  * Purpose  Utility class for ECDSA keys and signing.
  */
 public class ECDSAUtil{
+    //shared so keys decoded from bytes share one curve and generator, along with the generator's precomputed multiples
+    private static final ECDomainParameters SECP256R1;
+    static{
+        X9ECParameters curveParams = SECNamedCurves.getByName("secp256r1");
+        SECP256R1 = new ECDomainParameters(
+            curveParams.getCurve(), curveParams.getG(), curveParams.getN(), curveParams.getH(), curveParams.getSeed());
+    }
     
     /*
      * Method           main
@@ -119,6 +126,16 @@ public class ECDSAUtil{
         }
     }
 
+    public static ECPublicKeyParameters toPublicKeyParams(byte[] publicKeyBytes) throws InvalidKeyException{
+        try{
+            ECPoint point = SECP256R1.getCurve().decodePoint(publicKeyBytes);
+
+            return new ECPublicKeyParameters(point, SECP256R1);
+        }catch(ArrayIndexOutOfBoundsException | IllegalArgumentException ex){
+            throw new InvalidKeyException("Invalid key length.");
+        }
+    }
+
     public static AsymmetricCipherKeyPair generateKeyPair(){
         //get params
         X9ECParameters curveParams = SECNamedCurves.getByName("secp256r1");
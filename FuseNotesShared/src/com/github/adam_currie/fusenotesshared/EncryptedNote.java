@@ -27,8 +27,12 @@ import java.io.Serializable;
 import java.security.SecureRandom;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
@@ -42,11 +46,13 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author Adam Currie
  */
 public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializable{
+    private static final long serialVersionUID = 1L;
+    
     private static final SecureRandom random = new SecureRandom();
     
     private final NoteID noteID;
     private final Timestamp createDate;
-    private final ECDSASignerVerifier signerVerifier;
+    private final transient ECDSASignerVerifier signerVerifier;
     private final ConcurrentSkipListSet<Fragment> sortedFragments = new ConcurrentSkipListSet<>();
     private final ReentrantLock signatureLock = new ReentrantLock();
     
@@ -85,7 +91,22 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
      * @return  a partial snapshot of the EncryptedNote with only the changed fragments
      */
     public EncryptedNote setNoteBody(String encryptedNoteBody){
-        Fragment frag = new Fragment(encryptedNoteBody);
+        return setNoteBody(encryptedNoteBody, new byte[0]);
+    }
+    
+    /**
+     * 
+     * @param encryptedNoteBody the encrypted note body
+     * @param searchTokens      blind index tokens for the words in the body, 
+     *                          {@link Protocol#SEARCH_TOKEN_LENGTH SEARCH_TOKEN_LENGTH} bytes each
+     * @return  a partial snapshot of the EncryptedNote with only the changed fragments
+     */
+    public EncryptedNote setNoteBody(String encryptedNoteBody, byte[] searchTokens){
+        if(searchTokens.length % Protocol.SEARCH_TOKEN_LENGTH != 0){
+            throw new IllegalArgumentException("searchTokens is not a whole number of tokens");
+        }
+        
+        Fragment frag = new Fragment(encryptedNoteBody, searchTokens.clone());
         sortedFragments.add(frag);
         ArrayList<Fragment> subList = new ArrayList<>(1);
         subList.add(frag);
@@ -168,6 +189,45 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         return getPartialSnapshot(sortedFragments);
     }
     
+    /**
+     * Gets a snapshot of the note with only the fragments edited after a date.
+     * @param date  the date
+     * @return the partial snapshot
+     */
+    public EncryptedNote getSnapshotEditedAfter(Timestamp date){
+        ArrayList<Fragment> edited = new ArrayList<>();
+        for(Fragment frag : sortedFragments){
+            if(frag.getEditDate().after(date)){
+                edited.add(frag);
+            }
+        }
+        return getPartialSnapshot(edited);
+    }
+    
+    /**
+     * Gets a snapshot of the note with only the given fragments.
+     * @param fragmentIDs   the fragments, ones the note doesn't have are skipped
+     * @return the partial snapshot
+     */
+    public EncryptedNote getSnapshot(Set<FragmentID> fragmentIDs){
+        ArrayList<Fragment> included = new ArrayList<>();
+        for(Fragment frag : sortedFragments){
+            if(fragmentIDs.contains(frag.getFragmentId())){
+                included.add(frag);
+            }
+        }
+        return getPartialSnapshot(included);
+    }
+    
+    /**
+     * Gets a snapshot of the note with only its latest fragment, which holds the current text.
+     * @return the partial snapshot
+     */
+    public EncryptedNote getLatestSnapshot(){
+        Iterator<Fragment> latest = sortedFragments.descendingIterator();
+        return getPartialSnapshot(latest.hasNext() ? Collections.singletonList(latest.next()) : new ArrayList<>());
+    }
+    
     private EncryptedNote getPartialSnapshot(Iterable<Fragment> fragments){
         EncryptedNote subNote = getMetaDataSnapshot();
         
@@ -199,10 +259,64 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         return sortedFragments.iterator();
     }
 
-    public void addFragment(FragmentID id, Timestamp create, Timestamp edit, String body, boolean deleted, ECDSASignature sig){
-        Fragment frag = new Fragment(id, create, edit, body, deleted, sig);
+    public void addFragment(FragmentID id, Timestamp create, Timestamp edit, String body, byte[] searchTokens, boolean deleted, ECDSASignature sig){
+        Fragment frag = new Fragment(id, create, edit, body, searchTokens == null ? new byte[0] : searchTokens.clone(), deleted, sig);
         sortedFragments.add(frag);
     }
+    
+    /**
+     * Merges another copy of this note(possibly a partial snapshot) into this one.
+     * The meta data is replaced if the other copy's is newer, 
+     * missing fragments are added and fragments with a newer edit date replace the existing ones, 
+     * see {@link #replaces(Timestamp, ECDSASignature, Timestamp, ECDSASignature) replaces}.
+     * @param other another copy of this note
+     */
+    public void merge(EncryptedNote other){
+        if(!noteID.equals(other.noteID)){
+            throw new IllegalArgumentException("notes have different ids");
+        }
+        
+        EncryptedNote otherMeta = other.getMetaDataSnapshot();
+        signatureLock.lock();
+        try{
+            if(replaces(otherMeta.metaEditDate, otherMeta.signature, metaEditDate, signature)){
+                metaEditDate = otherMeta.metaEditDate;
+                isDeleted.set(otherMeta.isDeleted.get());
+                signature = otherMeta.signature;
+            }
+        }finally{
+            signatureLock.unlock();
+        }
+        
+        for(Fragment otherFrag : other.sortedFragments){
+            Fragment incoming = otherFrag.getSnapshot(this);
+            Fragment existing = sortedFragments.floor(incoming);
+            
+            if(existing == null || existing.compareTo(incoming) != 0){
+                sortedFragments.add(incoming);
+            }else if(replaces(incoming.getEditDate(), incoming.getSignature(), existing.getEditDate(), existing.getSignature())){
+                sortedFragments.remove(existing);
+                sortedFragments.add(incoming);
+            }
+        }
+    }
+
+    /**
+     * Decides whether a copy of a note's meta data or of a fragment replaces the stored one.
+     * The newer edit wins, copies edited at the same time are ordered by their signatures 
+     * so every client and server settles on the same copy, the server's database uses the same rule.
+     * @param incomingEdit          edit date of the incoming copy
+     * @param incomingSignature     signature of the incoming copy
+     * @param existingEdit          edit date of the stored copy
+     * @param existingSignature     signature of the stored copy
+     * @return true if the incoming copy replaces the stored one, false if it is older, the same or loses the tie
+     */
+    public static boolean replaces(Timestamp incomingEdit, ECDSASignature incomingSignature, Timestamp existingEdit, ECDSASignature existingSignature){
+        if(!incomingEdit.equals(existingEdit)){
+            return incomingEdit.after(existingEdit);
+        }
+        return existingSignature == null || (incomingSignature != null && incomingSignature.compareTo(existingSignature) > 0);
+    }
 
     /**
      * sets the deleted status to true on this and all fragments, updates the edit date and the signature
@@ -222,11 +336,63 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         }
     }
 
+    /**
+     * Signs the note and its fragments again, for notes signed before signatures covered the hash of the whole message.
+     * The edit dates move on by a millisecond so the new copy replaces the old one everywhere,
+     * signing is deterministic so every client that signs the same note again makes the same copy.
+     */
+    public void resign(){
+        signatureLock.lock();
+        try{
+            metaEditDate = new Timestamp(metaEditDate.getTime() + 1);
+            sign();
+        }finally{
+            signatureLock.unlock();
+        }
+        
+        for(Fragment frag : sortedFragments){
+            frag.resign();
+        }
+    }
+
+    /**
+     * Checks the note's meta data signature, fragment signatures are checked separately.
+     * Call on a snapshot if the note is being written to by other threads.
+     * @return true if the signature is valid for the note's user
+     */
+    public boolean checkSignature(){
+        return signature != null && signerVerifier.checkSignature(signedMessage(), signature);
+    }
+    
+    /**
+     * Checks the signatures of the note and all its fragments.
+     * Call on a snapshot if the note is being written to by other threads.
+     * @return true if they are all valid for the note's user
+     */
+    public boolean checkSignatures(){
+        if(!checkSignature()){
+            return false;
+        }
+        for(Fragment frag : sortedFragments){
+            if(!frag.checkSignature()){
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void sign(){
-        signature = signerVerifier.sign("" + noteID + createDate + metaEditDate + isDeleted);
-    }    
+        signature = signerVerifier.sign(signedMessage());
+    }
+    
+    //dates as epoch millis so the message doesn't depend on the time zone of whoever builds it
+    private String signedMessage(){
+        return noteID + "|" + createDate.getTime() + "|" + metaEditDate.getTime() + "|" + isDeleted.get();
+    }
     
     public class Fragment implements Comparable<Fragment>, Serializable{        
+        private static final long serialVersionUID = 1L;
+        
         private final FragmentID fragmentID;
         private final Timestamp fragCreateDate;
         private final ReentrantLock signatureLock = new ReentrantLock();
@@ -237,16 +403,18 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
             private Timestamp fragEditDate;
             private AtomicBoolean fragIsDeleted = new AtomicBoolean();
             private String noteBody;
+            private byte[] searchTokens;
             private ECDSASignature fragSignature;
         
             
-        private Fragment(String encryptedNoteBody){
+        private Fragment(String encryptedNoteBody, byte[] searchTokens){
             fragmentID = new FragmentID();
             fragCreateDate = new Timestamp(System.currentTimeMillis());
             fragEditDate = new Timestamp(System.currentTimeMillis());
             fragIsDeleted.set(false);
             
             noteBody = encryptedNoteBody;
+            this.searchTokens = searchTokens;
             sign();
         }
 
@@ -254,11 +422,12 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
          * Creates a note fragment associated with this note.
          * Clones the byte arrays and timestamps.
          */
-        private Fragment(FragmentID fragmentID, Timestamp create, Timestamp edit, String body, boolean deleted, ECDSASignature sig){
+        private Fragment(FragmentID fragmentID, Timestamp create, Timestamp edit, String body, byte[] searchTokens, boolean deleted, ECDSASignature sig){
             this.fragmentID = fragmentID;
             fragCreateDate = (Timestamp)create.clone();
             fragEditDate = (Timestamp)edit.clone();
             noteBody = body;
+            this.searchTokens = searchTokens;
             fragIsDeleted.set(deleted);
             fragSignature = sig;
         }
@@ -283,22 +452,42 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
             }else if(o.fragCreateDate.after(fragCreateDate)){
                 return -1;
             }else{
-                return 0;
+                //same time, fall back to the id so distinct fragments aren't treated as equal
+                byte[] id = fragmentID.toBytes();
+                byte[] otherID = o.fragmentID.toBytes();
+                for(int i = 0; i < id.length && i < otherID.length; i++){
+                    if(id[i] != otherID[i]){
+                        return Byte.compare(id[i], otherID[i]);
+                    }
+                }
+                return id.length - otherID.length;
             }
         }
         
         private Fragment getSnapshot(EncryptedNote outer){
             signatureLock.lock();
             try{
-                return outer.new Fragment(fragmentID, fragCreateDate, fragEditDate, noteBody, fragIsDeleted.get(), fragSignature);
+                return outer.new Fragment(fragmentID, fragCreateDate, fragEditDate, noteBody, searchTokens, fragIsDeleted.get(), fragSignature);
             }finally{
                 signatureLock.unlock();
             }
         }
         
-        //todo: check that the tostring method for these accurately represents them, same for the frag version
         private void sign(){
-            fragSignature = signerVerifier.sign(noteBody + noteID + fragmentID + fragCreateDate + fragEditDate + fragIsDeleted);
+            fragSignature = signerVerifier.sign(signedMessage());
+        }
+        
+        /**
+         * Checks this fragment's signature.
+         * @return true if the signature is valid for the note's user
+         */
+        public boolean checkSignature(){
+            return fragSignature != null && signerVerifier.checkSignature(signedMessage(), fragSignature);
+        }
+        
+        private String signedMessage(){
+            return noteBody + "|" + Base64.getEncoder().encodeToString(searchTokens) + "|" + noteID + "|" + fragmentID + "|" 
+                    + fragCreateDate.getTime() + "|" + fragEditDate.getTime() + "|" + fragIsDeleted.get();
         }
         
         /**
@@ -308,6 +497,30 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         public String getNoteBody(){
             return noteBody;
         }
+        
+        /**
+         * Gets the blind index tokens for the words in the note text.
+         * Each token is {@link Protocol#SEARCH_TOKEN_LENGTH SEARCH_TOKEN_LENGTH} bytes, 
+         * the tokens are concatenated.
+         * @return the tokens, empty if there are none
+         */
+        public byte[] getSearchTokens(){
+            return searchTokens.clone();
+        }
+        
+        /**
+         * Checks if the note text contains a word, without needing to decrypt it.
+         * @param token the blind index token for the word
+         * @return true if the token is one of this fragment's tokens
+         */
+        public boolean hasSearchToken(byte[] token){
+            for(int i = 0; i + Protocol.SEARCH_TOKEN_LENGTH <= searchTokens.length; i += Protocol.SEARCH_TOKEN_LENGTH){
+                if(Arrays.equals(token, Arrays.copyOfRange(searchTokens, i, i + Protocol.SEARCH_TOKEN_LENGTH))){
+                    return true;
+                }
+            }
+            return false;
+        }
 
         /**
          * Gets the edit date of this fragment.
@@ -327,13 +540,14 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         }
         
         /**
-         * sets the deleted status to true, removes the notebody, updates the edit date and the signature
+         * sets the deleted status to true, removes the notebody and search tokens, updates the edit date and the signature
          */
         public void delete(){
             signatureLock.lock();
             try{
                 fragIsDeleted.set(true);
                 noteBody = null;
+                searchTokens = new byte[0];
                 fragEditDate = new Timestamp(System.currentTimeMillis());
                 sign();
             }finally{
@@ -344,6 +558,16 @@ public class EncryptedNote implements Iterable<EncryptedNote.Fragment>, Serializ
         public ECDSASignature getSignature(){
             return fragSignature;
         }
+        
+        private void resign(){
+            signatureLock.lock();
+            try{
+                fragEditDate = new Timestamp(fragEditDate.getTime() + 1);
+                sign();
+            }finally{
+                signatureLock.unlock();
+            }
+        }
     }
     
 }
@@ -28,8 +28,12 @@ package com.github.adam_currie.fusenotesshared;
  * @author Adam Currie
  */
 public class FragmentID extends ID{
+    private static final long serialVersionUID = 1L;
+    
+    public static final int LENGTH = 6;//bytes
+    
     public FragmentID(){
-        super(6);
+        super(LENGTH);
     }
     
     private FragmentID(byte[] bytes){
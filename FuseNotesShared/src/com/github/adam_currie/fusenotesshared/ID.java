@@ -23,13 +23,18 @@
  */
 package com.github.adam_currie.fusenotesshared;
 
+import java.io.Serializable;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
 
 /**
  *
  * @author Adam Currie
  */
-abstract class ID{
+abstract class ID implements Serializable{
+    private static final long serialVersionUID = 1L;
+    
     private static final SecureRandom random = new SecureRandom();
     private final byte[] bytes;
     
@@ -45,4 +50,29 @@ abstract class ID{
     public byte[] toBytes(){
         return bytes.clone();
     }
+
+    @Override
+    public boolean equals(Object obj){
+        if(this == obj){
+            return true;
+        }
+        if(obj == null || getClass() != obj.getClass()){
+            return false;
+        }
+        return Arrays.equals(bytes, ((ID)obj).bytes);
+    }
+
+    @Override
+    public int hashCode(){
+        return Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Base64 form of the id, stable across processes(used in signed messages).
+     * @return the id in base64
+     */
+    @Override
+    public String toString(){
+        return Base64.getEncoder().encodeToString(bytes);
+    }
 }
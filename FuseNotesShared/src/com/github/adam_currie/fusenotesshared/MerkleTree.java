@@ -0,0 +1,299 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesshared;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Merkle tree over a user's notes, used to find which notes differ between the client and the server
+ * by comparing hashes top-down instead of sending every note.
+ * Each note is summarized by its id, meta data edit date and latest fragment id.
+ * Notes are bucketed by the first {@link #DEPTH DEPTH} * {@link #FANOUT_BITS FANOUT_BITS} bits of their id,
+ * each level of the tree splits on the next FANOUT_BITS bits.
+ * Hashes are recomputed lazily when read.
+ * Thread-safe.
+ * @author Adam Currie
+ */
+public class MerkleTree{
+    public static final int FANOUT_BITS = 4;
+    public static final int FANOUT = 1 << FANOUT_BITS;
+    public static final int DEPTH = 3;//leaves are at this level, the root is level 0
+    public static final int HASH_LENGTH = 8;//truncated sha-256
+    
+    private static final byte[] EMPTY_HASH = new byte[HASH_LENGTH];
+    
+    private final MessageDigest sha256;
+    private final ArrayList<HashMap<NoteID, Entry>> buckets;//null until a note is added to the bucket
+    
+    //hashes[level][index], null when it needs to be recomputed
+    private final byte[][][] hashes = new byte[DEPTH + 1][][];
+    
+    private int size = 0;
+    
+    public MerkleTree(){
+        try{
+            sha256 = MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException ex){
+            throw new IllegalStateException(ex);
+        }
+        
+        for(int level = 0; level <= DEPTH; level++){
+            hashes[level] = new byte[nodesAt(level)][];
+        }
+        buckets = new ArrayList<>(Collections.nCopies(nodesAt(DEPTH), (HashMap<NoteID, Entry>)null));
+    }
+    
+    /**
+     * Adds a note or merges it into the existing entry the same way {@link EncryptedNote#merge(EncryptedNote) merge} does:
+     * the newer meta data edit date and the latest fragment are kept.
+     * @param note the note, may be a partial snapshot
+     */
+    public synchronized void update(EncryptedNote note){
+        EncryptedNote.Fragment latest = null;
+        for(EncryptedNote.Fragment frag : note){
+            latest = frag;//iterated oldest to newest
+        }
+        
+        NoteID id = note.getNoteId();
+        int bucket = bucketOf(id);
+        HashMap<NoteID, Entry> entries = buckets.get(bucket);
+        if(entries == null){
+            entries = new HashMap<>();
+            buckets.set(bucket, entries);
+        }
+        
+        Entry entry = entries.get(id);
+        if(entry == null){
+            entry = new Entry();
+            entries.put(id, entry);
+            size++;
+        }
+        
+        boolean changed = false;
+        if(note.getMetaEditDate().getTime() > entry.metaEdit){
+            entry.metaEdit = note.getMetaEditDate().getTime();
+            changed = true;
+        }
+        if(latest != null && entry.isBefore(latest)){
+            entry.fragmentCreate = latest.getCreateDate().getTime();
+            entry.fragmentID = latest.getFragmentId().toBytes();
+            changed = true;
+        }
+        
+        if(changed){
+            entry.hash = null;
+            invalidate(bucket);
+        }
+    }
+    
+    /**
+     * Gets the hashes of a node's children.
+     * @param level the node's level, less than {@link #DEPTH DEPTH}
+     * @param index the node's index within its level
+     * @return {@link #FANOUT FANOUT} hashes concatenated
+     */
+    public synchronized byte[] getChildHashes(int level, int index){
+        checkNode(level, index);
+        if(level >= DEPTH){
+            throw new IllegalArgumentException("leaves have no children");
+        }
+        
+        ByteBuffer children = ByteBuffer.allocate(FANOUT * HASH_LENGTH);
+        for(int i = 0; i < FANOUT; i++){
+            children.put(hash(level + 1, index * FANOUT + i));
+        }
+        return children.array();
+    }
+    
+    /**
+     * Gets the entries of a leaf bucket.
+     * @param index the bucket's index within the leaf level
+     * @return note id -> entry hash
+     */
+    public synchronized Map<NoteID, byte[]> getBucket(int index){
+        checkNode(DEPTH, index);
+        HashMap<NoteID, Entry> bucket = buckets.get(index);
+        if(bucket == null){
+            return Collections.emptyMap();
+        }
+        
+        LinkedHashMap<NoteID, byte[]> entries = new LinkedHashMap<>();
+        for(Map.Entry<NoteID, Entry> e : bucket.entrySet()){
+            entries.put(e.getKey(), entryHash(e.getKey(), e.getValue()).clone());
+        }
+        return entries;
+    }
+    
+    /**
+     * @return the number of notes in the tree
+     */
+    public synchronized int size(){
+        return size;
+    }
+    
+    /**
+     * Gets the number of nodes at a level of the tree.
+     * @param level the level, 0 is the root
+     * @return the number of nodes
+     */
+    public static int nodesAt(int level){
+        return 1 << (level * FANOUT_BITS);
+    }
+    
+    private byte[] hash(int level, int index){
+        byte[] hash = hashes[level][index];
+        if(hash != null){
+            return hash;
+        }
+        
+        if(level == DEPTH){
+            hash = leafHash(index);
+        }else{
+            boolean empty = true;
+            byte[][] children = new byte[FANOUT][];
+            for(int i = 0; i < FANOUT; i++){
+                children[i] = hash(level + 1, index * FANOUT + i);
+                empty &= Arrays.equals(children[i], EMPTY_HASH);
+            }
+            
+            if(empty){
+                hash = EMPTY_HASH;
+            }else{
+                for(byte[] child : children){
+                    sha256.update(child);
+                }
+                hash = truncate(sha256.digest());
+            }
+        }
+        
+        hashes[level][index] = hash;
+        return hash;
+    }
+    
+    //entry hashes sorted so the hash doesn't depend on insertion order
+    private byte[] leafHash(int index){
+        HashMap<NoteID, Entry> bucket = buckets.get(index);
+        if(bucket == null || bucket.isEmpty()){
+            return EMPTY_HASH;
+        }
+        
+        ArrayList<byte[]> entryHashes = new ArrayList<>(bucket.size());
+        for(Map.Entry<NoteID, Entry> e : bucket.entrySet()){
+            entryHashes.add(entryHash(e.getKey(), e.getValue()));
+        }
+        Collections.sort(entryHashes, MerkleTree::compareUnsigned);
+        
+        for(byte[] entryHash : entryHashes){
+            sha256.update(entryHash);
+        }
+        return truncate(sha256.digest());
+    }
+    
+    private byte[] entryHash(NoteID id, Entry entry){
+        if(entry.hash == null){
+            sha256.update(id.toBytes());
+            sha256.update(ByteBuffer.allocate(Long.BYTES).putLong(entry.metaEdit).array());
+            if(entry.fragmentID != null){
+                sha256.update(entry.fragmentID);
+            }
+            entry.hash = truncate(sha256.digest());
+        }
+        return entry.hash;
+    }
+    
+    //clears the cached hashes from the bucket up to the root
+    private void invalidate(int bucket){
+        int index = bucket;
+        for(int level = DEPTH; level >= 0; level--){
+            hashes[level][index] = null;
+            index /= FANOUT;
+        }
+    }
+    
+    private static int bucketOf(NoteID id){
+        byte[] bytes = id.toBytes();
+        int bits = DEPTH * FANOUT_BITS;
+        
+        int prefix = 0;
+        for(int i = 0; i * 8 < bits; i++){
+            prefix = (prefix << 8) | (i < bytes.length ? bytes[i] & 0xFF : 0);
+        }
+        int usedBits = ((bits + 7) / 8) * 8;
+        return prefix >>> (usedBits - bits);
+    }
+    
+    private static void checkNode(int level, int index){
+        if(level < 0 || level > DEPTH || index < 0 || index >= nodesAt(level)){
+            throw new IllegalArgumentException("no node " + index + " at level " + level);
+        }
+    }
+    
+    private static byte[] truncate(byte[] digest){
+        return Arrays.copyOf(digest, HASH_LENGTH);
+    }
+    
+    private static int compareUnsigned(byte[] a, byte[] b){
+        for(int i = 0; i < a.length && i < b.length; i++){
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if(cmp != 0){
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+    
+    private static class Entry{
+        private long metaEdit = Long.MIN_VALUE;
+        private long fragmentCreate = Long.MIN_VALUE;
+        private byte[] fragmentID = null;
+        private byte[] hash = null;
+        
+        //ordered the same way as EncryptedNote.Fragment
+        private boolean isBefore(EncryptedNote.Fragment frag){
+            long create = frag.getCreateDate().getTime();
+            if(create != fragmentCreate){
+                return fragmentCreate < create;
+            }
+            if(fragmentID == null){
+                return true;
+            }
+            
+            byte[] id = frag.getFragmentId().toBytes();
+            for(int i = 0; i < fragmentID.length && i < id.length; i++){
+                if(fragmentID[i] != id[i]){
+                    return Byte.compare(fragmentID[i], id[i]) < 0;
+                }
+            }
+            return fragmentID.length < id.length;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesshared;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+
+/**
+ * Compact binary format for notes, used for the sync payloads and for exports.
+ * 
+ * A block of notes is [version: byte][count: varint][notes].
+ * A note is [id: NoteID.LENGTH bytes][create: varint][meta edit - create: zigzag varint][deleted: byte]
+ * [signature: 66 bytes][fragment count: varint][fragments].
+ * A fragment is [id: FragmentID.LENGTH bytes][create - note create: zigzag varint][edit - create: zigzag varint]
+ * [flags: byte, 1 = deleted, 2 = has body][body if present: length varint + utf-8][token count: varint][tokens]
+ * [signature: 66 bytes].
+ * Dates are epoch millis, stored relative to each other so most take a byte or two.
+ * 
+ * Notes are read straight from a ByteBuffer.
+ * @author Adam Currie
+ */
+public final class NoteCodec{
+    public static final byte VERSION = 1;
+    
+    private static final int SIGNATURE_LENGTH = 66;
+    private static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_NOTES = 1000000;
+    private static final int MAX_FRAGMENTS = 1000000;
+    
+    private static final int FLAG_DELETED = 1;
+    private static final int FLAG_HAS_BODY = 2;
+    
+    private NoteCodec(){}
+    
+    /*
+     * Method           main
+     * Description      benchmark against java serialization
+     */
+    public static void main(String[] args) throws Exception{
+        ECDSASignerVerifier signer = new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+        Random random = new Random(1);
+        
+        //signing is slow so every note reuses one signature, the codec doesn't check them
+        EncryptedNote template = new EncryptedNote(signer);
+        template.setNoteBody("", new byte[0]);
+        ECDSASignature signature = template.getSignature();
+        
+        ArrayList<EncryptedNote> notes = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < 10000; i++){
+            long create = now - random.nextInt(1000000000);
+            EncryptedNote note = new EncryptedNote(new NoteID(), signer, new Timestamp(create), new Timestamp(create + random.nextInt(100000)), false, signature);
+            for(int f = 0; f < 3; f++){
+                byte[] body = new byte[150];
+                random.nextBytes(body);
+                byte[] tokens = new byte[Protocol.SEARCH_TOKEN_LENGTH * 20];
+                random.nextBytes(tokens);
+                long fragCreate = create + f * 60000;
+                note.addFragment(new FragmentID(), new Timestamp(fragCreate), new Timestamp(fragCreate), 
+                        Base64.getEncoder().encodeToString(body), tokens, false, signature);
+            }
+            notes.add(note);
+        }
+        
+        int rounds = 20;
+        byte[] encoded = null;
+        byte[] serialized = null;
+        long codecWrite = 0, codecRead = 0, javaWrite = 0, javaRead = 0;
+        
+        for(int round = 0; round < rounds; round++){
+            long start = System.nanoTime();
+            encoded = encode(notes);
+            long mid = System.nanoTime();
+            readNotes(ByteBuffer.wrap(encoded), signer);
+            long end = System.nanoTime();
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(ObjectOutputStream oos = new ObjectOutputStream(bytes)){
+                oos.writeObject(notes);
+            }
+            serialized = bytes.toByteArray();
+            long javaMid = System.nanoTime();
+            try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized))){
+                ois.readObject();
+            }
+            long javaEnd = System.nanoTime();
+            
+            //first half is warm up
+            if(round >= rounds / 2){
+                codecWrite += mid - start;
+                codecRead += end - mid;
+                javaWrite += javaMid - end;
+                javaRead += javaEnd - javaMid;
+            }
+        }
+        
+        int measured = rounds - rounds / 2;
+        System.out.println(notes.size() + " notes, 3 fragments each");
+        System.out.printf("NoteCodec:          %,d bytes, write %.1f ms, read %.1f ms%n", 
+                encoded.length, codecWrite / 1e6 / measured, codecRead / 1e6 / measured);
+        System.out.printf("java serialization: %,d bytes, write %.1f ms, read %.1f ms%n", 
+                serialized.length, javaWrite / 1e6 / measured, javaRead / 1e6 / measured);
+    }
+    
+    /**
+     * Encodes notes as a block.
+     * Snapshots must be passed if the notes are being written to by other threads.
+     * @param notes the notes
+     * @return the encoded block
+     */
+    public static byte[] encode(Collection<EncryptedNote> notes){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try{
+            writeNotes(new DataOutputStream(bytes), notes);
+        }catch(IOException ex){
+            throw new IllegalStateException(ex);//not thrown by ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Writes notes and all of their fragments as a block.
+     * Snapshots must be passed if the notes are being written to by other threads.
+     * @param out   the output
+     * @param notes the notes
+     * @throws IOException if writing fails
+     */
+    public static void writeNotes(DataOutput out, Collection<EncryptedNote> notes) throws IOException{
+        out.writeByte(VERSION);
+        writeVarLong(out, notes.size());
+        for(EncryptedNote note : notes){
+            writeNote(out, note);
+        }
+    }
+    
+    /**
+     * Reads a block written with {@link #writeNotes(DataOutput, Collection) writeNotes}.
+     * @param in                the input, positioned at the block and left after it
+     * @param signerOrVerifier  attached to the notes, must be for the user that the notes belong to
+     * @return the notes
+     * @throws IOException if the data is invalid or truncated, or from an unsupported version
+     */
+    public static ArrayList<EncryptedNote> readNotes(ByteBuffer in, ECDSASignerVerifier signerOrVerifier) throws IOException{
+        try{
+            int version = in.get();
+            if(version != VERSION){
+                throw new IOException("Unsupported note format version: " + version);
+            }
+            
+            int count = readLength(in, MAX_NOTES);
+            ArrayList<EncryptedNote> notes = new ArrayList<>(Math.min(count, 1024));
+            for(int i = 0; i < count; i++){
+                notes.add(readNote(in, signerOrVerifier));
+            }
+            return notes;
+        }catch(BufferUnderflowException ex){
+            throw new IOException("Truncated notes.", ex);
+        }
+    }
+    
+    private static void writeNote(DataOutput out, EncryptedNote note) throws IOException{
+        long create = note.getCreateDate().getTime();
+        
+        writeID(out, note.getNoteId().toBytes(), NoteID.LENGTH);
+        writeVarLong(out, create);
+        writeVarLong(out, zigZag(note.getMetaEditDate().getTime() - create));
+        out.writeByte(note.getDeleted() ? FLAG_DELETED : 0);
+        out.write(note.getSignature().toBytes());
+        
+        List<EncryptedNote.Fragment> fragments = new ArrayList<>();
+        for(EncryptedNote.Fragment frag : note){
+            fragments.add(frag);
+        }
+        
+        writeVarLong(out, fragments.size());
+        for(EncryptedNote.Fragment frag : fragments){
+            long fragCreate = frag.getCreateDate().getTime();
+            String body = frag.getNoteBody();
+            byte[] tokens = frag.getSearchTokens();
+            
+            writeID(out, frag.getFragmentId().toBytes(), FragmentID.LENGTH);
+            writeVarLong(out, zigZag(fragCreate - create));
+            writeVarLong(out, zigZag(frag.getEditDate().getTime() - fragCreate));
+            out.writeByte((frag.getDeleted() ? FLAG_DELETED : 0) | (body != null ? FLAG_HAS_BODY : 0));
+            if(body != null){
+                writeBytes(out, body.getBytes(StandardCharsets.UTF_8));
+            }
+            writeVarLong(out, tokens.length / Protocol.SEARCH_TOKEN_LENGTH);
+            out.write(tokens);
+            out.write(frag.getSignature().toBytes());
+        }
+    }
+    
+    private static EncryptedNote readNote(ByteBuffer in, ECDSASignerVerifier signerOrVerifier) throws IOException{
+        NoteID noteID = NoteID.fromBytes(readID(in, NoteID.LENGTH));
+        long create = readVarLong(in);
+        long metaEdit = create + unZigZag(readVarLong(in));
+        boolean deleted = (in.get() & FLAG_DELETED) != 0;
+        ECDSASignature signature = readSignature(in);
+        
+        EncryptedNote note = new EncryptedNote(noteID, signerOrVerifier, new Timestamp(create), new Timestamp(metaEdit), deleted, signature);
+        
+        int fragmentCount = readLength(in, MAX_FRAGMENTS);
+        for(int i = 0; i < fragmentCount; i++){
+            FragmentID fragmentID = FragmentID.fromBytes(readID(in, FragmentID.LENGTH));
+            long fragCreate = create + unZigZag(readVarLong(in));
+            long fragEdit = fragCreate + unZigZag(readVarLong(in));
+            int flags = in.get();
+            
+            String body = null;
+            if((flags & FLAG_HAS_BODY) != 0){
+                int length = readLength(in, MAX_BODY_LENGTH);
+                body = readString(in, length);
+            }
+            
+            int tokenCount = readLength(in, MAX_BODY_LENGTH / Protocol.SEARCH_TOKEN_LENGTH);
+            byte[] tokens = new byte[tokenCount * Protocol.SEARCH_TOKEN_LENGTH];
+            in.get(tokens);
+            
+            note.addFragment(fragmentID, new Timestamp(fragCreate), new Timestamp(fragEdit), body, tokens, 
+                    (flags & FLAG_DELETED) != 0, readSignature(in));
+        }
+        
+        return note;
+    }
+    
+    /**
+     * Writes a byte array prefixed with its length as a varint.
+     */
+    public static void writeBytes(DataOutput out, byte[] bytes) throws IOException{
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Reads a byte array written with {@link #writeBytes(DataOutput, byte[]) writeBytes}.
+     * @param maxLength the largest valid length
+     * @throws IOException if the length is invalid
+     * @throws BufferUnderflowException if the input is truncated
+     */
+    public static byte[] readBytes(ByteBuffer in, int maxLength) throws IOException{
+        byte[] bytes = new byte[readLength(in, maxLength)];
+        in.get(bytes);
+        return bytes;
+    }
+    
+    /**
+     * Writes an unsigned LEB128 varint, 7 bits per byte, low bits first.
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException{
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+    
+    /**
+     * Reads a varint written with {@link #writeVarLong(DataOutput, long) writeVarLong}.
+     * @throws IOException if it is longer than a long
+     * @throws BufferUnderflowException if the input is truncated
+     */
+    public static long readVarLong(ByteBuffer in) throws IOException{
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte b = in.get();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+    
+    private static int readLength(ByteBuffer in, int max) throws IOException{
+        long length = readVarLong(in);
+        if(length < 0 || length > max){
+            throw new IOException("Invalid length: " + length);
+        }
+        return (int)length;
+    }
+    
+    //decodes in place when the buffer has an array, otherwise copies it out first
+    private static String readString(ByteBuffer in, int length){
+        if(length > in.remaining()){
+            throw new BufferUnderflowException();
+        }
+        if(in.hasArray()){
+            String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void writeID(DataOutput out, byte[] id, int length) throws IOException{
+        if(id.length != length){
+            throw new IOException("Invalid id length: " + id.length);
+        }
+        out.write(id);
+    }
+    
+    private static byte[] readID(ByteBuffer in, int length){
+        byte[] id = new byte[length];
+        in.get(id);
+        return id;
+    }
+    
+    private static ECDSASignature readSignature(ByteBuffer in){
+        byte[] r = new byte[SIGNATURE_LENGTH / 2];
+        byte[] s = new byte[SIGNATURE_LENGTH / 2];
+        in.get(r);
+        in.get(s);
+        return new ECDSASignature(new BigInteger[]{new BigInteger(r), new BigInteger(s)});
+    }
+    
+    private static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -25,6 +25,7 @@ package com.github.adam_currie.fusenotesshared;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 
 /*
  * Name     NoteDatabase
@@ -36,5 +37,8 @@ public interface NoteDatabase{
     public ArrayList<EncryptedNote> getAllNotes(ECDSASignerVerifier signerOrVerifier) throws SQLException;//todo, version of this in ServerDatabase that takes date
     
     public void addOrUpdate(EncryptedNote note) throws SQLException;
+    
+    //ids of the user's notes whose latest fragment has every one of the blind index tokens, see EncryptedNote.Fragment.getSearchTokens
+    public ArrayList<NoteID> findNotes(byte[] userID, Collection<byte[]> searchTokens) throws SQLException;
 }
 
@@ -27,9 +27,13 @@ package com.github.adam_currie.fusenotesshared;
  *
  * @author Adam Currie
  */
-public class NoteID extends ID{   
+public class NoteID extends ID{
+    private static final long serialVersionUID = 1L;
+    
+    public static final int LENGTH = 12;//bytes
+    
     public NoteID(){
-        super(12);
+        super(LENGTH);
     }
     
     private NoteID(byte[] bytes){
@@ -29,4 +29,83 @@ package com.github.adam_currie.fusenotesshared;
  */
 public final class Protocol{
     public static final int MIN_SYNC_INTERVAL_SECONDS = 10;//todo: set to like 1 minute
+    public static final int SEARCH_TOKEN_LENGTH = 8;//bytes of the truncated hmac used for each blind index token
+    
+    /*
+     * Every request below except the WebSocket has the header [AUTH_HEADER]: [time: the client's milliseconds] [base64 signature],
+     * the signature is ECDSASignerVerifier.signRequest of the method, the path with its query string, the time and the body,
+     * checked against the user id the request names. Requests that fail it get 403, 
+     * so only the holder of the user's key can read their notes or learn anything about them.
+     * The time must be within MAX_AUTH_SKEW_MILLIS of the server's clock, 
+     * a captured request can only be replayed that long and only gets back the same user's encrypted notes.
+     */
+    public static final String AUTH_HEADER = "X-FuseNotes-Auth";
+    public static final long MAX_AUTH_SKEW_MILLIS = 5 * 60 * 1000;
+    
+    /*
+     * Sync: POST with body [user id][cursor: long, -1 for everything][limit: int][notes to store], 
+     * response body [cursor to send next time: long][more: byte, 1 if there are changes after this page][changed notes].
+     * The server numbers each user's changes in order, the cursor is the number of the last change sent,
+     * so a page is the next limit changes after the cursor and each note only has its changed fragments.
+     * Clients sync again without notes while more is set.
+     * Without notes to store it can also be GET [SYNC_PATH]?user=[base64url user id]&cursor=[cursor]&limit=[limit],
+     * responses that bring the client up to date have an ETag, sending it back as If-None-Match gets 304 while nothing changed.
+     * Notes are written with NoteCodec.
+     */
+    public static final String SYNC_PATH = "/sync";
+    public static final int MAX_SYNC_LIMIT = 1000;//changes
+    
+    /*
+     * Upload: POST with body [user id][notes to store], response body [the user's last change number: long].
+     * For pushing a backlog in several parallel requests, the last batch can go with the sync request.
+     */
+    public static final String UPLOAD_PATH = "/upload";
+    
+    /*
+     * Bootstrap: GET [BOOTSTRAP_PATH]?user=[base64url user id], or &resume=[base64url resume token] to continue a stream that was cut off.
+     * Streams the user's notes that aren't deleted, each with only its latest fragment, for a device with no notes.
+     * Response body [cursor: long][frames], each frame [length: int][notes][resume token: NoteCodec bytes], 
+     * a frame with length 0 ends the stream. 
+     * A frame's resume token continues after its notes, the cursor is where to sync from once the stream has ended.
+     */
+    public static final String BOOTSTRAP_PATH = "/bootstrap";
+    public static final int MAX_RESUME_TOKEN_LENGTH = 64;
+    
+    /*
+     * Search: POST with body [user id][token count: int][tokens], 
+     * response body [notes whose latest text contains every token].
+     */
+    public static final String SEARCH_PATH = "/search";
+    
+    /*
+     * Merkle: POST with body [user id][level: byte][node count: int][node indexes: int each], 
+     * response body [the user's last change number: long][for each node: its MerkleTree.FANOUT child hashes if level < MerkleTree.DEPTH, 
+     * otherwise its bucket: [entry count: int][entries: note id, entry hash]].
+     * Used to find the notes that differ when a client has no sync cursor, see MerkleTree.
+     * The change number from the first request is the cursor to use once the differences are reconciled.
+     */
+    public static final String MERKLE_PATH = "/merkle";
+    
+    /*
+     * Fetch: POST with body [user id][count: int][note ids], response body [the notes that exist].
+     */
+    public static final String FETCH_PATH = "/fetch";
+    public static final int MAX_FETCH_NOTES = 1000;
+    
+    /*
+     * Change notifications: WebSocket, relative to the servlet url(ws/wss instead of http/https).
+     * The server first sends a text message with a base64 challenge of NOTIFY_CHALLENGE_LENGTH random bytes,
+     * the client answers with one text message: its base64 user id, a space, and the base64 signature of the challenge
+     * (see ECDSASignerVerifier.signChallenge).
+     * If the signature is valid the server sends NOTIFY_CHANGED whenever the user's notes change, otherwise it closes the socket.
+     * Clients should sync when notified, and fall back to polling while the socket is down.
+     */
+    public static final String NOTIFY_PATH = "/notify";
+    public static final int NOTIFY_CHALLENGE_LENGTH = 32;
+    public static final String NOTIFY_CHANGED = "changed";
+    
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    
+    //request and response bodies at least this big are sent with Content-Encoding: gzip
+    public static final int GZIP_MIN_BYTES = 1024;
 }
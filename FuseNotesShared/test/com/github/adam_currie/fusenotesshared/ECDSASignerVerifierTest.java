@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesshared;
+
+import java.sql.Timestamp;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class ECDSASignerVerifierTest{
+    private final ECDSASignerVerifier signer = 
+            new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    
+    @Test
+    public void signatureCoversTheWholeMessage(){
+        String message = "a message that is much longer than the 32 bytes ecdsa uses of what it is given";
+        ECDSASignature signature = signer.sign(message);
+        
+        assertTrue(signer.checkSignature(message, signature));
+        assertFalse(signer.checkSignature(message + "!", signature));
+        assertFalse(signer.checkSignature(message.replace("given", "GIVEN"), signature));
+    }
+    
+    @Test
+    public void signingAgainGivesTheSameSignature(){
+        assertEquals(signer.sign("message"), signer.sign("message"));
+        assertNotEquals(signer.sign("message"), signer.sign("other message"));
+    }
+    
+    @Test
+    public void requestSignatureCoversPathTimeAndBody(){
+        byte[] body = {1, 2, 3};
+        ECDSASignature signature = signer.signRequest("POST", Protocol.FETCH_PATH, 1000, body);
+        
+        assertTrue(signer.checkRequest("POST", Protocol.FETCH_PATH, 1000, body, signature));
+        assertFalse(signer.checkRequest("POST", Protocol.SEARCH_PATH, 1000, body, signature));
+        assertFalse(signer.checkRequest("POST", Protocol.FETCH_PATH, 1001, body, signature));
+        assertFalse(signer.checkRequest("POST", Protocol.FETCH_PATH, 1000, new byte[]{1, 2, 4}, signature));
+        assertFalse(signer.checkSignature("POST", signature));
+    }
+    
+    @Test
+    public void tamperedFragmentBodyFailsCheck(){
+        EncryptedNote note = new EncryptedNote(signer);
+        note.setNoteBody("a body long enough that the part after the first 32 bytes can be changed");
+        EncryptedNote.Fragment frag = note.iterator().next();
+        
+        EncryptedNote tampered = new EncryptedNote(note.getNoteId(), signer, note.getCreateDate(), note.getMetaEditDate(), false, note.getSignature());
+        tampered.addFragment(frag.getFragmentId(), frag.getCreateDate(), frag.getEditDate(), frag.getNoteBody().replace("changed", "CHANGED"), frag.getSearchTokens(), false, frag.getSignature());
+        
+        assertTrue(note.checkSignatures());
+        assertFalse(tampered.checkSignatures());
+    }
+    
+    @Test
+    public void mergeTakesCopySignedAgain(){
+        ECDSASignature old = signer.sign("old signature");
+        Timestamp date = new Timestamp(1500000000000L);
+        NoteID id = new NoteID();
+        FragmentID fragID = new FragmentID();
+        
+        EncryptedNote stored = new EncryptedNote(id, signer, date, date, false, old);
+        stored.addFragment(fragID, date, date, "body", new byte[0], false, old);
+        assertFalse(stored.checkSignatures());
+        
+        EncryptedNote resigned = stored.getSnapshot();
+        resigned.resign();
+        assertTrue(resigned.checkSignatures());
+        
+        stored.merge(resigned);
+        assertTrue(stored.checkSignatures());
+        assertEquals(date.getTime() + 1, stored.getMetaEditDate().getTime());
+        
+        //every client that signs the note again makes the same copy
+        EncryptedNote resignedElsewhere = new EncryptedNote(id, signer, date, date, false, old);
+        resignedElsewhere.addFragment(fragID, date, date, "body", new byte[0], false, old);
+        resignedElsewhere.resign();
+        assertEquals(resigned.getSignature(), resignedElsewhere.getSignature());
+        assertEquals(resigned.iterator().next().getSignature(), resignedElsewhere.iterator().next().getSignature());
+    }
+    
+    @Test
+    public void mergeBreaksTiesBySignature(){
+        Timestamp date = new Timestamp(1500000000000L);
+        NoteID id = new NoteID();
+        FragmentID fragID = new FragmentID();
+        ECDSASignature a = signer.sign("a");
+        ECDSASignature b = signer.sign("b");
+        ECDSASignature high = a.compareTo(b) > 0 ? a : b;
+        ECDSASignature low = high == a ? b : a;
+        
+        EncryptedNote first = new EncryptedNote(id, signer, date, date, false, low);
+        first.addFragment(fragID, date, date, "low", new byte[0], false, low);
+        EncryptedNote second = new EncryptedNote(id, signer, date, date, true, high);
+        second.addFragment(fragID, date, date, "high", new byte[0], false, high);
+        
+        //merging either way round ends with the same copy
+        EncryptedNote lowFirst = first.getSnapshot();
+        lowFirst.merge(second);
+        EncryptedNote highFirst = second.getSnapshot();
+        highFirst.merge(first);
+        for(EncryptedNote merged : new EncryptedNote[]{lowFirst, highFirst}){
+            assertEquals(high, merged.getSignature());
+            assertTrue(merged.getDeleted());
+            assertEquals("high", merged.iterator().next().getNoteBody());
+        }
+        
+        assertTrue(EncryptedNote.replaces(new Timestamp(date.getTime() + 1), low, date, high));
+        assertFalse(EncryptedNote.replaces(date, high, date, high));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 Adam Currie.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.adam_currie.fusenotesshared;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Adam Currie
+ */
+public class NoteCodecTest{
+    private final ECDSASignerVerifier signer = 
+            new ECDSASignerVerifier((ECPrivateKeyParameters)ECDSAUtil.generateKeyPair().getPrivate());
+    
+    @Test
+    public void decodesWhatWasEncoded() throws IOException{
+        EncryptedNote note = new EncryptedNote(signer);
+        note.setNoteBody("first body ünïcode", new byte[Protocol.SEARCH_TOKEN_LENGTH * 3]);
+        
+        //fragments older than the note, deleted and without a body
+        Timestamp old = new Timestamp(note.getCreateDate().getTime() - 86400000L);
+        note.addFragment(new FragmentID(), old, new Timestamp(old.getTime() + 5), null, null, true, note.getSignature());
+        
+        EncryptedNote deleted = new EncryptedNote(signer);
+        deleted.setNoteBody("gone");
+        deleted.delete();
+        
+        List<EncryptedNote> notes = Arrays.asList(note, deleted, new EncryptedNote(signer));
+        ByteBuffer in = ByteBuffer.wrap(NoteCodec.encode(notes));
+        ArrayList<EncryptedNote> decoded = NoteCodec.readNotes(in, signer);
+        
+        assertFalse(in.hasRemaining());
+        assertEquals(notes.size(), decoded.size());
+        for(int i = 0; i < notes.size(); i++){
+            assertSameNote(notes.get(i), decoded.get(i));
+        }
+        assertTrue(decoded.get(1).checkSignatures());
+    }
+    
+    @Test
+    public void truncatedInputFails(){
+        EncryptedNote note = new EncryptedNote(signer);
+        note.setNoteBody("some body");
+        byte[] encoded = NoteCodec.encode(Arrays.asList(note));
+        
+        for(int length = 0; length < encoded.length; length++){
+            try{
+                NoteCodec.readNotes(ByteBuffer.wrap(Arrays.copyOf(encoded, length)), signer);
+                fail("read " + length + " of " + encoded.length + " bytes");
+            }catch(IOException ex){
+                //expected
+            }
+        }
+    }
+    
+    @Test
+    public void oversizedLengthPrefixFails() throws IOException{
+        assertUnreadable(block(Long.MAX_VALUE));
+        assertUnreadable(block(2000000));
+        
+        //a body length past the limit, with nothing after it
+        EncryptedNote note = new EncryptedNote(signer);
+        note.setNoteBody("x");
+        byte[] encoded = NoteCodec.encode(Arrays.asList(note));
+        int bodyLengthAt = indexOf(encoded, "x".getBytes("UTF-8")) - 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(encoded, 0, bodyLengthAt);
+        NoteCodec.writeVarLong(new DataOutputStream(bytes), 1L << 40);
+        assertUnreadable(bytes.toByteArray());
+    }
+    
+    @Test
+    public void otherVersionFails() throws IOException{
+        byte[] encoded = NoteCodec.encode(new ArrayList<>());
+        encoded[0] = NoteCodec.VERSION + 1;
+        assertUnreadable(encoded);
+    }
+    
+    @Test
+    public void varLongRoundTrips() throws IOException{
+        long[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for(long value : values){
+            NoteCodec.writeVarLong(out, value);
+        }
+        
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        for(long value : values){
+            assertEquals(value, NoteCodec.readVarLong(in));
+        }
+        assertFalse(in.hasRemaining());
+    }
+    
+    private byte[] block(long count) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(NoteCodec.VERSION);
+        NoteCodec.writeVarLong(out, count);
+        return bytes.toByteArray();
+    }
+    
+    private void assertUnreadable(byte[] bytes){
+        try{
+            NoteCodec.readNotes(ByteBuffer.wrap(bytes), signer);
+            fail("invalid notes were read");
+        }catch(IOException ex){
+            //expected
+        }
+    }
+    
+    private static int indexOf(byte[] bytes, byte[] part){
+        for(int i = 0; i + part.length <= bytes.length; i++){
+            if(Arrays.equals(part, Arrays.copyOfRange(bytes, i, i + part.length))){
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static void assertSameNote(EncryptedNote expected, EncryptedNote actual){
+        assertEquals(expected.getNoteId(), actual.getNoteId());
+        assertEquals(expected.getCreateDate(), actual.getCreateDate());
+        assertEquals(expected.getMetaEditDate(), actual.getMetaEditDate());
+        assertEquals(expected.getDeleted(), actual.getDeleted());
+        assertEquals(expected.getSignature(), actual.getSignature());
+        
+        Iterator<EncryptedNote.Fragment> actualFrags = actual.iterator();
+        for(EncryptedNote.Fragment frag : expected){
+            assertTrue(actualFrags.hasNext());
+            EncryptedNote.Fragment other = actualFrags.next();
+            assertEquals(frag.getFragmentId(), other.getFragmentId());
+            assertEquals(frag.getCreateDate(), other.getCreateDate());
+            assertEquals(frag.getEditDate(), other.getEditDate());
+            assertEquals(frag.getNoteBody(), other.getNoteBody());
+            assertArrayEquals(frag.getSearchTokens(), other.getSearchTokens());
+            assertEquals(frag.getDeleted(), other.getDeleted());
+            assertEquals(frag.getSignature(), other.getSignature());
+        }
+        assertFalse(actualFrags.hasNext());
+    }
+}